@@ -75,6 +75,16 @@ tasks.withType<KotlinCompile> {
     kotlinOptions.freeCompilerArgs += "-Xopt-in=kotlin.RequiresOptIn"
 }
 
+// the headless batch mode, e.g. `./gradlew runCli --args="left.json right.json"`
+tasks.register<JavaExec>("runCli") {
+    group = "application"
+    description = "Compares pairs of CodeSystems without the UI and writes a JSON report"
+    classpath = sourceSets["main"].runtimeClasspath
+    mainClass.set("terminodiff.cli.TerminoDiffCliKt")
+    systemProperty("java.awt.headless", "true")
+    workingDir = project.projectDir
+}
+
 val composeBuildVersion: String by project
 val composeBuildOs: String? by project
 
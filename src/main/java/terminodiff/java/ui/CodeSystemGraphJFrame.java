@@ -5,6 +5,7 @@ import org.jungrapht.visualization.VisualizationViewer;
 import org.jungrapht.visualization.renderers.Renderer;
 import terminodiff.engine.graph.FhirConceptEdge;
 import terminodiff.i18n.LocalizedStrings;
+import terminodiff.ui.graphs.GraphColors;
   import terminodiff.ui.graphs.Registry;
 
 import javax.swing.*;
@@ -41,8 +42,8 @@ public class CodeSystemGraphJFrame extends GraphJFrame<String, FhirConceptEdge>
 
     @Override
     protected void configureBothViewers(VisualizationViewer<String, FhirConceptEdge> viewer) {
-        viewer.getRenderContext().setArrowFillPaintFunction(FhirConceptEdge::getColor); // looks up the registered edge colors to be consistent for both graphs
-        viewer.getRenderContext().setEdgeDrawPaintFunction(FhirConceptEdge::getColor);
+        viewer.getRenderContext().setArrowFillPaintFunction(GraphColors::getColor); // looks up the registered edge colors to be consistent for both graphs
+        viewer.getRenderContext().setEdgeDrawPaintFunction(GraphColors::getColor);
         viewer.getRenderContext().setVertexFillPaintFunction(v -> {
             if (isDarkTheme) return Color.LIGHT_GRAY;
             else return Color.DARK_GRAY;
@@ -7,6 +7,7 @@ import org.jungrapht.visualization.renderers.Renderer.VertexLabel.Position;
 import terminodiff.engine.graph.DiffEdge;
 import terminodiff.engine.graph.DiffNode;
 import terminodiff.i18n.LocalizedStrings;
+import terminodiff.ui.graphs.GraphColors;
 
 import javax.swing.*;
 import java.awt.*;
@@ -43,9 +44,9 @@ public class DiffGraphJFrame extends GraphJFrame<DiffNode, DiffEdge> {
     @Override
     protected void configureBothViewers(VisualizationViewer<DiffNode, DiffEdge> viewer) {
         viewer.getRenderContext().setEdgeShapeFunction((g, e) -> EdgeShape.CUBIC_CURVE);
-        viewer.getRenderContext().setVertexFillPaintFunction(DiffNode::getColor);
-        viewer.getRenderContext().setArrowFillPaintFunction(DiffEdge::getColor);
-        viewer.getRenderContext().setEdgeDrawPaintFunction(DiffEdge::getColor);
+        viewer.getRenderContext().setVertexFillPaintFunction(GraphColors::getColor);
+        viewer.getRenderContext().setArrowFillPaintFunction(GraphColors::getColor);
+        viewer.getRenderContext().setEdgeDrawPaintFunction(GraphColors::getColor);
     }
 
 }
@@ -7,6 +7,7 @@ import org.jungrapht.visualization.renderers.Renderer.VertexLabel.Position;
 import terminodiff.i18n.LocalizedStrings;
 import terminodiff.terminodiff.engine.graph.CombinedEdge;
 import terminodiff.terminodiff.engine.graph.CombinedVertex;
+import terminodiff.ui.graphs.GraphColors;
 
 import javax.swing.*;
 import java.awt.*;
@@ -61,11 +62,11 @@ public class NeighborhoodJFrame extends GraphJFrame<CombinedVertex, CombinedEdge
                 return new BasicStroke(1f);
             }
         });
-        viewer.getRenderContext().setVertexFillPaintFunction(CombinedVertex::getColor);
-        viewer.getRenderContext().setVertexLabelDrawPaintFunction(CombinedVertex::getColor);
+        viewer.getRenderContext().setVertexFillPaintFunction(GraphColors::getColor);
+        viewer.getRenderContext().setVertexLabelDrawPaintFunction(GraphColors::getColor);
         viewer.getRenderContext().setEdgeShapeFunction((g, e) -> EdgeShape.CUBIC_CURVE);
-        viewer.getRenderContext().setArrowFillPaintFunction(CombinedEdge::getColor);
-        viewer.getRenderContext().setEdgeDrawPaintFunction(CombinedEdge::getColor);
+        viewer.getRenderContext().setArrowFillPaintFunction(GraphColors::getColor);
+        viewer.getRenderContext().setEdgeDrawPaintFunction(GraphColors::getColor);
     }
 
     private void addBottomControls() {
@@ -0,0 +1,127 @@
+package terminodiff.cli
+
+import com.fasterxml.jackson.core.JsonEncoding
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonGenerator
+import terminodiff.engine.concepts.ConceptDiffFlags
+import terminodiff.engine.graph.CodeSystemGraphBuilder
+import terminodiff.terminodiff.engine.graph.GraphSide
+import terminodiff.terminodiff.engine.metadata.MetadataComparisonResult
+import java.io.Closeable
+import java.io.File
+import java.io.OutputStream
+
+/**
+ * writes the report of a batch run as JSON. Every pair is written as soon as it is compared, so that the diffs do not
+ * have to be kept in memory until the end of the run; the summary is written when the writer is closed.
+ *
+ * The report only uses locale-independent names (FHIR element names for the metadata), so that it can be processed
+ * by other tools.
+ */
+class BatchDiffReportWriter(outputStream: OutputStream) : Closeable {
+    private val generator: JsonGenerator = JsonFactory().createGenerator(outputStream, JsonEncoding.UTF8).apply {
+        disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+        useDefaultPrettyPrinter()
+    }
+    private var identicalCount = 0
+    private var differentCount = 0
+    private var failedCount = 0
+
+    init {
+        generator.writeStartObject()
+        generator.writeArrayFieldStart("pairs")
+    }
+
+    /**
+     * @return whether the code systems of the pair are identical
+     */
+    fun writePair(result: BatchDiffResult): Boolean {
+        val diff = result.diff
+        val isIdentical = diff.isIdentical
+        if (isIdentical) identicalCount++ else differentCount++
+        generator.writeStartObject()
+        writeSide("left", result.leftFile, result.left)
+        writeSide("right", result.rightFile, result.right)
+        generator.writeBooleanField("identical", isIdentical)
+        result.exportFile?.let { generator.writeStringField("export", it.path) }
+
+        generator.writeArrayFieldStart("differentMetadata")
+        diff.metadataDifferences.comparisons.filter { it.result == MetadataComparisonResult.DIFFERENT }.forEach {
+            generator.writeString(it.diffItem.element)
+        }
+        generator.writeEndArray()
+
+        generator.writeObjectFieldStart("concepts")
+        writeStringArray("onlyInLeft", diff.onlyInLeftConcepts)
+        writeStringArray("onlyInRight", diff.onlyInRightConcepts)
+        generator.writeNumberField("inBoth", diff.conceptDifferences.size)
+        generator.writeArrayFieldStart("different")
+        diff.conceptDifferences.differentCodes.forEach { code ->
+            generator.writeStartObject()
+            generator.writeStringField("code", code)
+            writeStringArray("changed", changedFields(diff.conceptDifferences.flagsOf(code) ?: 0))
+            generator.writeEndObject()
+        }
+        generator.writeEndArray()
+        generator.writeEndObject()
+
+        val diffEdges = diff.differenceGraph.edgeSet()
+        generator.writeObjectFieldStart("edges")
+        generator.writeNumberField("onlyInLeft", diffEdges.count { it.inWhich == GraphSide.LEFT })
+        generator.writeNumberField("onlyInRight", diffEdges.count { it.inWhich == GraphSide.RIGHT })
+        generator.writeEndObject()
+
+        generator.writeEndObject()
+        generator.flush()
+        return isIdentical
+    }
+
+    fun writeFailedPair(leftFile: File, rightFile: File, message: String?) {
+        failedCount++
+        generator.writeStartObject()
+        generator.writeObjectFieldStart("left")
+        generator.writeStringField("file", leftFile.path)
+        generator.writeEndObject()
+        generator.writeObjectFieldStart("right")
+        generator.writeStringField("file", rightFile.path)
+        generator.writeEndObject()
+        generator.writeStringField("error", message)
+        generator.writeEndObject()
+        generator.flush()
+    }
+
+    private fun writeSide(fieldName: String, file: File, graphBuilder: CodeSystemGraphBuilder) {
+        generator.writeObjectFieldStart(fieldName)
+        generator.writeStringField("file", file.path)
+        generator.writeStringField("url", graphBuilder.codeSystem.url)
+        generator.writeStringField("version", graphBuilder.codeSystem.version)
+        generator.writeNumberField("concepts", graphBuilder.nodeTree.size)
+        generator.writeEndObject()
+    }
+
+    private fun writeStringArray(fieldName: String, values: List<String>) {
+        generator.writeArrayFieldStart(fieldName)
+        values.forEach(generator::writeString)
+        generator.writeEndArray()
+    }
+
+    private fun changedFields(flags: Int) = listOfNotNull(
+        "display".takeIf { flags and ConceptDiffFlags.DISPLAY_DIFFERENT != 0 },
+        "definition".takeIf { flags and ConceptDiffFlags.DEFINITION_DIFFERENT != 0 },
+        "property".takeIf { flags and ConceptDiffFlags.PROPERTIES_DIFFERENT != 0 },
+        "designation".takeIf { flags and ConceptDiffFlags.DESIGNATIONS_DIFFERENT != 0 },
+    )
+
+    override fun close() {
+        generator.writeEndArray()
+        generator.writeObjectFieldStart("summary")
+        generator.writeNumberField("pairs", identicalCount + differentCount + failedCount)
+        generator.writeNumberField("identical", identicalCount)
+        generator.writeNumberField("different", differentCount)
+        generator.writeNumberField("failed", failedCount)
+        generator.writeEndObject()
+        generator.writeEndObject()
+        generator.writeRaw('\n')
+        generator.close()
+    }
+}
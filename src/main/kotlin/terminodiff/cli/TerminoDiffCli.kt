@@ -0,0 +1,233 @@
+package terminodiff.cli
+
+import ca.uhn.fhir.context.FhirContext
+import ca.uhn.fhir.parser.DataFormatException
+import kotlinx.coroutines.runBlocking
+import terminodiff.engine.export.DiffExportFormat
+import terminodiff.engine.export.DiffExporter
+import terminodiff.engine.graph.CodeSystemDiffBuilder
+import terminodiff.engine.graph.CodeSystemGraphBuilder
+import terminodiff.engine.resources.CodeSystemExtractor
+import terminodiff.engine.resources.CodeSystemSnapshotCache
+import terminodiff.engine.resources.CodeSystemSnapshotCodec
+import terminodiff.engine.resources.ExtractedCodeSystem
+import java.io.File
+import java.io.IOException
+import kotlin.system.exitProcess
+
+private const val USAGE = """usage: terminodiff-cli [options] [<left> <right>]...
+
+Compares pairs of FHIR CodeSystems (JSON or XML) without starting the UI, and writes a JSON report.
+
+options:
+  --pairs <file>          read additional pairs from a file, one pair per line, separated by a tab.
+                          Relative paths are resolved against the directory of the file, lines starting with # are
+                          ignored.
+  --output <file>         write the report to the file, instead of to standard output
+  --export <directory>    export the detailed differences of every pair to a file in the directory
+  --export-format <fmt>   the format of the exports, jsonl (JSON Lines, the default) or csv
+  --cache                 use the snapshot cache of the app for the extracted CodeSystems
+  --fail-on-difference    exit with status 1 if any pair is not identical
+  --verbose               log the progress of the diff to standard error
+  --help                  show this message
+
+exit status: 0 if all pairs were compared, 1 if --fail-on-difference is given and a pair is different, 2 on errors"""
+
+const val EXIT_DIFFERENT = 1
+const val EXIT_ERROR = 2
+
+class CliUsageException(message: String) : RuntimeException(message)
+
+data class CliOptions(
+    val pairs: List<Pair<File, File>>,
+    val output: File?,
+    val exportDirectory: File?,
+    val exportFormat: DiffExportFormat,
+    val useCache: Boolean,
+    val failOnDifference: Boolean,
+    val verbose: Boolean,
+) {
+    companion object {
+        /**
+         * @throws CliUsageException if the arguments are invalid
+         */
+        fun parse(args: Array<String>): CliOptions {
+            val files = mutableListOf<File>()
+            val pairs = mutableListOf<Pair<File, File>>()
+            var output: File? = null
+            var exportDirectory: File? = null
+            var exportFormat = DiffExportFormat.JSON_LINES
+            var useCache = false
+            var failOnDifference = false
+            var verbose = false
+            val arguments = args.iterator()
+            fun valueOf(option: String) =
+                if (arguments.hasNext()) arguments.next() else throw CliUsageException("$option requires a value")
+            while (arguments.hasNext()) {
+                when (val argument = arguments.next()) {
+                    "--pairs" -> pairs.addAll(readPairsFile(File(valueOf(argument))))
+                    "--output", "-o" -> output = File(valueOf(argument))
+                    "--export" -> exportDirectory = File(valueOf(argument))
+                    "--export-format" -> exportFormat = when (val format = valueOf(argument).lowercase()) {
+                        "jsonl" -> DiffExportFormat.JSON_LINES
+                        "csv" -> DiffExportFormat.CSV
+                        else -> throw CliUsageException("unknown export format $format")
+                    }
+                    "--cache" -> useCache = true
+                    "--fail-on-difference" -> failOnDifference = true
+                    "--verbose", "-v" -> verbose = true
+                    else -> when {
+                        argument.startsWith("-") -> throw CliUsageException("unknown option $argument")
+                        else -> files.add(File(argument))
+                    }
+                }
+            }
+            if (files.size % 2 != 0) throw CliUsageException("the files have to be given in pairs of left and right")
+            pairs.addAll(0, files.chunked(2) { (left, right) -> left to right })
+            if (pairs.isEmpty()) throw CliUsageException("no pairs to compare")
+            return CliOptions(pairs, output, exportDirectory, exportFormat, useCache, failOnDifference, verbose)
+        }
+
+        private fun readPairsFile(file: File): List<Pair<File, File>> {
+            if (!file.isFile) throw CliUsageException("the pairs file ${file.path} does not exist")
+            val baseDirectory = file.absoluteFile.parentFile
+            return file.readLines().mapIndexedNotNull { index, line ->
+                if (line.isBlank() || line.trimStart().startsWith("#")) return@mapIndexedNotNull null
+                val paths = line.split('\t').map(String::trim).filter(String::isNotEmpty)
+                if (paths.size != 2) throw CliUsageException("line ${index + 1} of ${file.path} is not a pair of files")
+                val (left, right) = paths.map { path ->
+                    File(path).let { if (it.isAbsolute) it else File(baseDirectory, path) }
+                }
+                left to right
+            }
+        }
+    }
+}
+
+data class BatchDiffResult(
+    val leftFile: File,
+    val rightFile: File,
+    val left: CodeSystemGraphBuilder,
+    val right: CodeSystemGraphBuilder,
+    val diff: CodeSystemDiffBuilder,
+    val exportFile: File? = null,
+)
+
+/**
+ * runs the diffs of many pairs in one JVM. The [FhirContext] (which is expensive to initialize) and the extractor are
+ * shared by all pairs, and the UI-specific parts of the pipeline (the combined graph) are never built.
+ */
+class BatchDiffRunner(fhirContext: FhirContext, useCache: Boolean) {
+    private val codeSystemExtractor = CodeSystemExtractor(fhirContext)
+    private val snapshotCache = if (useCache) CodeSystemSnapshotCache(CodeSystemSnapshotCodec(fhirContext)) else null
+
+    /**
+     * @throws DataFormatException if one of the files can't be read as a FHIR CodeSystem
+     * @throws UnsupportedOperationException if one of the CodeSystems uses a property in a way that is not supported
+     */
+    fun diff(left: File, right: File): BatchDiffResult {
+        val leftBuilder = loadGraph(left)
+        val rightBuilder = loadGraph(right)
+        val diff = CodeSystemDiffBuilder(leftBuilder, rightBuilder)
+        runBlocking {
+            diff.buildConceptDiff()
+        }
+        diff.buildDiffGraph()
+        return BatchDiffResult(left, right, leftBuilder, rightBuilder, diff)
+    }
+
+    /**
+     * streams the detailed differences of the pair to a file in [directory]
+     *
+     * @throws IOException if the file can't be written
+     */
+    fun export(result: BatchDiffResult, index: Int, directory: File, format: DiffExportFormat): BatchDiffResult {
+        directory.mkdirs()
+        val name = "${index + 1}-${result.leftFile.nameWithoutExtension}-${result.rightFile.nameWithoutExtension}"
+        val file = File(directory, "$name.${format.extension}")
+        format.createWriter(file.bufferedWriter()).use { writer -> DiffExporter(result.diff).export(writer) }
+        return result.copy(exportFile = file)
+    }
+
+    private fun loadGraph(file: File): CodeSystemGraphBuilder {
+        if (!file.isFile) throw DataFormatException("the file ${file.path} does not exist")
+        val extracted: ExtractedCodeSystem = when (snapshotCache) {
+            null -> codeSystemExtractor.extract(file)
+            else -> snapshotCache.getOrExtract(file, codeSystemExtractor::extract)
+        } ?: throw DataFormatException("the file ${file.path} has an unsupported file type")
+        return CodeSystemGraphBuilder(extracted.metadata, extracted.concepts)
+    }
+}
+
+fun main(args: Array<String>) {
+    // neither AWT nor a display are needed, this has to be set before any AWT class is loaded
+    System.setProperty("java.awt.headless", "true")
+    if ("--help" in args || "-h" in args) {
+        println(USAGE)
+        return
+    }
+    val options = try {
+        CliOptions.parse(args)
+    } catch (e: CliUsageException) {
+        System.err.println("error: ${e.message}\n\n$USAGE")
+        exitProcess(EXIT_ERROR)
+    } catch (e: IOException) {
+        System.err.println("error: could not read the arguments: ${e.message}")
+        exitProcess(EXIT_ERROR)
+    }
+    // this has to be set before the first logger is created
+    System.setProperty("org.slf4j.simpleLogger.logFile", "System.err")
+    if (!options.verbose) System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn")
+    val exitStatus = try {
+        run(options)
+    } catch (e: Exception) {
+        // e.g. the report can't be written. This must not exit with EXIT_DIFFERENT, like an uncaught exception would
+        System.err.println("error: ${e.message ?: e.javaClass.simpleName}")
+        EXIT_ERROR
+    }
+    exitProcess(exitStatus)
+}
+
+private fun run(options: CliOptions): Int {
+    val runner = BatchDiffRunner(FhirContext.forR4(), options.useCache)
+    val outputFile = options.output?.outputStream()?.buffered()
+    var anyDifferent = false
+    var anyFailed = false
+    try {
+        BatchDiffReportWriter(outputFile ?: System.out).use { report ->
+            options.pairs.forEachIndexed { index, (left, right) ->
+                try {
+                    val result = runner.diff(left, right).let { result ->
+                        when (val directory = options.exportDirectory) {
+                            null -> result
+                            else -> runner.export(result, index, directory, options.exportFormat)
+                        }
+                    }
+                    val isIdentical = report.writePair(result)
+                    anyDifferent = anyDifferent || !isIdentical
+                } catch (e: IOException) {
+                    reportFailedPair(report, left, right, e)
+                    anyFailed = true
+                } catch (e: RuntimeException) {
+                    // e.g. a DataFormatException for an invalid file, or an UnsupportedOperationException for a
+                    // property that the graph builder does not support
+                    reportFailedPair(report, left, right, e)
+                    anyFailed = true
+                }
+            }
+        }
+    } finally {
+        outputFile?.close()
+    }
+    return when {
+        anyFailed -> EXIT_ERROR
+        anyDifferent && options.failOnDifference -> EXIT_DIFFERENT
+        else -> 0
+    }
+}
+
+private fun reportFailedPair(report: BatchDiffReportWriter, left: File, right: File, e: Exception) {
+    val message = e.message ?: e.javaClass.simpleName
+    System.err.println("error: could not compare ${left.path} and ${right.path}: $message")
+    report.writeFailedPair(left, right, message)
+}
@@ -0,0 +1,72 @@
+package terminodiff.terminodiff.engine.conceptmap
+
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonGenerator
+import org.hl7.fhir.r4.model.ConceptMap
+import org.hl7.fhir.r4.model.ConceptMap.ConceptMapGroupComponent
+import org.hl7.fhir.r4.model.ConceptMap.SourceElementComponent
+import org.hl7.fhir.r4.model.ConceptMap.TargetElementComponent
+import java.io.Writer
+
+/**
+ * writes a concept map as pretty-printed FHIR JSON, one element at a time, so that the JSON of a large concept map is
+ * never held in memory as a whole. This covers the parts of the ConceptMap resource that are set by
+ * [TerminodiffConceptMap.toFhir]; the fields are written in the order of the FHIR specification, like the HAPI parser
+ * does.
+ */
+object ConceptMapJsonWriter {
+
+    fun write(conceptMap: ConceptMap, writer: Writer) {
+        JsonFactory().createGenerator(writer).useDefaultPrettyPrinter().use { generator ->
+            generator.writeStartObject()
+            generator.writeStringField("resourceType", "ConceptMap")
+            if (conceptMap.hasId()) generator.writeStringField("id", conceptMap.idElement.idPart)
+            generator.writeOptionalField("url", conceptMap.url)
+            generator.writeOptionalField("version", conceptMap.version)
+            generator.writeOptionalField("name", conceptMap.name)
+            generator.writeOptionalField("title", conceptMap.title)
+            if (conceptMap.hasDate()) generator.writeStringField("date", conceptMap.dateElement.valueAsString)
+            generator.writeOptionalArray("group", conceptMap.group) { writeGroup(generator, it) }
+            generator.writeEndObject()
+        }
+    }
+
+    private fun writeGroup(generator: JsonGenerator, group: ConceptMapGroupComponent) {
+        generator.writeStartObject()
+        generator.writeOptionalField("source", group.source)
+        generator.writeOptionalField("sourceVersion", group.sourceVersion)
+        generator.writeOptionalField("target", group.target)
+        generator.writeOptionalField("targetVersion", group.targetVersion)
+        generator.writeOptionalArray("element", group.element) { writeElement(generator, it) }
+        generator.writeEndObject()
+    }
+
+    private fun writeElement(generator: JsonGenerator, element: SourceElementComponent) {
+        generator.writeStartObject()
+        generator.writeOptionalField("code", element.code)
+        generator.writeOptionalField("display", element.display)
+        generator.writeOptionalArray("target", element.target) { writeTarget(generator, it) }
+        generator.writeEndObject()
+    }
+
+    private fun writeTarget(generator: JsonGenerator, target: TargetElementComponent) {
+        generator.writeStartObject()
+        generator.writeOptionalField("code", target.code)
+        generator.writeOptionalField("display", target.display)
+        generator.writeOptionalField("equivalence", target.equivalence?.toCode())
+        generator.writeOptionalField("comment", target.comment)
+        generator.writeEndObject()
+    }
+
+    private fun JsonGenerator.writeOptionalField(name: String, value: String?) {
+        // like the HAPI parser, empty values are left out
+        if (!value.isNullOrEmpty()) writeStringField(name, value)
+    }
+
+    private fun <T> JsonGenerator.writeOptionalArray(name: String, items: List<T>, writeItem: (T) -> Unit) {
+        if (items.isEmpty()) return
+        writeArrayFieldStart(name)
+        items.forEach(writeItem)
+        writeEndArray()
+    }
+}
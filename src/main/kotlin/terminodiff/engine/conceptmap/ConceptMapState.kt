@@ -6,24 +6,28 @@ import androidx.compose.material.icons.filled.Error
 import androidx.compose.material.icons.filled.Verified
 import androidx.compose.runtime.*
 import androidx.compose.ui.graphics.vector.ImageVector
-import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
 import org.hl7.fhir.r4.model.ConceptMap
 import org.hl7.fhir.r4.model.ConceptMap.*
 import org.hl7.fhir.r4.model.DateTimeType
 import org.hl7.fhir.r4.model.Enumerations.ConceptMapEquivalence
-import org.jgrapht.GraphPath
-import org.jgrapht.alg.shortestpath.AllDirectedPaths
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import terminodiff.engine.graph.*
 import terminodiff.engine.resources.DiffDataContainer
 import terminodiff.i18n.LocalizedStrings
-import terminodiff.terminodiff.engine.graph.CombinedEdge
-import terminodiff.terminodiff.engine.graph.CombinedVertex
-import terminodiff.terminodiff.engine.graph.GraphSide
 import terminodiff.terminodiff.ui.panes.diff.NeighborhoodDisplay
 
+private val logger: Logger = LoggerFactory.getLogger(ConceptMapState::class.java)
+
 class ConceptMapState {
 
     var conceptMap: TerminodiffConceptMap? by mutableStateOf(null)
     val hasConceptMap: Boolean by derivedStateOf { conceptMap != null }
+    var progress: ConceptMapProgress by mutableStateOf(ConceptMapProgress(0, 0))
+        private set
 
     fun acceptAll() = conceptMap?.group?.elements?.forEach { element ->
         element.targets.forEach { target ->
@@ -31,17 +35,66 @@ class ConceptMapState {
         }
     }
 
-    suspend fun createConceptMap(diffDataContainer: DiffDataContainer): TerminodiffConceptMap = coroutineScope {
-        return@coroutineScope when (conceptMap) {
-            null -> TerminodiffConceptMap(diffDataContainer).also {
+    /**
+     * computes the suggested targets of all affected concepts in the background (c.f. [ConceptMapTargetInference]),
+     * and creates the concept map from them. This is intended to be launched from the concept map dialog, so that
+     * the computation is cancelled when the dialog is closed; it starts over when the dialog is opened again.
+     */
+    suspend fun createConceptMap(diffDataContainer: DiffDataContainer): TerminodiffConceptMap {
+        conceptMap?.let { return it }
+        val diff = diffDataContainer.codeSystemDiff!!
+        val codes = diff.combinedGraph!!.affectedVertices.map { it.code }
+        progress = ConceptMapProgress(0, codes.size)
+        try {
+            val suggestions = MappingSuggestions.compute(diff)
+            val inferredTargets = ConceptMapTargetInference(diff.combinedGraph!!).inferAll(codes) { completed ->
+                progress = ConceptMapProgress(completed, codes.size)
+            }
+            return TerminodiffConceptMap(diffDataContainer, suggestions, inferredTargets).also {
                 conceptMap = it
             }
-            else -> conceptMap!!
+        } catch (e: CancellationException) {
+            logger.info("cancelled the computation of the concept map")
+            throw e
+        }
+    }
+}
+
+data class ConceptMapProgress(val completed: Int, val total: Int) {
+    val fraction get() = if (total == 0) 0f else completed.toFloat() / total
+}
+
+/**
+ * the targets that are suggested for the concepts that are only in the left code system: concepts that were likely
+ * recoded (c.f. [RecodedConceptDetector]), and, for the other concepts, the right concepts with the most similar
+ * texts (c.f. [SimilarConceptIndex])
+ */
+class MappingSuggestions(
+    val recodedConcepts: Map<String, List<RecodedConcept>>,
+    val similarConcepts: Map<String, List<SimilarConcept>>,
+) {
+    companion object {
+        const val MAX_SIMILAR_CONCEPTS = 5
+
+        suspend fun compute(diff: CodeSystemDiffBuilder): MappingSuggestions = withContext(Dispatchers.Default) {
+            val recodedConcepts = RecodedConceptDetector(diff).detect().groupBy { it.leftCode }
+            val unmatchedConcepts =
+                diff.onlyInLeftConcepts.filter { it !in recodedConcepts }.mapNotNull { diff.leftBuilder.nodeTree[it] }
+            val similarConcepts = when (unmatchedConcepts.isEmpty()) {
+                true -> emptyMap()
+                else -> SimilarConceptIndex.build(diff.rightBuilder.nodeTree.values)
+                    .queryAll(unmatchedConcepts, MAX_SIMILAR_CONCEPTS)
+            }
+            MappingSuggestions(recodedConcepts, similarConcepts)
         }
     }
 }
 
-class TerminodiffConceptMap(diffDataContainer: DiffDataContainer) {
+class TerminodiffConceptMap(
+    diffDataContainer: DiffDataContainer,
+    suggestions: MappingSuggestions,
+    inferredTargets: Map<String, List<InferredTarget>>,
+) {
 
     val id: MutableState<String?> = mutableStateOf(null)
     val canonicalUrl: MutableState<String?> = mutableStateOf(null)
@@ -54,19 +107,25 @@ class TerminodiffConceptMap(diffDataContainer: DiffDataContainer) {
         mutableStateOf(null)
     val targetValueSet: MutableState<String?> =
         mutableStateOf(null)
-    var group by mutableStateOf(ConceptMapGroup(diffDataContainer))
-
-
-    val toFhir by derivedStateOf {
-        ConceptMap().apply {
-            this.id = this@TerminodiffConceptMap.id.value
-            this.url = this@TerminodiffConceptMap.canonicalUrl.value
-            this.version = this@TerminodiffConceptMap.version.value
-            this.name = this@TerminodiffConceptMap.version.value
-            this.title = this@TerminodiffConceptMap.title.value
-            this.dateElement = DateTimeType.now()
-            this.group.add(this@TerminodiffConceptMap.group.toFhir)
-        }
+    var group by mutableStateOf(ConceptMapGroup(diffDataContainer, suggestions, inferredTargets))
+
+
+    // the FHIR resource is kept, and patched by toFhir
+    private val fhirConceptMap = ConceptMap()
+
+    /**
+     * the FHIR resource of this concept map. Only the elements that changed since the last call are replaced (c.f.
+     * [ConceptMapGroup.toFhir]), so that this stays cheap after an edit.
+     */
+    @Synchronized
+    fun toFhir(): ConceptMap = fhirConceptMap.apply {
+        this.id = this@TerminodiffConceptMap.id.value
+        this.url = this@TerminodiffConceptMap.canonicalUrl.value
+        this.version = this@TerminodiffConceptMap.version.value
+        this.name = this@TerminodiffConceptMap.name.value
+        this.title = this@TerminodiffConceptMap.title.value
+        this.dateElement = DateTimeType.now()
+        this.group = mutableListOf(this@TerminodiffConceptMap.group.toFhir())
     }
 
     override fun toString(): String {
@@ -74,32 +133,80 @@ class TerminodiffConceptMap(diffDataContainer: DiffDataContainer) {
     }
 }
 
-class ConceptMapGroup(diffDataContainer: DiffDataContainer) {
+class ConceptMapGroup(
+    diffDataContainer: DiffDataContainer,
+    suggestions: MappingSuggestions,
+    inferredTargets: Map<String, List<InferredTarget>>,
+) {
 
     val sourceUri = mutableStateOf(diffDataContainer.leftCodeSystem?.url)
     val sourceVersion = mutableStateOf(diffDataContainer.leftCodeSystem?.version)
     val targetUri = mutableStateOf(diffDataContainer.rightCodeSystem?.url)
     val targetVersion = mutableStateOf(diffDataContainer.rightCodeSystem?.version)
     val elements = mutableStateListOf<ConceptMapElement>()
-    val toFhir: ConceptMapGroupComponent by derivedStateOf {
-        ConceptMapGroupComponent().apply {
-            this.source = this@ConceptMapGroup.sourceUri.value
-            this.sourceVersion = this@ConceptMapGroup.sourceVersion.value
-            this.target = this@ConceptMapGroup.targetUri.value
-            this.targetVersion = this@ConceptMapGroup.targetVersion.value
-            this.element.addAll(this@ConceptMapGroup.elements.map { it.toFhir }
-                .filter(SourceElementComponent::hasTarget))
+
+    // the FHIR group is kept, and patched by toFhir
+    private val fhirGroup = ConceptMapGroupComponent()
+
+    // the FHIR components of the elements as of the last call of toFhir, and their positions in the FHIR group, or -1
+    // if they were left out since they had no targets
+    private var fhirElements: Array<SourceElementComponent> = emptyArray()
+    private var fhirPositions = IntArray(0)
+
+    /**
+     * the FHIR group of this concept map, with the elements that have targets. The components of the elements are
+     * only rebuilt if they changed (c.f. [ConceptMapElement.toFhir]), and only those are replaced in the group. The
+     * list of elements is only rebuilt if an element gained its first target or lost its last target.
+     */
+    @Synchronized
+    fun toFhir(): ConceptMapGroupComponent = fhirGroup.apply {
+        this.source = this@ConceptMapGroup.sourceUri.value
+        this.sourceVersion = this@ConceptMapGroup.sourceVersion.value
+        this.target = this@ConceptMapGroup.targetUri.value
+        this.targetVersion = this@ConceptMapGroup.targetVersion.value
+        patchElements()
+    }
+
+    private fun patchElements() {
+        val components = Array(elements.size) { elements[it].toFhir }
+        val changed = components.indices.filter { i -> i >= fhirElements.size || components[i] !== fhirElements[i] }
+        val isRebuildNeeded = components.size != fhirElements.size || changed.any { i ->
+            components[i].hasTarget() != (fhirPositions[i] >= 0)
+        }
+        when (isRebuildNeeded) {
+            true -> {
+                fhirGroup.element.clear()
+                fhirPositions = IntArray(components.size) { i ->
+                    when (components[i].hasTarget()) {
+                        true -> fhirGroup.element.size.also { fhirGroup.element.add(components[i]) }
+                        else -> -1
+                    }
+                }
+            }
+            else -> changed.forEach { i ->
+                if (fhirPositions[i] >= 0) fhirGroup.element[fhirPositions[i]] = components[i]
+            }
         }
+        fhirElements = components
     }
 
     init {
-        populateElements(diffDataContainer)
+        populateElements(diffDataContainer, suggestions, inferredTargets)
     }
 
-    private fun populateElements(diff: DiffDataContainer) {
+    private fun populateElements(
+        diff: DiffDataContainer,
+        suggestions: MappingSuggestions,
+        inferredTargets: Map<String, List<InferredTarget>>,
+    ) {
         diff.codeSystemDiff!!.combinedGraph!!.affectedVertices
             .forEach { vertex ->
-                elements.add(ConceptMapElement(diff, vertex.code, vertex.getTooltip()))
+                elements.add(ConceptMapElement(diff,
+                    vertex.code,
+                    vertex.getTooltip(),
+                    inferredTargets[vertex.code] ?: emptyList(),
+                    suggestions.recodedConcepts[vertex.code] ?: emptyList(),
+                    suggestions.similarConcepts[vertex.code] ?: emptyList()))
             }
     }
 
@@ -108,7 +215,14 @@ class ConceptMapGroup(diffDataContainer: DiffDataContainer) {
     }
 }
 
-class ConceptMapElement(private val diffDataContainer: DiffDataContainer, code: String, display: String?) {
+class ConceptMapElement(
+    private val diffDataContainer: DiffDataContainer,
+    code: String,
+    display: String?,
+    inferredTargets: List<InferredTarget> = emptyList(),
+    recodedAs: List<RecodedConcept> = emptyList(),
+    val similarConcepts: List<SimilarConcept> = emptyList(),
+) {
     val code: MutableState<String> = mutableStateOf(code)
     val display: MutableState<String?> = mutableStateOf(display)
 
@@ -116,29 +230,18 @@ class ConceptMapElement(private val diffDataContainer: DiffDataContainer, code:
         NeighborhoodDisplay(this.code.value, diffDataContainer.codeSystemDiff!!)
     }
 
-    private val neighborhoodGraph by derivedStateOf {
-        neighborhood.getNeighborhoodGraph()
-    }
-
-    private val suitableTargets by derivedStateOf {
-        // the list of targets is calculated from the neighborhood graph of the current vertex
-        neighborhoodGraph.vertexSet().filter { it.code != code } // the node itself can't be mapped to
-            .filter { it.side == GraphSide.BOTH } // we can only map to nodes that are shared across versions
-            .filter { v ->
-                // consider nodes that are reachable from the source vertex
-                val paths = getPaths(getVertexByCode(code), getVertexByCode(v.code))
-                paths.any { p ->
-                    p.edgeList.any { e -> e.side != GraphSide.BOTH }
-                    //disregard those paths that are entirely following nodes in both CS versions
-                }
-            }
-    }
-
     val targets = mutableStateListOf<ConceptMapTarget>().apply {
-        suitableTargets.forEach { t ->
+        inferredTargets.forEach { t ->
             this.add(ConceptMapTarget(diffDataContainer).apply {
                 this.code.value = t.code
-                this.equivalence.value = inferEquivalence(this@ConceptMapElement.code.value, t.code)
+                this.equivalence.value = t.equivalence
+            })
+        }
+        // the concepts that this concept was likely recoded as are only in the right side, so they are not inferred above
+        recodedAs.forEach { recoded ->
+            this.add(ConceptMapTarget(diffDataContainer).apply {
+                this.code.value = recoded.rightCode
+                this.equivalence.value = ConceptMapEquivalence.EQUAL
             })
         }
     }
@@ -152,49 +255,6 @@ class ConceptMapElement(private val diffDataContainer: DiffDataContainer, code:
         }
     }
 
-    private fun inferEquivalence(sourceCode: String, targetCode: String): ConceptMapEquivalence? {
-        val sourceVertex = getVertexByCode(sourceCode) ?: return null
-        val targetVertex = getVertexByCode(targetCode) ?: return null
-        val (allPaths, originalOrder) = getPaths(sourceVertex, targetVertex).let { walk ->
-            when (walk.isEmpty()) {
-                true -> getPaths(targetVertex, sourceVertex) to false // flip the edge order
-                else -> walk to true
-            }
-        }
-        return when {
-            allPaths.isEmpty() -> null
-            allPaths.size == 1 -> inferEquivalenceFromPath(allPaths.first(), originalOrder)
-            else -> allPaths.minByOrNull { it.length }?.let { shortestPath ->
-                inferEquivalenceFromPath(shortestPath, originalOrder)
-            }
-        }
-    }
-
-    private fun inferEquivalenceFromPath(
-        path: GraphPath<CombinedVertex, CombinedEdge>,
-        originalOrder: Boolean,
-    ): ConceptMapEquivalence? {
-        return when {
-            path.edgeList.all { it.side == GraphSide.LEFT } -> if (originalOrder) ConceptMapEquivalence.WIDER else ConceptMapEquivalence.NARROWER
-            path.edgeList.all { it.side == GraphSide.RIGHT } -> if (originalOrder) ConceptMapEquivalence.NARROWER else ConceptMapEquivalence.WIDER
-            else -> null
-        }
-    }
-
-    private fun getVertexByCode(searchCode: String) = neighborhoodGraph.vertexSet().find { it.code == searchCode }
-
-    private fun getPaths(
-        sourceVertex: CombinedVertex?,
-        targetVertex: CombinedVertex?,
-    ): List<GraphPath<CombinedVertex, CombinedEdge>> = when {
-        sourceVertex == null || targetVertex == null -> listOf()
-        else -> AllDirectedPaths(neighborhoodGraph).getAllPaths(sourceVertex,
-            targetVertex,
-            true,
-            neighborhoodGraph.edgeSet().size) // a path can't be longer than one using all edges
-    }
-
-
     override fun toString(): String {
         return "ConceptMapElement(code=${code.value}, display=${display.value})"
     }
@@ -0,0 +1,92 @@
+package terminodiff.terminodiff.engine.conceptmap
+
+import kotlinx.coroutines.Dispatchers
+import org.hl7.fhir.r4.model.Enumerations.ConceptMapEquivalence
+import org.jgrapht.GraphPath
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import terminodiff.engine.graph.parallelForEachIndex
+import terminodiff.terminodiff.engine.graph.CombinedEdge
+import terminodiff.terminodiff.engine.graph.CombinedGraph
+import terminodiff.terminodiff.engine.graph.CombinedGraphBuilder
+import terminodiff.terminodiff.engine.graph.CombinedVertex
+import terminodiff.terminodiff.engine.graph.GraphSide
+import terminodiff.terminodiff.engine.graph.SidePathSearch
+import java.util.concurrent.atomic.AtomicInteger
+
+private val logger: Logger = LoggerFactory.getLogger(ConceptMapTargetInference::class.java)
+
+/**
+ * a target for a concept map element from the neighborhood of its concept, with the inferred equivalence, if any
+ */
+data class InferredTarget(val code: String, val equivalence: ConceptMapEquivalence?)
+
+/**
+ * infers the targets of the concept map elements from the neighborhoods of their concepts in the combined graph.
+ *
+ * Many concepts share their neighborhood (c.f. [CombinedGraphBuilder.componentOf]), so the distinct neighborhoods are
+ * computed first, and then the targets of the concepts, both concurrently on [Dispatchers.Default]. The neighborhoods
+ * are only kept for the job, not in the cache of the graph views. The job is cancelled with the coroutine that runs it.
+ */
+class ConceptMapTargetInference(
+    private val combinedGraph: CombinedGraphBuilder,
+    private val layers: Int = 1,
+) {
+
+    /**
+     * @param onProgress called with the number of concepts whose targets are inferred, in steps of about a percent
+     */
+    suspend fun inferAll(
+        codes: List<String>,
+        onProgress: (Int) -> Unit = {},
+    ): Map<String, List<InferredTarget>> {
+        val components = codes.map(combinedGraph::componentOf).distinct()
+        val componentNeighborhoods = arrayOfNulls<CombinedGraph>(components.size)
+        parallelForEachIndex(components.size, MIN_CHUNK_SIZE) { i ->
+            componentNeighborhoods[i] = combinedGraph.computeSubgraph(components[i], layers)
+        }
+        val neighborhoods = components.indices.associate { components[it] to componentNeighborhoods[it]!! }
+        logger.info("computed ${neighborhoods.size} neighborhood(-s) for ${codes.size} concept(-s)")
+
+        val results = arrayOfNulls<List<InferredTarget>>(codes.size)
+        val completed = AtomicInteger(0)
+        val progressStep = codes.size / 100 + 1
+        parallelForEachIndex(codes.size, MIN_CHUNK_SIZE) { i ->
+            val code = codes[i]
+            results[i] = inferTargets(code, neighborhoods.getValue(combinedGraph.componentOf(code)))
+            val count = completed.incrementAndGet()
+            if (count % progressStep == 0 || count == codes.size) onProgress(count)
+        }
+        return codes.indices.associate { codes[it] to results[it]!! }
+    }
+
+    /**
+     * the concepts in both sides that are reachable from the concept with [code] in its [neighborhood] on a path with
+     * an edge that is only in one side. The equivalence is inferred from the shortest path that only follows edges of
+     * one side.
+     */
+    fun inferTargets(code: String, neighborhood: CombinedGraph): List<InferredTarget> {
+        val vertex = neighborhood.nodeByCode(code) ?: return emptyList()
+        // one search from the vertex answers the path questions for all targets
+        val pathSearch = SidePathSearch(neighborhood, vertex)
+        return neighborhood.vertexSet().filter { it.code != code } // the node itself can't be mapped to
+            .filter { it.side == GraphSide.BOTH } // we can only map to nodes that are shared across versions
+            .filter { v ->
+                // consider nodes that are reachable from the source vertex,
+                // disregarding those paths that are entirely following nodes in both CS versions
+                pathSearch.hasPathWithDifference(v)
+            }.map { target ->
+                InferredTarget(target.code, pathSearch.shortestUniformPath(target)?.let(::inferEquivalenceFromPath))
+            }
+    }
+
+    private fun inferEquivalenceFromPath(path: GraphPath<CombinedVertex, CombinedEdge>): ConceptMapEquivalence? = when {
+        path.edgeList.all { it.side == GraphSide.LEFT } -> ConceptMapEquivalence.WIDER
+        path.edgeList.all { it.side == GraphSide.RIGHT } -> ConceptMapEquivalence.NARROWER
+        else -> null
+    }
+
+    companion object {
+        private const val MIN_CHUNK_SIZE = 16
+    }
+}
@@ -0,0 +1,97 @@
+package terminodiff.engine.concepts
+
+import java.util.*
+
+/**
+ * the classification of a concept for the concept diff table, in the order in which the table shows them
+ */
+enum class OverallComparison {
+    ONLY_LEFT,
+    ONLY_RIGHT,
+    DIFFERENT,
+    IDENTICAL
+}
+
+/**
+ * the [OverallComparison] of every concept of both code systems, classified in a single pass when the concept diff is
+ * built. The concepts are stored in the order of the table (by classification, then by code), with one byte per
+ * concept, so that a filter is a [BitSet] over the positions, and the filtered view is already sorted.
+ */
+class ConceptClassificationIndex private constructor(
+    /**
+     * the codes of all concepts, sorted by their [OverallComparison], then by code
+     */
+    val codes: List<String>,
+    private val comparisons: ByteArray,
+) {
+    private val counts = IntArray(comparisonValues.size).also { counts ->
+        comparisons.forEach { counts[it.toInt()]++ }
+    }
+
+    private val filters = HashMap<Set<OverallComparison>, BitSet>()
+    private val filterPositions = HashMap<Set<OverallComparison>, IntArray>()
+
+    val size get() = codes.size
+
+    fun comparisonAt(position: Int): OverallComparison = comparisonValues[comparisons[position].toInt()]
+
+    /**
+     * the number of concepts with one of the [accepted] classifications
+     */
+    fun count(accepted: Set<OverallComparison>) = accepted.sumOf { counts[it.ordinal] }
+
+    /**
+     * the positions of the concepts with one of the [accepted] classifications; the bit sets are cached per filter
+     */
+    fun filter(accepted: Set<OverallComparison>): BitSet = synchronized(filters) {
+        filters.getOrPut(accepted) {
+            BitSet(size).also { bits ->
+                comparisons.forEachIndexed { position, comparison ->
+                    if (comparisonValues[comparison.toInt()] in accepted) bits.set(position)
+                }
+            }
+        }
+    }
+
+    /**
+     * the positions of the concepts with one of the [accepted] classifications, in the order of the table. The arrays
+     * are cached (and shared) per filter, so they must not be modified.
+     */
+    fun positionsOf(accepted: Set<OverallComparison>): IntArray = synchronized(filterPositions) {
+        filterPositions.getOrPut(accepted) { filter(accepted).stream().toArray() }
+    }
+
+    companion object {
+        private val comparisonValues = OverallComparison.values()
+
+        fun build(
+            onlyInLeft: List<String>,
+            onlyInRight: List<String>,
+            conceptDiff: ConceptDiffIndex,
+        ): ConceptClassificationIndex {
+            val codes = ArrayList<String>(onlyInLeft.size + onlyInRight.size + conceptDiff.size)
+            val comparisons = ByteArray(onlyInLeft.size + onlyInRight.size + conceptDiff.size)
+            onlyInLeft.sorted().forEach { code ->
+                comparisons[codes.size] = OverallComparison.ONLY_LEFT.ordinal.toByte()
+                codes.add(code)
+            }
+            onlyInRight.sorted().forEach { code ->
+                comparisons[codes.size] = OverallComparison.ONLY_RIGHT.ordinal.toByte()
+                codes.add(code)
+            }
+            // the codes of the concept diff are sorted, so both classes stay sorted
+            val identical = ArrayList<String>()
+            conceptDiff.codes.forEachIndexed { position, code ->
+                if (conceptDiff.isDifferentAt(position)) {
+                    comparisons[codes.size] = OverallComparison.DIFFERENT.ordinal.toByte()
+                    codes.add(code)
+                } else identical.add(code)
+            }
+            identical.forEach { code ->
+                comparisons[codes.size] = OverallComparison.IDENTICAL.ordinal.toByte()
+                codes.add(code)
+            }
+            return ConceptClassificationIndex(codes, comparisons)
+        }
+    }
+}
@@ -5,8 +5,8 @@ import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 import terminodiff.engine.graph.FhirConceptDetails
 import terminodiff.engine.graph.PropertyMap
+import terminodiff.engine.graph.designationKey
 import terminodiff.i18n.LocalizedStrings
-import terminodiff.terminodiff.engine.metadata.formatCoding
 
 typealias PropertyDiff = List<PropertyDiffResult>
 typealias DesignationKey = Pair<String?, String?>
@@ -27,8 +27,9 @@ data class ConceptDiff(
 
     companion object {
 
-        private val diffItems =
-            listOf(ConceptDiffItem({ display }, { display }), ConceptDiffItem({ definition }, { definition }))
+        val displayItem = ConceptDiffItem({ display }, { display })
+        val definitionItem = ConceptDiffItem({ definition }, { definition })
+        private val diffItems = listOf(displayItem, definitionItem)
 
         private fun getPropertyType(
             leftProperties: PropertyMap,
@@ -60,32 +61,59 @@ data class ConceptDiff(
             leftProperties: PropertyMap,
             rightProperties: PropertyMap,
         ): ConceptDiff {
+            if (leftConcept.fingerprint == rightConcept.fingerprint) {
+                return identicalConcept(leftConcept, leftProperties, rightProperties)
+            }
             val conceptDiff = diffItems.map { di ->
                 di.compare(leftConcept, rightConcept)
             }
-            val leftProperty = leftConcept.property
-            val rightProperty = rightConcept.property
-            val propertyDiff: PropertyDiff = KeyedListDiff(left = leftProperty,
-                right = rightProperty,
+            val propertyDiff = propertyDiff(KeyedListDiff(left = leftConcept.property,
+                right = rightConcept.property,
                 getKey = { it.propertyCode },
-                getStringValue = { it.value }).executeDiff().mapNotNull { result ->
-                getPropertyType(leftProperties, rightProperties, result.key, result.result)?.let { propertyType ->
-                    PropertyDiffResult(result = result.result,
-                        key = result.key,
-                        leftValue = result.leftValue,
-                        rightValue = result.rightValue,
-                        propertyType = propertyType)
-                }
-
-            }
+                getStringValue = { it.value }).executeDiff(), leftProperties, rightProperties)
             val designationDiff = KeyedListDiff(left = leftConcept.designation,
                 right = rightConcept.designation,
-                getKey = { it.language to it.use?.let { coding -> formatCoding(coding) } },
+                getKey = ::designationKey,
                 getStringValue = {
                     it.value
                 }).executeDiff()
             return ConceptDiff(conceptDiff, propertyDiff, designationDiff)
         }
+
+        /**
+         * the diff of two concepts with the same content fingerprint, which only needs the elements of the left
+         * concept
+         */
+        private fun identicalConcept(
+            concept: FhirConceptDetails,
+            leftProperties: PropertyMap,
+            rightProperties: PropertyMap,
+        ): ConceptDiff {
+            val conceptDiff = diffItems.map { di -> ConceptDiffResult(di, ConceptDiffItem.ConceptDiffResultEnum.IDENTICAL) }
+            val propertyDiff = propertyDiff(KeyedListDiff(left = concept.property,
+                right = concept.property,
+                getKey = { it.propertyCode },
+                getStringValue = { it.value }).identicalDiff(), leftProperties, rightProperties)
+            val designationDiff = KeyedListDiff(left = concept.designation,
+                right = concept.designation,
+                getKey = ::designationKey,
+                getStringValue = { it.value }).identicalDiff()
+            return ConceptDiff(conceptDiff, propertyDiff, designationDiff)
+        }
+
+        private fun propertyDiff(
+            results: List<KeyedListDiffResult<String, String>>,
+            leftProperties: PropertyMap,
+            rightProperties: PropertyMap,
+        ): PropertyDiff = results.mapNotNull { result ->
+            getPropertyType(leftProperties, rightProperties, result.key, result.result)?.let { propertyType ->
+                PropertyDiffResult(result = result.result,
+                    key = result.key,
+                    leftValue = result.leftValue,
+                    rightValue = result.rightValue,
+                    propertyType = propertyType)
+            }
+        }
     }
 }
 
@@ -128,35 +156,64 @@ class KeyedListDiff<ElementType, KeyType>(
     val getKey: (ElementType) -> KeyType,
     val getStringValue: (ElementType) -> String?,
 ) {
+    /**
+     * groups both lists by key once and emits the results in a single pass over the groups: first the keys only in
+     * the left list, then the keys only in the right list, then the keys in both lists, each in the order of their
+     * first occurrence.
+     */
     fun executeDiff(): MutableList<KeyedListDiffResult<KeyType, String>> {
-        val diffResult = mutableListOf<KeyedListDiffResult<KeyType, String>>()
-        val leftKeys = left.map { getKey.invoke(it) }.toSet()
-        val rightKeys = right.map { getKey.invoke(it) }.toSet()
-        val onlyInLeft = leftKeys.filter { it !in rightKeys }.toSet()
-        onlyInLeft.forEach { key ->
-            diffResult.add(KeyedListDiffResult(result = KeyedListDiffResultKind.KEY_ONLY_IN_LEFT,
-                key = key,
-                leftValue = left.filter { et -> getKey.invoke(et) == key }.map(getStringValue)))
+        if (left.isEmpty() && right.isEmpty()) return mutableListOf()
+        val leftKeys = left.map(getKey)
+        val leftValues = left.map(getStringValue)
+        val rightKeys = right.map(getKey)
+        val rightValues = right.map(getStringValue)
+        val leftGroups = groupValues(leftKeys, leftValues)
+        if (leftKeys == rightKeys && leftValues == rightValues) {
+            // the lists are identical element-wise, so the groups on the right are the same
+            return identicalResults(leftGroups)
         }
-        val onlyInRight = rightKeys.filter { it !in leftKeys }.toSet()
-        onlyInRight.forEach { key ->
-            diffResult.add(KeyedListDiffResult(result = KeyedListDiffResultKind.KEY_ONLY_IN_RIGHT,
+        val rightGroups = groupValues(rightKeys, rightValues)
+        val diffResult = ArrayList<KeyedListDiffResult<KeyType, String>>(leftGroups.size + rightGroups.size)
+        val inBoth = mutableListOf<KeyedListDiffResult<KeyType, String>>()
+        leftGroups.forEach { (key, valueLeft) ->
+            when (val valueRight = rightGroups[key]) {
+                null -> diffResult.add(KeyedListDiffResult(result = KeyedListDiffResultKind.KEY_ONLY_IN_LEFT,
+                    key = key,
+                    leftValue = valueLeft))
+                else -> inBoth.add(KeyedListDiffResult(result = when (valueLeft) {
+                    valueRight -> KeyedListDiffResultKind.IDENTICAL
+                    else -> KeyedListDiffResultKind.VALUE_DIFFERENT
+                }, key = key, leftValue = valueLeft, rightValue = valueRight))
+            }
+        }
+        rightGroups.forEach { (key, valueRight) ->
+            if (key !in leftGroups) diffResult.add(KeyedListDiffResult(result = KeyedListDiffResultKind.KEY_ONLY_IN_RIGHT,
                 key = key,
-                rightValue = right.filter { et -> getKey.invoke(et) == key }.map(getStringValue)))
+                rightValue = valueRight))
         }
-        val inBoth = leftKeys.plus(rightKeys).minus(onlyInLeft).minus(onlyInRight)
-        diffResult.addAll(left.filter { getKey.invoke(it) in inBoth }.groupBy(getKey).mapNotNull { l ->
-            val valueLeft = l.value.map(getStringValue)
-            val matchingRight = right.filter { r -> getKey.invoke(r) == l.key }
-            val valueRight = matchingRight.map(getStringValue)
-            val result = when {
-                valueLeft != valueRight -> KeyedListDiffResultKind.VALUE_DIFFERENT
-                else -> KeyedListDiffResultKind.IDENTICAL
-            }
-            KeyedListDiffResult(result = result, key = l.key, leftValue = valueLeft, rightValue = valueRight)
-        })
+        diffResult.addAll(inBoth)
         return diffResult
     }
+
+    /**
+     * the diff for lists that are known to contain the same values per key, e.g. from a content fingerprint. Only
+     * the left list is evaluated.
+     */
+    fun identicalDiff(): MutableList<KeyedListDiffResult<KeyType, String>> {
+        if (left.isEmpty()) return mutableListOf()
+        return identicalResults(groupValues(left.map(getKey), left.map(getStringValue)))
+    }
+
+    private fun identicalResults(groups: Map<KeyType, MutableList<String?>>) =
+        groups.mapTo(ArrayList(groups.size)) { (key, values) ->
+            KeyedListDiffResult(KeyedListDiffResultKind.IDENTICAL, key, values, values)
+        }
+
+    private fun groupValues(keys: List<KeyType>, values: List<String?>): LinkedHashMap<KeyType, MutableList<String?>> {
+        val groups = LinkedHashMap<KeyType, MutableList<String?>>()
+        keys.forEachIndexed { i, key -> groups.getOrPut(key) { mutableListOf() }.add(values[i]) }
+        return groups
+    }
 }
 
 open class KeyedListDiffResult<K, V>(
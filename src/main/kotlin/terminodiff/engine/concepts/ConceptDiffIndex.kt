@@ -0,0 +1,98 @@
+package terminodiff.engine.concepts
+
+/**
+ * the concept diff of the concepts that are in both code systems. Only a compact classification ([ConceptDiffFlags])
+ * is kept for every concept; the detailed [ConceptDiff] is computed on demand, e.g. for the rows of the concept diff
+ * table that are shown, and the most recently used ones are kept in a bounded cache.
+ */
+class ConceptDiffIndex(
+    /**
+     * the codes of the concepts in both code systems, sorted
+     */
+    val codes: List<String>,
+    private val flags: ByteArray,
+    private val computeDiff: (String) -> ConceptDiff,
+) {
+    private val cache = object : LinkedHashMap<String, ConceptDiff>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, ConceptDiff>?) = size > CACHE_SIZE
+    }
+
+    val size get() = codes.size
+
+    val differentCodes: List<String> by lazy { codes.filterIndexed { i, _ -> flags[i].toInt() != 0 } }
+
+    val identicalCodes: List<String> by lazy { codes.filterIndexed { i, _ -> flags[i].toInt() == 0 } }
+
+    private fun indexOf(code: String) = codes.binarySearch(code)
+
+    operator fun contains(code: String) = indexOf(code) >= 0
+
+    /**
+     * the [ConceptDiffFlags] of the concept, or null if it is not in both code systems
+     */
+    fun flagsOf(code: String): Int? = indexOf(code).let { if (it < 0) null else flags[it].toInt() }
+
+    fun isDifferent(code: String) = (flagsOf(code) ?: 0) != 0
+
+    /**
+     * whether the concept at [position] in [codes] is different, without looking up its code
+     */
+    fun isDifferentAt(position: Int) = flags[position].toInt() != 0
+
+    fun getConceptDiff(code: String): ConceptDiff? {
+        if (code !in this) return null
+        synchronized(cache) {
+            cache[code]?.let { return it }
+        }
+        val conceptDiff = computeDiff(code)
+        synchronized(cache) {
+            cache[code] = conceptDiff
+        }
+        return conceptDiff
+    }
+
+    /**
+     * the concept diff, without using or filling the cache, for walks over many concepts (e.g. exports)
+     */
+    fun computeConceptDiff(code: String): ConceptDiff? = if (code in this) computeDiff(code) else null
+
+    /**
+     * the number of properties and designations that are different in both code systems, e.g. for sorting. The
+     * detailed diff is only computed if the flags of the concept show such differences, and without the cache.
+     */
+    fun countPropertyDesignationDifferences(code: String): Int {
+        val flags = flagsOf(code) ?: return 0
+        if (flags and (ConceptDiffFlags.PROPERTIES_DIFFERENT or ConceptDiffFlags.DESIGNATIONS_DIFFERENT) == 0) return 0
+        val conceptDiff = computeDiff(code)
+        return conceptDiff.propertyComparison.count { it.result != KeyedListDiffResultKind.IDENTICAL } +
+                conceptDiff.designationComparison.count { it.result != KeyedListDiffResultKind.IDENTICAL }
+    }
+
+    companion object {
+        private const val CACHE_SIZE = 512
+    }
+}
+
+object ConceptDiffFlags {
+    const val DISPLAY_DIFFERENT = 1
+    const val DEFINITION_DIFFERENT = 2
+    const val PROPERTIES_DIFFERENT = 4
+    const val DESIGNATIONS_DIFFERENT = 8
+
+    fun of(conceptDiff: ConceptDiff): Int {
+        var flags = 0
+        conceptDiff.conceptComparison.forEach { result ->
+            if (result.result == ConceptDiffItem.ConceptDiffResultEnum.DIFFERENT) flags = flags or when (result.diffItem) {
+                ConceptDiff.displayItem -> DISPLAY_DIFFERENT
+                else -> DEFINITION_DIFFERENT
+            }
+        }
+        if (conceptDiff.propertyComparison.any { it.result != KeyedListDiffResultKind.IDENTICAL }) {
+            flags = flags or PROPERTIES_DIFFERENT
+        }
+        if (conceptDiff.designationComparison.any { it.result != KeyedListDiffResultKind.IDENTICAL }) {
+            flags = flags or DESIGNATIONS_DIFFERENT
+        }
+        return flags
+    }
+}
@@ -0,0 +1,357 @@
+package terminodiff.engine.concepts
+
+import kotlinx.coroutines.Dispatchers
+import terminodiff.engine.graph.CodeSystemDiffBuilder
+import terminodiff.engine.graph.FhirConceptDetails
+import terminodiff.engine.graph.designationKey
+import terminodiff.engine.graph.parallelForEachIndex
+import java.util.*
+
+private typealias ConceptPredicate = (ConceptQueryRow) -> Boolean
+
+/**
+ * tests whether a property (or designation, display, definition) changed, from the kind of the change and the values
+ * in the left and right concept
+ */
+private typealias ChangeTest = (KeyedListDiffResultKind, List<String?>?, List<String?>?) -> Boolean
+
+/**
+ * a syntax error in a concept query, at [position] (the index of the character) in the query
+ */
+class ConceptQuerySyntaxException(message: String, val position: Int) : RuntimeException(message)
+
+/**
+ * a concept as seen by a [ConceptQuery]. The detailed diff is only computed if a condition needs it, after the flags
+ * of the concept showed that it can match.
+ */
+class ConceptQueryRow(
+    val comparison: OverallComparison,
+    val left: FhirConceptDetails?,
+    val right: FhirConceptDetails?,
+    private val flags: Int,
+    private val computeDiff: () -> ConceptDiff?,
+) {
+    val diff: ConceptDiff? by lazy(LazyThreadSafetyMode.NONE) { computeDiff() }
+
+    val concepts get() = listOfNotNull(left, right)
+
+    /**
+     * whether the concept is in both code systems, and the [ConceptDiffFlags] show the difference [flag]
+     */
+    fun isDifferent(flag: Int) = comparison == OverallComparison.DIFFERENT && flags and flag != 0
+}
+
+/**
+ * a query over the concepts of the concept diff, compiled to a predicate. The grammar is (keywords are
+ * case-insensitive, values are words or quoted strings):
+ *
+ * ```
+ * query     := and ("or" and)*
+ * and       := not ("and" not)*
+ * not       := "not" not | "(" query ")" | condition
+ * condition := "side" "=" ("left" | "right" | "both")
+ *            | "status" "=" ("identical" | "different")
+ *            | "code" textTest
+ *            | ("display" | "definition") (textTest | change)
+ *            | "property" code (textTest | change)
+ *            | "designation" ("language" value | "use" value)* (textTest | change)
+ * textTest  := ("=" | "contains" | "startswith") value | "exists"
+ * change    := "changed" ["from" value] ["to" value] | "added" | "removed"
+ * ```
+ *
+ * e.g. `property inactive changed to true and display contains 'tumor'`. Text tests ignore the case, and match if
+ * they match the concept in either code system. Changes are only found in concepts that are in both code systems;
+ * "added" and "removed" values are only in the right and left concept, and "changed" includes them.
+ */
+class ConceptQuery private constructor(val text: String, private val predicate: ConceptPredicate) {
+
+    fun matches(row: ConceptQueryRow) = predicate.invoke(row)
+
+    /**
+     * evaluates the query for all concepts of [diff], concurrently on [Dispatchers.Default]
+     *
+     * @return the positions of the matching concepts in the [CodeSystemDiffBuilder.conceptClassification], i.e. in
+     * the order of the concept diff table
+     */
+    suspend fun evaluate(diff: CodeSystemDiffBuilder): IntArray {
+        val classification = diff.conceptClassification
+        val conceptDiff = diff.conceptDifferences
+        val matches = BooleanArray(classification.size)
+        parallelForEachIndex(classification.size, MIN_CHUNK_SIZE) { position ->
+            val code = classification.codes[position]
+            val comparison = classification.comparisonAt(position)
+            val flags = if (comparison == OverallComparison.DIFFERENT) conceptDiff.flagsOf(code) ?: 0 else 0
+            matches[position] = matches(ConceptQueryRow(comparison = comparison,
+                left = diff.leftBuilder.nodeTree[code],
+                right = diff.rightBuilder.nodeTree[code],
+                flags = flags) { conceptDiff.computeConceptDiff(code) })
+        }
+        return matches.indices.filter { matches[it] }.toIntArray()
+    }
+
+    companion object {
+        private const val MIN_CHUNK_SIZE = 1024
+
+        /**
+         * @throws ConceptQuerySyntaxException if the query is not valid
+         */
+        fun compile(text: String) = ConceptQuery(text, Parser(text).parseQuery())
+    }
+}
+
+private data class Token(val text: String, val position: Int, val isQuoted: Boolean) {
+    /**
+     * quoted strings are never keywords
+     */
+    val keyword: String? get() = if (isQuoted) null else text.lowercase(Locale.ROOT)
+}
+
+private const val SYMBOLS = "()="
+private const val QUOTES = "'\""
+private const val DELIMITERS = SYMBOLS + QUOTES
+
+private fun tokenize(text: String): List<Token> {
+    val tokens = mutableListOf<Token>()
+    var i = 0
+    while (i < text.length) {
+        val c = text[i]
+        when {
+            c.isWhitespace() -> i++
+            c in SYMBOLS -> tokens.add(Token(c.toString(), i++, isQuoted = false))
+            c in QUOTES -> {
+                val end = text.indexOf(c, i + 1)
+                if (end < 0) throw ConceptQuerySyntaxException("the string is not closed", i)
+                tokens.add(Token(text.substring(i + 1, end), i, isQuoted = true))
+                i = end + 1
+            }
+            else -> {
+                var end = i
+                while (end < text.length && !text[end].isWhitespace() && text[end] !in DELIMITERS) end++
+                tokens.add(Token(text.substring(i, end), i, isQuoted = false))
+                i = end
+            }
+        }
+    }
+    return tokens
+}
+
+/**
+ * a recursive descent parser for the grammar in [ConceptQuery], which builds the predicate while parsing
+ */
+private class Parser(private val text: String) {
+    private val tokens = tokenize(text)
+    private var next = 0
+
+    fun parseQuery(): ConceptPredicate {
+        if (tokens.isEmpty()) throw ConceptQuerySyntaxException("the query is empty", 0)
+        val predicate = parseOr()
+        peek()?.let { throw syntaxError("unexpected '${it.text}'", it) }
+        return predicate
+    }
+
+    private fun parseOr(): ConceptPredicate {
+        var predicate = parseAnd()
+        while (accept("or")) {
+            val left = predicate
+            val right = parseAnd()
+            predicate = { row -> left(row) || right(row) }
+        }
+        return predicate
+    }
+
+    private fun parseAnd(): ConceptPredicate {
+        var predicate = parseNot()
+        while (accept("and")) {
+            val left = predicate
+            val right = parseNot()
+            predicate = { row -> left(row) && right(row) }
+        }
+        return predicate
+    }
+
+    private fun parseNot(): ConceptPredicate = when {
+        accept("not") -> parseNot().let { predicate -> { row -> !predicate(row) } }
+        accept("(") -> parseOr().also { expect(")") }
+        else -> parseCondition()
+    }
+
+    private fun parseCondition(): ConceptPredicate {
+        val field = nextToken("a condition")
+        return when (field.keyword) {
+            "side" -> {
+                expect("=")
+                comparisonIn(when (expectOneOf("left", "right", "both")) {
+                    "left" -> setOf(OverallComparison.ONLY_LEFT)
+                    "right" -> setOf(OverallComparison.ONLY_RIGHT)
+                    else -> setOf(OverallComparison.DIFFERENT, OverallComparison.IDENTICAL)
+                })
+            }
+            "status" -> {
+                expect("=")
+                comparisonIn(when (expectOneOf("identical", "different")) {
+                    "identical" -> setOf(OverallComparison.IDENTICAL)
+                    else -> setOf(OverallComparison.DIFFERENT)
+                })
+            }
+            "code" -> parseCode()
+            "display" -> parseConceptText(FhirConceptDetails::display, ConceptDiffFlags.DISPLAY_DIFFERENT)
+            "definition" -> parseConceptText(FhirConceptDetails::definition, ConceptDiffFlags.DEFINITION_DIFFERENT)
+            "property" -> parseProperty(nextValue("a property code"))
+            "designation" -> parseDesignation()
+            else -> throw syntaxError("unknown field '${field.text}', expected side, status, code, display, " +
+                    "definition, property or designation", field)
+        }
+    }
+
+    private fun comparisonIn(accepted: Set<OverallComparison>): ConceptPredicate = { row -> row.comparison in accepted }
+
+    private fun parseCode(): ConceptPredicate {
+        val token = nextToken("a test of the code")
+        val test = parseTextTest(token) ?: throw syntaxError("expected =, contains, startswith or exists", token)
+        return { row -> row.concepts.any { test(it.code) } }
+    }
+
+    private fun parseConceptText(getValue: (FhirConceptDetails) -> String?, flag: Int): ConceptPredicate {
+        val token = nextToken("a test")
+        parseChange(token)?.let { change ->
+            return { row ->
+                row.isDifferent(flag) && getValue(row.left!!).let { left ->
+                    val right = getValue(row.right!!)
+                    change(kindOfChange(left, right), listOf(left), listOf(right))
+                }
+            }
+        }
+        val test = parseTextTest(token) ?: throw syntaxError(EXPECTED_TEST, token)
+        return { row -> row.concepts.any { test(getValue(it)) } }
+    }
+
+    private fun parseProperty(code: String): ConceptPredicate {
+        val token = nextToken("a test of the property")
+        parseChange(token)?.let { change ->
+            return { row ->
+                row.isDifferent(ConceptDiffFlags.PROPERTIES_DIFFERENT) && row.diff?.propertyComparison?.any {
+                    it.key == code && change(it.result, it.leftValue, it.rightValue)
+                } == true
+            }
+        }
+        val test = parseTextTest(token) ?: throw syntaxError(EXPECTED_TEST, token)
+        return { row ->
+            row.concepts.any { concept -> concept.property.any { it.propertyCode == code && test(it.value) } }
+        }
+    }
+
+    private fun parseDesignation(): ConceptPredicate {
+        var language: String? = null
+        var use: String? = null
+        while (true) when (peek()?.keyword) {
+            "language" -> {
+                next++
+                language = nextValue("a language")
+            }
+            "use" -> {
+                next++
+                use = nextValue("a designation use")
+            }
+            else -> break
+        }
+        // the use is matched in the formatted coding, so that it can be given by its code or display
+        val matchesKey: (DesignationKey) -> Boolean = { (keyLanguage, keyUse) ->
+            (language == null || language.equals(keyLanguage, ignoreCase = true)) &&
+                    (use == null || keyUse?.contains(use, ignoreCase = true) == true)
+        }
+        val token = nextToken("a test of the designation")
+        parseChange(token)?.let { change ->
+            return { row ->
+                row.isDifferent(ConceptDiffFlags.DESIGNATIONS_DIFFERENT) && row.diff?.designationComparison?.any {
+                    matchesKey(it.key) && change(it.result, it.leftValue, it.rightValue)
+                } == true
+            }
+        }
+        val test = parseTextTest(token) ?: throw syntaxError(EXPECTED_TEST, token)
+        return { row ->
+            row.concepts.any { concept ->
+                concept.designation.any { designation ->
+                    matchesKey(designationKey(designation)) && test(designation.value)
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the test, or null if [token] does not start a test of a text
+     */
+    private fun parseTextTest(token: Token): ((String?) -> Boolean)? = when (token.keyword) {
+        "=" -> nextValue("a value").let { value -> { text -> text.equals(value, ignoreCase = true) } }
+        "contains" -> nextValue("a value").let { value -> { text -> text?.contains(value, ignoreCase = true) == true } }
+        "startswith" -> nextValue("a value").let { value ->
+            { text -> text?.startsWith(value, ignoreCase = true) == true }
+        }
+        "exists" -> textTest { text -> text != null }
+        else -> null
+    }
+
+    private fun textTest(test: (String?) -> Boolean) = test
+
+    /**
+     * @return the test, or null if [token] does not start a change
+     */
+    private fun parseChange(token: Token): ChangeTest? = when (token.keyword) {
+        "added" -> changeTest { kind, _, _ -> kind == KeyedListDiffResultKind.KEY_ONLY_IN_RIGHT }
+        "removed" -> changeTest { kind, _, _ -> kind == KeyedListDiffResultKind.KEY_ONLY_IN_LEFT }
+        "changed" -> {
+            val from = if (accept("from")) nextValue("a value") else null
+            val to = if (accept("to")) nextValue("a value") else null
+            changeTest { kind, leftValues, rightValues ->
+                kind != KeyedListDiffResultKind.IDENTICAL &&
+                        (from == null || leftValues?.any { it.equals(from, ignoreCase = true) } == true) &&
+                        (to == null || rightValues?.any { it.equals(to, ignoreCase = true) } == true)
+            }
+        }
+        else -> null
+    }
+
+    private fun changeTest(test: ChangeTest) = test
+
+    private fun kindOfChange(left: String?, right: String?) = when {
+        left == right -> KeyedListDiffResultKind.IDENTICAL
+        left == null -> KeyedListDiffResultKind.KEY_ONLY_IN_RIGHT
+        right == null -> KeyedListDiffResultKind.KEY_ONLY_IN_LEFT
+        else -> KeyedListDiffResultKind.VALUE_DIFFERENT
+    }
+
+    private fun peek(): Token? = tokens.getOrNull(next)
+
+    private fun accept(keyword: String): Boolean = when (peek()?.keyword) {
+        keyword -> {
+            next++
+            true
+        }
+        else -> false
+    }
+
+    private fun nextToken(expected: String): Token =
+        peek()?.also { next++ } ?: throw ConceptQuerySyntaxException("expected $expected", text.length)
+
+    private fun expect(keyword: String) {
+        val token = nextToken("'$keyword'")
+        if (token.keyword != keyword) throw syntaxError("expected '$keyword'", token)
+    }
+
+    private fun expectOneOf(vararg keywords: String): String {
+        val token = nextToken(keywords.joinToString(" or "))
+        return token.keyword?.takeIf { it in keywords }
+            ?: throw syntaxError("expected ${keywords.joinToString(" or ")}", token)
+    }
+
+    private fun nextValue(expected: String): String {
+        val token = nextToken(expected)
+        if (!token.isQuoted && token.text in SYMBOLS) throw syntaxError("expected $expected", token)
+        return token.text
+    }
+
+    private fun syntaxError(message: String, token: Token) = ConceptQuerySyntaxException(message, token.position)
+
+    companion object {
+        private const val EXPECTED_TEST = "expected =, contains, startswith, exists, changed, added or removed"
+    }
+}
@@ -0,0 +1,115 @@
+package terminodiff.engine.export
+
+import terminodiff.engine.concepts.ConceptDiff
+import terminodiff.engine.concepts.ConceptDiffItem
+import terminodiff.engine.concepts.KeyedListDiffResultKind
+import terminodiff.engine.graph.CodeSystemDiffBuilder
+import terminodiff.engine.graph.FhirConceptDetails
+import terminodiff.terminodiff.engine.graph.GraphSide
+
+enum class DiffRecordType {
+    METADATA, CONCEPT_ONLY_IN_LEFT, CONCEPT_ONLY_IN_RIGHT, CONCEPT_FIELD, PROPERTY, DESIGNATION, EDGE_ONLY_IN_LEFT,
+    EDGE_ONLY_IN_RIGHT
+}
+
+/**
+ * one row of an export. Which fields are set depends on the [type]:
+ * - concepts only in one side: the display of the concept as the value of that side
+ * - [DiffRecordType.METADATA]: the FHIR element name of the metadata item as [element], and the values
+ * - [DiffRecordType.CONCEPT_FIELD]: the changed field of the concept ("display" or "definition") as [element]
+ * - [DiffRecordType.PROPERTY]: the property code as [key]
+ * - [DiffRecordType.DESIGNATION]: the language and use of the designation as [key], separated by "|"
+ * - edges: the source code as [code], the property code as [element] and the target code as [key]
+ *
+ * If there are multiple values for a key, they are joined with ", ".
+ */
+data class DiffRecord(
+    val type: DiffRecordType,
+    val code: String? = null,
+    val element: String? = null,
+    val key: String? = null,
+    val result: String? = null,
+    val left: String? = null,
+    val right: String? = null,
+)
+
+interface DiffRecordWriter : AutoCloseable {
+    fun write(record: DiffRecord)
+}
+
+/**
+ * streams the results of a diff to a [DiffRecordWriter], one record at a time. The detailed concept diffs are computed
+ * for one concept at a time (bypassing the cache of the concept diff), so that the memory that is used does not
+ * depend on the number of concepts. This requires [CodeSystemDiffBuilder.buildConceptDiff] to have run, the diff
+ * graph is not needed.
+ */
+class DiffExporter(private val diff: CodeSystemDiffBuilder) {
+
+    fun export(writer: DiffRecordWriter) {
+        exportMetadata(writer)
+        diff.onlyInLeftConcepts.forEach { code ->
+            val display = diff.leftBuilder.nodeTree[code]?.display
+            writer.write(DiffRecord(DiffRecordType.CONCEPT_ONLY_IN_LEFT, code, left = display))
+        }
+        diff.onlyInRightConcepts.forEach { code ->
+            val display = diff.rightBuilder.nodeTree[code]?.display
+            writer.write(DiffRecord(DiffRecordType.CONCEPT_ONLY_IN_RIGHT, code, right = display))
+        }
+        diff.conceptDifferences.differentCodes.forEach { code ->
+            val conceptDiff = diff.conceptDifferences.computeConceptDiff(code) ?: return@forEach
+            exportConceptDiff(writer, code, conceptDiff)
+        }
+        diff.forEachEdgeOnlyIn(GraphSide.LEFT) { edge ->
+            writer.write(DiffRecord(DiffRecordType.EDGE_ONLY_IN_LEFT, edge.fromCode, edge.propertyCode, edge.toCode))
+        }
+        diff.forEachEdgeOnlyIn(GraphSide.RIGHT) { edge ->
+            writer.write(DiffRecord(DiffRecordType.EDGE_ONLY_IN_RIGHT, edge.fromCode, edge.propertyCode, edge.toCode))
+        }
+    }
+
+    private fun exportMetadata(writer: DiffRecordWriter) {
+        val leftCodeSystem = diff.leftBuilder.codeSystem
+        val rightCodeSystem = diff.rightBuilder.codeSystem
+        diff.metadataDifferences.comparisons.forEach { comparison ->
+            writer.write(DiffRecord(type = DiffRecordType.METADATA,
+                element = comparison.diffItem.element,
+                result = comparison.result.name,
+                left = comparison.diffItem.getValue(leftCodeSystem),
+                right = comparison.diffItem.getValue(rightCodeSystem)))
+        }
+    }
+
+    private fun exportConceptDiff(writer: DiffRecordWriter, code: String, conceptDiff: ConceptDiff) {
+        val leftConcept = diff.leftBuilder.nodeTree[code]
+        val rightConcept = diff.rightBuilder.nodeTree[code]
+        conceptDiff.conceptComparison.filter { it.result == ConceptDiffItem.ConceptDiffResultEnum.DIFFERENT }
+            .forEach { comparison ->
+                val (element, getter) = when (comparison.diffItem) {
+                    ConceptDiff.displayItem -> "display" to FhirConceptDetails::display
+                    else -> "definition" to FhirConceptDetails::definition
+                }
+                writer.write(DiffRecord(type = DiffRecordType.CONCEPT_FIELD,
+                    code = code,
+                    element = element,
+                    result = comparison.result.name,
+                    left = leftConcept?.let(getter),
+                    right = rightConcept?.let(getter)))
+            }
+        conceptDiff.propertyComparison.filter { it.result != KeyedListDiffResultKind.IDENTICAL }.forEach { result ->
+            writer.write(DiffRecord(type = DiffRecordType.PROPERTY,
+                code = code,
+                key = result.key,
+                result = result.result.name,
+                left = result.leftValue?.joinToString(),
+                right = result.rightValue?.joinToString()))
+        }
+        conceptDiff.designationComparison.filter { it.result != KeyedListDiffResultKind.IDENTICAL }.forEach { result ->
+            writer.write(DiffRecord(type = DiffRecordType.DESIGNATION,
+                code = code,
+                key = "${result.key.first ?: ""}|${result.key.second ?: ""}",
+                result = result.result.name,
+                left = result.leftValue?.joinToString(),
+                right = result.rightValue?.joinToString()))
+        }
+    }
+}
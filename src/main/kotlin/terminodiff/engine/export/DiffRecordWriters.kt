@@ -0,0 +1,87 @@
+package terminodiff.engine.export
+
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter
+import java.io.Writer
+
+enum class DiffExportFormat(val extension: String) {
+    JSON_LINES("jsonl"), CSV("csv");
+
+    fun createWriter(writer: Writer): DiffRecordWriter = when (this) {
+        JSON_LINES -> JsonLinesDiffRecordWriter(writer)
+        CSV -> CsvDiffRecordWriter(writer)
+    }
+}
+
+/**
+ * writes one JSON object per line, fields that are not set are omitted
+ */
+class JsonLinesDiffRecordWriter(writer: Writer) : DiffRecordWriter {
+    private val generator: JsonGenerator = JsonFactory().createGenerator(writer).apply {
+        prettyPrinter = MinimalPrettyPrinter("\n")
+    }
+
+    override fun write(record: DiffRecord) {
+        generator.writeStartObject()
+        generator.writeStringField("type", record.type.name)
+        writeOptionalField("code", record.code)
+        writeOptionalField("element", record.element)
+        writeOptionalField("key", record.key)
+        writeOptionalField("result", record.result)
+        writeOptionalField("left", record.left)
+        writeOptionalField("right", record.right)
+        generator.writeEndObject()
+    }
+
+    private fun writeOptionalField(name: String, value: String?) {
+        if (value != null) generator.writeStringField(name, value)
+    }
+
+    override fun close() {
+        generator.writeRaw('\n')
+        generator.close()
+    }
+}
+
+/**
+ * writes RFC 4180 CSV, with a header row. Fields that are not set are empty.
+ */
+class CsvDiffRecordWriter(private val writer: Writer) : DiffRecordWriter {
+
+    init {
+        writeRow(HEADER)
+    }
+
+    override fun write(record: DiffRecord) = writeRow(listOf(record.type.name,
+        record.code,
+        record.element,
+        record.key,
+        record.result,
+        record.left,
+        record.right))
+
+    private fun writeRow(fields: List<String?>) {
+        fields.forEachIndexed { index, field ->
+            if (index > 0) writer.write(','.code)
+            if (field != null) writeField(field)
+        }
+        writer.write("\r\n")
+    }
+
+    private fun writeField(field: String) {
+        if (field.none { it == ',' || it == '"' || it == '\n' || it == '\r' }) {
+            writer.write(field)
+            return
+        }
+        writer.write('"'.code)
+        writer.write(field.replace("\"", "\"\""))
+        writer.write('"'.code)
+    }
+
+    override fun close() = writer.close()
+
+    companion object {
+        private val HEADER = listOf("type", "code", "element", "key", "result", "left", "right")
+    }
+}
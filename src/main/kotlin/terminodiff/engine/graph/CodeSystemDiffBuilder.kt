@@ -1,43 +1,68 @@
 package terminodiff.engine.graph
 
-import androidx.compose.runtime.*
+import kotlinx.coroutines.*
 import org.jgrapht.Graph
 import org.jgrapht.graph.builder.GraphTypeBuilder
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
+import terminodiff.engine.concepts.ConceptClassificationIndex
 import terminodiff.engine.concepts.ConceptDiff
+import terminodiff.engine.concepts.ConceptDiffFlags
+import terminodiff.engine.concepts.ConceptDiffIndex
 import terminodiff.i18n.LocalizedStrings
 import terminodiff.terminodiff.engine.graph.*
 import terminodiff.terminodiff.engine.metadata.MetadataComparisonResult
 import terminodiff.terminodiff.engine.metadata.MetadataDiff
-import terminodiff.ui.graphs.ColorRegistry
-import java.awt.Color
-import java.util.*
 
 private val logger: Logger = LoggerFactory.getLogger("CodeSystemDiffBuilder")
 
 class CodeSystemDiffBuilder(
-    private val leftBuilder: CodeSystemGraphBuilder,
-    private val rightBuilder: CodeSystemGraphBuilder,
-    private val localizedStrings: LocalizedStrings,
+    val leftBuilder: CodeSystemGraphBuilder,
+    val rightBuilder: CodeSystemGraphBuilder,
 ) {
 
-    val metadataDifferences by derivedStateOf {
-        MetadataDiff(leftBuilder.codeSystem, rightBuilder.codeSystem, localizedStrings).also { metadataDiff ->
+    val metadataDifferences by lazy {
+        MetadataDiff(leftBuilder.codeSystem, rightBuilder.codeSystem).also { metadataDiff ->
             val count = metadataDiff.comparisons.count { it.result == MetadataComparisonResult.DIFFERENT }
             logger.info("Built metadata diff, $count difference(-s)")
         }
     }
-    val conceptDifferences by mutableStateOf(TreeMap<String, ConceptDiff>())
-    val onlyInLeftConcepts = mutableStateListOf<String>()
-    val onlyInRightConcepts = mutableStateListOf<String>()
-    private val inBothConcepts = mutableStateListOf<String>()
-    val differenceGraph: Graph<DiffNode, DiffEdge> by derivedStateOf {
+    // these are assigned once by buildConceptDiff, before the diff is published to the UI
+    var conceptDifferences = ConceptDiffIndex(emptyList(), ByteArray(0), ::compareConcept)
+        private set
+    var onlyInLeftConcepts: List<String> = emptyList()
+        private set
+    var onlyInRightConcepts: List<String> = emptyList()
+        private set
+    private var inBothConcepts: List<String> = emptyList()
+    var conceptClassification = ConceptClassificationIndex.build(emptyList(), emptyList(), conceptDifferences)
+        private set
+
+    // if this is true, the concepts of both sides are identical, and the concept diff does not need to be inspected
+    val conceptFingerprintsMatch: Boolean
+        get() = leftBuilder.conceptsFingerprint == rightBuilder.conceptsFingerprint
+
+    /**
+     * whether the code systems are identical, apart from their ids. This requires [buildConceptDiff] to have run.
+     */
+    val isIdentical: Boolean
+        get() = when {
+            metadataDifferences.comparisons.any { comparison ->
+                // id differences are ok
+                comparison.diffItem.element != "id" && comparison.result == MetadataComparisonResult.DIFFERENT
+            } -> false
+            conceptFingerprintsMatch -> true
+            else -> onlyInLeftConcepts.isEmpty() && onlyInRightConcepts.isEmpty() &&
+                    conceptDifferences.differentCodes.isEmpty()
+        }
+
+    val differenceGraph: Graph<DiffNode, DiffEdge> =
         GraphTypeBuilder.directed<DiffNode, DiffEdge>().allowingSelfLoops(true).allowingMultipleEdges(true)
             .weighted(false).edgeClass(DiffEdge::class.java).buildGraph()
-    }
 
-    var combinedGraph: CombinedGraphBuilder? by mutableStateOf(null)
+    // assigned once by buildCombinedGraph or restoreCombinedGraph, before the diff is published to the UI
+    var combinedGraph: CombinedGraphBuilder? = null
+        private set
 
     /*val combinedGraph: CombinedGraphBuilder? by derivedStateOf {
         codeSystemDiff?.buildCombinedGraph()?.also {
@@ -45,95 +70,170 @@ class CodeSystemDiffBuilder(
         }
     }*/
 
-    fun build(): CodeSystemDiffBuilder {
-        leftBuilder.nodeTree.mapNotNull { (code, leftConcept) ->
-            // if not found in the rhs, we will add it to the concept diff immediately and continue
-            val rightConcept = rightBuilder.nodeTree[code] ?: let {
-                onlyInLeftConcepts.add(code)
-                return@mapNotNull null
-            }
-            inBothConcepts.add(code)
-            code to ConceptDiff.compareConcept(leftConcept = leftConcept,
-                rightConcept = rightConcept,
-                leftProperties = leftBuilder.simplePropertyCodeTypes,
-                rightProperties = rightBuilder.simplePropertyCodeTypes)
-        }.forEach { (code, conceptDiff) ->
-            conceptDifferences[code] = conceptDiff
-        }
-        onlyInRightConcepts.addAll(rightBuilder.nodeTree.keys.filter { it !in conceptDifferences.keys })
+    /**
+     * runs all stages of the diff in sequence. The stages can also be invoked individually (in this order), which is
+     * used by the background pipeline in [terminodiff.engine.resources.DiffDataContainer] to report progress.
+     */
+    suspend fun build(): CodeSystemDiffBuilder {
+        buildConceptDiff()
         buildDiffGraph()
-        logger.info("Built diff graph, ${differenceGraph.vertexSet().count()} vertices, ${
-            differenceGraph.edgeSet().count()
-        } edges")
-        logger.info("only in left graph: ${onlyInLeftConcepts.size} concepts")
-        logger.info("only in right graph: ${onlyInRightConcepts.size} concepts")
-        logger.debug("Diff edges: (${differenceGraph.edgeSet().size}): {}",
-            differenceGraph.edgeSet().joinToString("; ", limit = 5))
-        combinedGraph = buildCombinedGraph()
+        buildCombinedGraph()
         return this
     }
 
-    private fun edgesOnlyInX(
-        graphBuilder: CodeSystemGraphBuilder, otherGraphBuilder: CodeSystemGraphBuilder, kind: GraphSide,
-    ) = graphBuilder.graph.edgeSet().minus(otherGraphBuilder.graph.edgeSet()).also {
-        logger.debug("only in $kind: (${it.size}): {}", it.joinToString(separator = "; ", limit = 5))
-    }.mapNotNull { edge ->
-        val toConcept = graphBuilder.nodeTree[edge.to]
-        val fromConcept = graphBuilder.nodeTree[edge.from]
-        when {
-            toConcept == null -> {
-                logger.warn("the target code '${edge.to}' for property '${edge.propertyCode}' (from ${edge.from}) was not found in $kind")
-                return@mapNotNull null
-            }
-            fromConcept == null -> {
-                logger.warn("the origin code '${edge.from}' for property '${edge.propertyCode}' (to ${edge.to}) was not found in $kind")
-                return@mapNotNull null
+    /**
+     * classifies the concepts that are in both code systems, the detailed diff is computed on demand by
+     * [conceptDifferences]. The sorted codes are split into chunks that are compared concurrently on
+     * [Dispatchers.Default], the results are merged in the order of the chunks.
+     */
+    suspend fun buildConceptDiff() {
+        val onlyInLeft = mutableListOf<String>()
+        val inBoth = mutableListOf<String>()
+        leftBuilder.nodeTree.keys.forEach { code ->
+            when (code in rightBuilder.nodeTree) {
+                true -> inBoth.add(code)
+                else -> onlyInLeft.add(code)
             }
-            else -> DiffEdge(fromCode = edge.from,
-                fromDisplay = fromConcept.display,
-                toCode = edge.to,
-                toDisplay = toConcept.display,
-                propertyCode = edge.propertyCode,
-                inWhich = kind)
         }
+        val flags = ByteArray(inBoth.size)
+        parallelForEachIndex(inBoth.size, MIN_CHUNK_SIZE) { i ->
+            flags[i] = classifyConcept(inBoth[i]).toByte()
+        }
+        conceptDifferences = ConceptDiffIndex(inBoth, flags, ::compareConcept)
+        onlyInLeftConcepts = onlyInLeft
+        inBothConcepts = inBoth
+        onlyInRightConcepts = rightBuilder.nodeTree.keys.filter { it !in leftBuilder.nodeTree }
+        conceptClassification =
+            ConceptClassificationIndex.build(onlyInLeftConcepts, onlyInRightConcepts, conceptDifferences)
+        logger.info("only in left graph: ${onlyInLeftConcepts.size} concepts")
+        logger.info("only in right graph: ${onlyInRightConcepts.size} concepts")
+        logger.info("${conceptDifferences.differentCodes.size} of ${inBoth.size} concepts in both graphs are different")
     }
 
-    private fun edgesInBoth() = leftBuilder.graph.edgeSet().intersect(rightBuilder.graph.edgeSet()).map { edge ->
-        CombinedEdge(edge.from, edge.to, edge.propertyCode, GraphSide.BOTH)
+    private fun classifyConcept(code: String): Int {
+        val leftConcept = leftBuilder.nodeTree[code]!!
+        val rightConcept = rightBuilder.nodeTree[code]!!
+        if (leftConcept.fingerprint == rightConcept.fingerprint) return 0
+        return ConceptDiffFlags.of(compareConcept(code))
     }
 
-    private fun buildDiffGraph() {
-        // add those vertices that are only in one of the graphs, this is easy
-        differenceGraph.addAllVertices(onlyInLeftConcepts.map { code ->
-            DiffNode(code, leftBuilder.nodeTree[code]!!.display, GraphSide.LEFT)
-        })
-        differenceGraph.addAllVertices(onlyInRightConcepts.map { code ->
-            DiffNode(code, rightBuilder.nodeTree[code]!!.display, GraphSide.RIGHT)
-        })
+    private fun compareConcept(code: String) = ConceptDiff.compareConcept(leftConcept = leftBuilder.nodeTree[code]!!,
+        rightConcept = rightBuilder.nodeTree[code]!!,
+        leftProperties = leftBuilder.simplePropertyCodeTypes,
+        rightProperties = rightBuilder.simplePropertyCodeTypes)
 
-        val edgesOnlyInLeft = edgesOnlyInX(leftBuilder, rightBuilder, GraphSide.LEFT)
-        val edgesOnlyInRight = edgesOnlyInX(rightBuilder, leftBuilder, GraphSide.RIGHT)
+    fun getConceptDiff(code: String): ConceptDiff? = conceptDifferences.getConceptDiff(code)
 
-        addVerticesForEdges(edgesOnlyInLeft)
-        addVerticesForEdges(edgesOnlyInRight)
+    /**
+     * restores the results of [buildConceptDiff] that were computed before, e.g. from a
+     * [terminodiff.engine.resources.DiffArchiveCodec]. The detailed diff of a concept is taken from [loadConceptDiff]
+     * if it returns one, and computed otherwise.
+     */
+    fun restoreConceptDiff(
+        inBoth: List<String>,
+        flags: ByteArray,
+        onlyInLeft: List<String>,
+        onlyInRight: List<String>,
+        loadConceptDiff: (String) -> ConceptDiff?,
+    ) {
+        conceptDifferences = ConceptDiffIndex(inBoth, flags) { code -> loadConceptDiff(code) ?: compareConcept(code) }
+        inBothConcepts = inBoth
+        onlyInLeftConcepts = onlyInLeft
+        onlyInRightConcepts = onlyInRight
+        conceptClassification = ConceptClassificationIndex.build(onlyInLeft, onlyInRight, conceptDifferences)
+    }
 
-        val diffEdges = edgesOnlyInLeft.plus(edgesOnlyInRight).map {
-            val fromNode = differenceGraph.vertexSet().find { v -> v.code == it.fromCode }!!
-            val toNode = differenceGraph.vertexSet().find { v -> v.code == it.toCode }!!
-            Triple(fromNode, toNode, it)
+    /**
+     * calls [action] for every edge of [side] ([GraphSide.LEFT] or [GraphSide.RIGHT]) that is not in the other side,
+     * by looking up every edge in the compact graph of the other side. The edges are not collected.
+     */
+    fun forEachEdgeOnlyIn(side: GraphSide, action: (DiffEdge) -> Unit) {
+        val (graphBuilder, otherGraphBuilder) = when (side) {
+            GraphSide.LEFT -> leftBuilder to rightBuilder
+            GraphSide.RIGHT -> rightBuilder to leftBuilder
+            GraphSide.BOTH -> throw IllegalArgumentException("edges that are in both sides are not different")
+        }
+        val graph = graphBuilder.conceptGraph
+        val otherGraph = otherGraphBuilder.conceptGraph
+        graph.forEachEdge { source, target, propertyId ->
+            val from = graph.dictionary.codeOf(source)
+            val to = graph.dictionary.codeOf(target)
+            val propertyCode = graph.propertyCodeOf(propertyId)
+            if (otherGraph.containsEdge(from, to, propertyCode)) return@forEachEdge
+            val toConcept = graphBuilder.nodeTree.detailsOf(target)
+            val fromConcept = graphBuilder.nodeTree.detailsOf(source)
+            when {
+                toConcept == null -> logger.warn("the target code '$to' for property '$propertyCode' (from $from) was not found in $side")
+                fromConcept == null -> logger.warn("the origin code '$from' for property '$propertyCode' (to $to) was not found in $side")
+                else -> action(DiffEdge(fromCode = from,
+                    fromDisplay = fromConcept.display,
+                    toCode = to,
+                    toDisplay = toConcept.display,
+                    propertyCode = propertyCode,
+                    inWhich = side))
+            }
         }
-        differenceGraph.addAllEdges(diffEdges)
     }
 
-    private fun addVerticesForEdges(edgeList: List<DiffEdge>) {
-        edgeList.forEach {
-            differenceGraph.addVertex(DiffNode(it.fromCode, it.fromDisplay, GraphSide.BOTH))
-            differenceGraph.addVertex(DiffNode(it.toCode, it.toDisplay, GraphSide.BOTH))
+    private fun edgesOnlyInX(side: GraphSide): List<DiffEdge> {
+        val diffEdges = mutableListOf<DiffEdge>()
+        forEachEdgeOnlyIn(side, diffEdges::add)
+        logger.debug("only in $side: (${diffEdges.size}): {}", diffEdges.joinToString(separator = "; ", limit = 5))
+        return diffEdges
+    }
+
+    private fun edgesInBoth(): List<CombinedEdge> {
+        val leftGraph = leftBuilder.conceptGraph
+        val rightGraph = rightBuilder.conceptGraph
+        val edges = mutableListOf<CombinedEdge>()
+        leftGraph.forEachEdge { source, target, propertyId ->
+            val from = leftGraph.dictionary.codeOf(source)
+            val to = leftGraph.dictionary.codeOf(target)
+            val propertyCode = leftGraph.propertyCodeOf(propertyId)
+            if (rightGraph.containsEdge(from, to, propertyCode)) edges.add(CombinedEdge(from, to, propertyCode, GraphSide.BOTH))
         }
+        return edges
     }
 
-    private fun buildCombinedGraph(): CombinedGraphBuilder {
-        val combinedGraphBuilder = CombinedGraphBuilder()
+    /**
+     * builds the graph of the concepts and edges that are only in one side. The vertices are collected in a map by
+     * code: concepts only in one side keep that side, while the endpoints of changed edges that are in both code
+     * systems are added as [GraphSide.BOTH].
+     */
+    fun buildDiffGraph() {
+        val nodesByCode = LinkedHashMap<String, DiffNode>()
+        onlyInLeftConcepts.forEach { code ->
+            nodesByCode[code] = DiffNode(code, leftBuilder.nodeTree[code]!!.display, GraphSide.LEFT)
+        }
+        onlyInRightConcepts.forEach { code ->
+            nodesByCode[code] = DiffNode(code, rightBuilder.nodeTree[code]!!.display, GraphSide.RIGHT)
+        }
+
+        val diffEdges = edgesOnlyInX(GraphSide.LEFT).plus(edgesOnlyInX(GraphSide.RIGHT))
+        diffEdges.forEach {
+            nodesByCode.getOrPut(it.fromCode) { DiffNode(it.fromCode, it.fromDisplay, GraphSide.BOTH) }
+            nodesByCode.getOrPut(it.toCode) { DiffNode(it.toCode, it.toDisplay, GraphSide.BOTH) }
+        }
+
+        nodesByCode.values.forEach(differenceGraph::addVertex)
+        diffEdges.forEach { differenceGraph.addEdge(nodesByCode[it.fromCode]!!, nodesByCode[it.toCode]!!, it) }
+        logger.info("Built diff graph, ${differenceGraph.vertexSet().count()} vertices, ${
+            differenceGraph.edgeSet().count()
+        } edges")
+        logger.debug("Diff edges: (${differenceGraph.edgeSet().size}): {}",
+            differenceGraph.edgeSet().joinToString("; ", limit = 5))
+    }
+
+    /**
+     * restores the diff graph that was built by [buildDiffGraph] before
+     */
+    fun restoreDiffGraph(nodes: List<DiffNode>, edges: List<DiffEdge>) {
+        val nodesByCode = nodes.associateBy { it.code }
+        nodes.forEach(differenceGraph::addVertex)
+        edges.forEach { differenceGraph.addEdge(nodesByCode[it.fromCode]!!, nodesByCode[it.toCode]!!, it) }
+    }
+
+    fun buildCombinedGraph() {
         val nodes = inBothConcepts.map { code ->
             val displayLeft = leftBuilder.nodeTree[code]?.display
             val displayRight = rightBuilder.nodeTree[code]?.display
@@ -147,26 +247,32 @@ class CodeSystemDiffBuilder(
                 displayRight = rightBuilder.nodeTree[rightCode]?.display,
                 side = GraphSide.RIGHT)
         })
-        combinedGraphBuilder.graph.addAllVertices(nodes)
-        edgesInBoth().plus(
-            differenceGraph.edgeSet().map { diffEdge ->
-                CombinedEdge(diffEdge.fromCode,
-                    diffEdge.toCode,
-                    property = diffEdge.propertyCode,
-                    side = diffEdge.inWhich)
-            }).forEach(combinedGraphBuilder.graph::addCombinedEdge)
+        val edges = edgesInBoth().plus(differenceGraph.edgeSet().map { diffEdge ->
+            CombinedEdge(diffEdge.fromCode, diffEdge.toCode, property = diffEdge.propertyCode, side = diffEdge.inWhich)
+        })
+        restoreCombinedGraph(nodes, edges)
+    }
 
+    /**
+     * sets the combined graph from its vertices and edges, either as built by [buildCombinedGraph] or restored
+     */
+    fun restoreCombinedGraph(vertices: List<CombinedVertex>, edges: List<CombinedEdge>) {
+        val combinedGraphBuilder = CombinedGraphBuilder()
+        combinedGraphBuilder.graph.addAllVertices(vertices)
+        edges.forEach(combinedGraphBuilder.graph::addCombinedEdge)
         logger.info("Combined graph: ${
             combinedGraphBuilder.graph.vertexSet().count()
         } vertices, ${combinedGraphBuilder.graph.edgeSet().count()} edges")
         combinedGraphBuilder.populateAffected()
-        return combinedGraphBuilder
+        combinedGraph = combinedGraphBuilder
+    }
+
+    companion object {
+        private const val MIN_CHUNK_SIZE = 256
     }
 }
 
 fun <V, E> Graph<V, E>.addAllVertices(vertices: List<V>) = vertices.forEach(this::addVertex)
-fun Graph<DiffNode, DiffEdge>.addAllEdges(edges: List<Triple<DiffNode, DiffNode, DiffEdge>>) =
-    edges.forEach { this.addEdge(it.first, it.second, it.third) }
 
 data class DiffNode(
     val code: String, val display: String?, val inWhich: GraphSide,
@@ -181,7 +287,6 @@ data class DiffNode(
     }
 
     fun getTooltip(localizedStrings: LocalizedStrings) = localizedStrings.displayAndInWhich_(display, inWhich)
-    fun getColor(): Color = ColorRegistry.getDiffGraphColor(inWhich)
 }
 
 data class DiffEdge(
@@ -193,5 +298,4 @@ data class DiffEdge(
     val inWhich: GraphSide,
 ) {
     fun getTooltip(): String = "'$fromCode' -> '$toCode' [$propertyCode]"
-    fun getColor(): Color = ColorRegistry.getDiffGraphColor(inWhich)
 }
\ No newline at end of file
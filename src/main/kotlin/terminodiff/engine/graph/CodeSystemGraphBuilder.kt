@@ -2,26 +2,32 @@ package terminodiff.engine.graph
 
 import org.hl7.fhir.r4.model.*
 import org.jgrapht.Graph
-import org.jgrapht.graph.builder.GraphTypeBuilder
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
-import terminodiff.i18n.LocalizedStrings
-import terminodiff.ui.graphs.ColorRegistry
-import terminodiff.ui.graphs.Registry
-import java.awt.Color
+import terminodiff.engine.resources.ExtractedConcept
+import terminodiff.engine.resources.toExtractedConcept
 import java.util.*
 
 private val logger: Logger = LoggerFactory.getLogger(CodeSystemGraphBuilder::class.java)
 
 typealias PropertyMap = Map<String, CodeSystem.PropertyType>
 
-class CodeSystemGraphBuilder(
+/**
+ * builds the concept graph of a CodeSystem. The concepts are usually provided by the streaming [CodeSystemExtractor],
+ * in which case [codeSystem] only carries the metadata; otherwise, they are taken from `CodeSystem.concept`.
+ *
+ * The graph is stored as a [CompactConceptGraph] over a [CodeDictionary], and the concept details are indexed by the
+ * same dense ids, instead of using a String-keyed tree and a JGraphT graph with one object per vertex and edge.
+ */
+class CodeSystemGraphBuilder private constructor(
     val codeSystem: CodeSystem,
-    private val localizedStrings: LocalizedStrings,
+    buildContent: CodeSystemGraphBuilder.(CompactConceptGraph.Builder) -> Map<String, FhirConceptDetails>,
 ) {
 
-    // store more detailed node data in a red-black tree, which can retrieve nodes in O(log n)
-    val nodeTree = TreeMap<String, FhirConceptDetails>()
+    constructor(
+        codeSystem: CodeSystem,
+        concepts: List<ExtractedConcept> = codeSystem.concept.map { it.toExtractedConcept() },
+    ) : this(codeSystem, { graphBuilder -> generateNodesAndEdges(concepts, graphBuilder) })
 
     /**
      * we collect those properties that can't map to a concept within the same code system
@@ -41,75 +47,92 @@ class CodeSystemGraphBuilder(
      * list of properties within the CS. Hence, by converting to a set and adding parent and child,
      * they will appear in the list exactly once
      */
-    private val edgePropertyCodes: List<String> = codeSystem.property.asSequence().filter {
+    private val edgePropertyCodes: Set<String> = codeSystem.property.asSequence().filter {
         it.hasType() && it.type == CodeSystem.PropertyType.CODE
-    }.map { it.code }.toHashSet().plus("parent").plus("child").toList()
+    }.map { it.code }.toHashSet().plus("parent").plus("child")
 
-    val graph: Graph<String, FhirConceptEdge> =
-        GraphTypeBuilder.directed<String, FhirConceptEdge>().allowingMultipleEdges(true).allowingSelfLoops(true)
-            .edgeClass(FhirConceptEdge::class.java).weighted(false).buildGraph().also {
-                generateNodesAndEdges(it, edgePropertyCodes, simplePropertyCodeTypes, localizedStrings)
-            }
+    val conceptGraph: CompactConceptGraph
+
+    // the concept details are indexed by the ids of the code dictionary, which can retrieve nodes in O(log n)
+    val nodeTree: ConceptDetailsMap
+
+    /**
+     * a fingerprint over the codes and content of all concepts, if it is the same for two code systems, their
+     * concepts are identical
+     */
+    val conceptsFingerprint: Long
+
+    init {
+        val graphBuilder = CompactConceptGraph.Builder()
+        val details = buildContent(graphBuilder)
+        conceptGraph = graphBuilder.build(details.keys)
+        nodeTree = ConceptDetailsMap(conceptGraph.dictionary, details)
+        conceptsFingerprint = nodeTree.computeFingerprint()
+    }
+
+    /**
+     * a JGraphT view of [conceptGraph]
+     */
+    val graph: Graph<String, FhirConceptEdge> get() = conceptGraph.graphView
+
+    companion object {
+        /**
+         * restores a graph builder from concept details and edges that were built before, e.g. from a
+         * [terminodiff.engine.resources.DiffArchiveCodec], without deriving them from the concepts again
+         */
+        fun restore(
+            codeSystem: CodeSystem,
+            details: List<FhirConceptDetails>,
+            addEdges: (CompactConceptGraph.Builder) -> Unit,
+        ) = CodeSystemGraphBuilder(codeSystem) { graphBuilder ->
+            addEdges(graphBuilder)
+            details.associateByTo(HashMap(details.size)) { it.code }
+        }
+    }
 
     private fun generateNodesAndEdges(
-        theGraph: Graph<String, FhirConceptEdge>,
-        edgePropertyCodes: List<String>,
-        simplePropertyCodeTypes: PropertyMap,
-        localizedStrings: LocalizedStrings,
-    ) {
-        val allCodes = codeSystem.concept.map { it.code }
-        codeSystem.concept.forEach { c ->
-            val from = c.code!!
-            if (theGraph.addVertex(from)) logger.debug("added $from")
+        concepts: List<ExtractedConcept>,
+        graphBuilder: CompactConceptGraph.Builder,
+    ): Map<String, FhirConceptDetails> {
+        val allCodes = concepts.mapTo(HashSet(concepts.size)) { it.code }
+        val details = HashMap<String, FhirConceptDetails>(concepts.size)
+        concepts.forEach { c ->
+            val from = c.code
             val conceptProperties = c.property.map { p ->
                 when (p.code) {
                     in edgePropertyCodes -> {
-                        val to = p.valueCodeType.code
+                        val to = (p.value as? CodeType)?.code
                             ?: throw UnsupportedOperationException("property ${p.code} for concept $from has no valueCode")
                         when {
-                            p.code == "child" -> addEdge(
-                                theGraph = theGraph, from = to, to = from, code = "parent", logSuffix = "child edge"
-                                // inverse order, since parent and child edges are semantically
-                                // interchangeable, and dealing only with one kind is easier downstream
-                            )
+                            p.code == "child" -> graphBuilder.addEdge(from = to, to = from, propertyCode = "parent")
+                            // inverse order, since parent and child edges are semantically
+                            // interchangeable, and dealing only with one kind is easier downstream
                             to !in allCodes -> {
-                                logger.debug("ignoring property '${p.code}' for concept ${c.code} -> value '$to' is not a code")
+                                logger.debug("ignoring property '{}' for concept {} -> value '{}' is not a code",
+                                    p.code, from, to)
                                 //this is not an edge, but something like kind=category°
                             }
-                            else -> addEdge(theGraph, from, to, p.code, "${p.code} edge")
+                            else -> graphBuilder.addEdge(from, to, p.code)
                         }
                     }
                 }
                 val basePropertyType = simplePropertyCodeTypes[p.code]
                     ?: throw UnsupportedOperationException("The property ${p.code} is not declared in the CodeSystem, and not implicit.")
-                val propertyValue = getPropertyValue(p.value, localizedStrings)
+                val propertyValue = getPropertyValue(p.value)
                 FhirConceptProperty(p.code, basePropertyType, propertyValue)
             }
-            c.concept?.forEach { ch ->
-                val to = ch.code
-                addEdge(theGraph, to, from, "parent", "child edge from concept") // see above
+            c.childCodes.forEach { to ->
+                graphBuilder.addEdge(to, from, "parent") // see above
             }
-            // store more detailed node data in a red-black tree, which can retrieve nodes in O(log n)
-            nodeTree[from] = FhirConceptDetails(
-                code = from, display = c.display, definition = c.definition, designation = c.designation.map { des ->
-                    FhirConceptDesignation(
-                        language = des.language, use = des.use, value = des.value
-                    )
-                }, property = conceptProperties
+            details[from] = FhirConceptDetails(
+                code = from,
+                display = c.display,
+                definition = c.definition,
+                designation = c.designation,
+                property = conceptProperties
             )
         }
-    }
-
-    private fun addEdge(
-        theGraph: Graph<String, FhirConceptEdge>, from: String, to: String, code: String, logSuffix: String,
-    ) {
-        if (theGraph.addVertex(from)) logger.debug("added origin node $from")
-        if (theGraph.addVertex(to)) // if already exists, no problem
-            logger.debug("added target node $to")
-        if (theGraph.addEdge(
-                from, to, FhirConceptEdge(from, to, code)
-            )
-        ) logger.debug("added $code edge '$from' -> '$to' [$logSuffix]")
+        return details
     }
 }
 
@@ -117,8 +140,6 @@ data class FhirConceptEdge(
     val from: String, val to: String, val propertyCode: String,
 ) {
     fun getLabel(): String = "'$from' -> '$to' [$propertyCode]"
-
-    val color = ColorRegistry.getColor(Registry.EDGES, propertyCode)
 }
 
 data class FhirConceptDetails(
@@ -127,7 +148,10 @@ data class FhirConceptDetails(
     val definition: String?,
     val designation: List<FhirConceptDesignation>,
     val property: List<FhirConceptProperty>,
-)
+) {
+    // computed once while building the graph, concepts with the same fingerprint are identical in the concept diff
+    val fingerprint: Long = computeFingerprint()
+}
 
 data class FhirConceptDesignation(
     val language: String?, val use: Coding?, val value: String,
@@ -137,13 +161,17 @@ data class FhirConceptProperty(
     val propertyCode: String, val type: CodeSystem.PropertyType, val value: String?,
 )
 
-private fun getPropertyValue(type: Type?, localizedStrings: LocalizedStrings): String? = when (type) {
+/**
+ * the locale-independent value of a property, booleans are kept as "true"/"false" and are only localized when they
+ * are shown
+ */
+private fun getPropertyValue(type: Type?): String? = when (type) {
     null -> null
     is CodeType -> type.code
     is Coding -> "${type.code} (${type.system}): '${type.display}'"
     is StringType -> type.value
     is IntegerType -> type.valueAsString
-    is BooleanType -> localizedStrings.boolean_.invoke(type.value)
+    is BooleanType -> type.valueAsString
     is DateType -> type.valueAsString
     is DecimalType -> type.valueAsString
     else -> type.toString()
@@ -1,30 +1,56 @@
 package terminodiff.terminodiff.engine.graph
 
-import androidx.compose.runtime.getValue
-import androidx.compose.runtime.mutableStateListOf
-import androidx.compose.runtime.mutableStateOf
-import org.jgrapht.Graph
-import org.jgrapht.graph.builder.GraphTypeBuilder
-import org.jgrapht.traverse.AbstractGraphIterator
+import org.jgrapht.Graphs
+import org.jgrapht.graph.SimpleDirectedGraph
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 import terminodiff.i18n.LocalizedStrings
-import terminodiff.ui.graphs.ColorRegistry
-import terminodiff.ui.graphs.Registry
 
 private val logger: Logger = LoggerFactory.getLogger(CombinedGraphBuilder::class.java)
 
 class CombinedGraphBuilder {
 
+    // the most recently used neighborhoods of the graph views, keyed by the component of the focus code (c.f.
+    // componentOf) and radius
+    private val subgraphCache = object : LinkedHashMap<Pair<String, Int>, CombinedGraph>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Pair<String, Int>, CombinedGraph>?) =
+            size > SUBGRAPH_CACHE_SIZE
+    }
+
     fun getSubgraph(focusCode: String, layers: Int): CombinedGraph {
+        val key = componentOf(focusCode) to layers
+        synchronized(subgraphCache) {
+            subgraphCache[key]?.let { return it }
+        }
+        val subgraph = computeSubgraph(focusCode, layers)
+        synchronized(subgraphCache) {
+            subgraphCache[key] = subgraph
+        }
+        return subgraph
+    }
+
+    /**
+     * the neighborhood of [focusCode], without the cache of [getSubgraph]. This is meant for jobs that need the
+     * neighborhoods of many components, which would only evict the neighborhoods of the graph views from the cache.
+     */
+    fun computeSubgraph(focusCode: String, layers: Int): CombinedGraph {
         val focusConcept =
             graph.nodeByCode(focusCode) ?: throw IllegalStateException("The focus concept is not in the combined graph")
-        val diffEdgeTraversal = DiffEdgeTraversal(graph, focusConcept, layers)
-        return diffEdgeTraversal.traverse()
+        return NeighborhoodSearch(graph, focusConcept, layers).search()
     }
 
-    private val affectedEdges = mutableStateListOf<CombinedEdge>()
-    val affectedVertices = mutableStateListOf<CombinedVertex>()
+    private val affectedEdges = mutableListOf<CombinedEdge>()
+    val affectedVertices = mutableListOf<CombinedVertex>()
+
+    // the representative code of the component of every vertex with an edge that is only in one side
+    private val differenceComponents = HashMap<String, String>()
+
+    /**
+     * the code of a representative vertex of the component of the vertex with [code] over the edges that are only in
+     * one side. These edges have a weight of 0 in [NeighborhoodSearch], so all vertices of a component have the same
+     * neighborhood. Vertices without such edges are a component of their own.
+     */
+    fun componentOf(code: String): String = differenceComponents[code] ?: code
 
     fun populateAffected() {
         graph.edgeSet().filter { it.side != GraphSide.BOTH }.let {
@@ -37,14 +63,37 @@ class CombinedGraphBuilder {
                 .plus(affectedEdges.mapNotNull { graph.nodeByCode(it.fromCode) })
             affectedVertices.addAll(allVertices)
         }
+        populateDifferenceComponents()
     }
 
-    val graph: CombinedGraph by mutableStateOf(emptyGraph())
-}
+    private fun populateDifferenceComponents() {
+        val neighbors = HashMap<String, MutableList<String>>()
+        affectedEdges.forEach { edge ->
+            neighbors.getOrPut(edge.fromCode) { mutableListOf() }.add(edge.toCode)
+            neighbors.getOrPut(edge.toCode) { mutableListOf() }.add(edge.fromCode)
+        }
+        differenceComponents.clear()
+        val queue = ArrayDeque<String>()
+        neighbors.keys.forEach { representative ->
+            if (representative in differenceComponents) return@forEach
+            differenceComponents[representative] = representative
+            queue.addLast(representative)
+            while (queue.isNotEmpty()) {
+                neighbors.getValue(queue.removeFirst()).forEach { neighbor ->
+                    if (differenceComponents.putIfAbsent(neighbor, representative) == null) queue.addLast(neighbor)
+                }
+            }
+        }
+        logger.info("${affectedEdges.size} edge(-s) only in one side connect ${differenceComponents.size} vertices in " +
+                "${differenceComponents.values.distinct().size} component(-s)")
+    }
 
-private fun emptyGraph(): CombinedGraph =
-    GraphTypeBuilder.directed<CombinedVertex, CombinedEdge>().allowingSelfLoops(false).weighted(false)
-        .edgeClass(CombinedEdge::class.java).buildGraph()
+    val graph = CombinedGraph()
+
+    companion object {
+        private const val SUBGRAPH_CACHE_SIZE = 32
+    }
+}
 
 data class CombinedEdge(
     val fromCode: String,
@@ -59,8 +108,6 @@ data class CombinedEdge(
         }
 
     fun getTooltip() = "'$fromCode' -> '$toCode' [$property]"
-
-    fun getColor() = ColorRegistry.getDiffGraphColor(side)
 }
 
 data class CombinedVertex(
@@ -76,87 +123,85 @@ data class CombinedVertex(
         GraphSide.RIGHT -> displayRight
         else -> if (displayLeft == displayRight) displayRight else "$displayLeft vs. $displayRight"
     }
-
-    fun getColor() = ColorRegistry.getDiffGraphColor(side)
 }
 
-fun CombinedGraph.addCombinedEdge(edge: CombinedEdge) {
-    val fromNode = this.vertexSet().find { it.code == edge.fromCode } ?: return
-    val toNode = this.vertexSet().find { it.code == edge.toCode } ?: return
-    this.addEdge(fromNode, toNode, edge)
-}
+/**
+ * the graph combining the concepts and edges of both sides. In addition to the per-vertex incoming and outgoing
+ * adjacency kept by JGraphT, the vertices are indexed by their code, so that lookups by code are O(1) and the edges
+ * of a vertex can be retrieved in O(degree).
+ */
+class CombinedGraph : SimpleDirectedGraph<CombinedVertex, CombinedEdge>(CombinedEdge::class.java) {
+    private val verticesByCode = HashMap<String, CombinedVertex>()
 
-fun CombinedGraph.getEdgesConnectedToVertex(vertex: CombinedVertex) = this.edgeSet().filter {
-    it.fromCode == vertex.code || it.toCode == vertex.code
-}
+    override fun addVertex(v: CombinedVertex): Boolean = super.addVertex(v).also { added ->
+        if (added) verticesByCode[v.code] = v
+    }
 
-fun CombinedGraph.nodeByCode(code: String) = this.vertexSet().find { it.code == code }
+    override fun removeVertex(v: CombinedVertex): Boolean = super.removeVertex(v).also { removed ->
+        if (removed && verticesByCode[v.code] == v) verticesByCode.remove(v.code)
+    }
 
-typealias CombinedGraph = Graph<CombinedVertex, CombinedEdge>
+    fun nodeByCode(code: String): CombinedVertex? = verticesByCode[code]
 
-class DiffEdgeTraversal(
-    graph: CombinedGraph,
-    private val startingVertex: CombinedVertex,
-    private val radius: Int,
-) : AbstractGraphIterator<CombinedVertex, CombinedEdge>(graph) {
-    private val logger: Logger = LoggerFactory.getLogger(DiffEdgeTraversal::class.java)
-    private val subgraph: CombinedGraph = emptyGraph()
-
-    private val edgeStack = ArrayDeque<CombinedEdge>()
-    private val visitedNodeDepths = mutableMapOf<CombinedVertex, Int>()
-    private val visitedEdges = mutableSetOf<CombinedEdge>()
-    var iteration = 0
-
-    init {
-        val edgesFromStarting = graph.getEdgesConnectedToVertex(startingVertex).sortedBy { it.toCode }
-        visitedNodeDepths[startingVertex] = 1
-        edgeStack.addAll(edgesFromStarting)
+    /**
+     * adds the edge between the vertices with the codes of the edge, if both are in the graph
+     */
+    fun addCombinedEdge(edge: CombinedEdge) {
+        val fromNode = nodeByCode(edge.fromCode) ?: return
+        val toNode = nodeByCode(edge.toCode) ?: return
+        this.addEdge(fromNode, toNode, edge)
     }
 
-    override fun hasNext(): Boolean = edgeStack.isNotEmpty()
-
-    @Suppress("DuplicatedCode")
-    override fun next(): CombinedVertex {
-        val currentEdge = edgeStack.removeLast()
-        visitedEdges.add(currentEdge)
-        val sourceNode = graph.nodeByCode(currentEdge.fromCode)!!
-        val targetNode = graph.nodeByCode(currentEdge.toCode)!!
-        return if (sourceNode !in visitedNodeDepths.keys && targetNode in visitedNodeDepths.keys) {
-            //flip the edge interpretation
-            val flippedSourceDepth = visitedNodeDepths[targetNode]!!
-            val flippedOutgoingEdgesUptoLevel = graph.getEdgesConnectedToVertex(sourceNode).filter {
-                flippedSourceDepth + currentEdge.weight + it.weight <= radius
-            }.filter { it !in visitedEdges }
-            edgeStack.addAll(flippedOutgoingEdgesUptoLevel)
-            visitedNodeDepths[sourceNode] = flippedSourceDepth + currentEdge.weight
-            sourceNode
-        } else {
-            val sourceDepth = visitedNodeDepths[sourceNode]!!
-            val outgoingEdgesUptoLevel = graph.getEdgesConnectedToVertex(targetNode).filter {
-                sourceDepth + currentEdge.weight + it.weight <= radius
-            }.filter { it !in visitedEdges }
-            edgeStack.addAll(outgoingEdgesUptoLevel)
-            visitedNodeDepths[targetNode] = sourceDepth + currentEdge.weight
-            targetNode
+    fun getEdgesConnectedToVertex(vertex: CombinedVertex): Set<CombinedEdge> = this.edgesOf(vertex)
+}
+
+/**
+ * computes the neighborhood of a focus vertex with a 0-1 BFS, ignoring the direction of the edges. Edges that are only
+ * in one side have weight 0, so that differences are always followed, while edges in both sides have weight 1. The
+ * neighborhood contains all vertices with a minimum distance of at most [radius] from the focus vertex, and all edges
+ * between them that can be reached within that distance.
+ */
+class NeighborhoodSearch(
+    private val combinedGraph: CombinedGraph,
+    private val focusVertex: CombinedVertex,
+    private val radius: Int,
+) {
+    private val distances = HashMap<CombinedVertex, Int>()
+
+    private fun computeDistances() {
+        val deque = ArrayDeque<CombinedVertex>()
+        distances[focusVertex] = 0
+        deque.addFirst(focusVertex)
+        while (deque.isNotEmpty()) {
+            val vertex = deque.removeFirst()
+            val distance = distances.getValue(vertex)
+            combinedGraph.getEdgesConnectedToVertex(vertex).forEach { edge ->
+                val newDistance = distance + edge.weight
+                if (newDistance > radius) return@forEach
+                val neighbor = Graphs.getOppositeVertex(combinedGraph, edge, vertex)
+                val knownDistance = distances[neighbor]
+                if (knownDistance != null && knownDistance <= newDistance) return@forEach
+                distances[neighbor] = newDistance
+                when (edge.weight) {
+                    0 -> deque.addFirst(neighbor)
+                    else -> deque.addLast(neighbor)
+                }
+            }
         }
     }
 
-    internal fun traverse(): CombinedGraph {
-        while (hasNext()) {
-            val nextNode = next()
-            logger.debug("Iteration ${++iteration}")
-            logger.debug("  - Next vertex: $nextNode")
-            logger.debug("  - Edge stack (${edgeStack.count()}): ${edgeStack.joinToString()}")
-            logger.debug("  - Node depths (${visitedNodeDepths.count()}): ${
-                visitedNodeDepths.entries.joinToString {
-                    "${it.key.code} (${it.key.side}): ${it.value}"
-                }
-            }")
-            logger.debug("  - visited edges (${visitedEdges.count()}): ${visitedEdges.joinToString()}")
+    fun search(): CombinedGraph {
+        computeDistances()
+        val subgraph = CombinedGraph()
+        distances.keys.forEach(subgraph::addVertex)
+        for ((vertex, distance) in distances) {
+            combinedGraph.outgoingEdgesOf(vertex).forEach { edge ->
+                val targetDistance = distances[combinedGraph.getEdgeTarget(edge)] ?: return@forEach
+                if (minOf(distance, targetDistance) + edge.weight <= radius) subgraph.addCombinedEdge(edge)
+            }
         }
-        visitedNodeDepths.keys.forEach(subgraph::addVertex)
-        visitedEdges.forEach(subgraph::addCombinedEdge)
-        logger.info("Built subgraph for focus concept '${startingVertex.code}' (${startingVertex.side}) with " + "radius=$radius in $iteration iterations. Got ${subgraph.vertexSet().size} vertices and ${subgraph.edgeSet().size} edges.")
+        logger.info("Built subgraph for focus concept '${focusVertex.code}' (${focusVertex.side}) with radius=$radius. " +
+                "Got ${subgraph.vertexSet().size} vertices and ${subgraph.edgeSet().size} edges.")
         return subgraph
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,283 @@
+package terminodiff.engine.graph
+
+import org.jgrapht.Graph
+import org.jgrapht.GraphType
+import org.jgrapht.graph.AbstractGraph
+import org.jgrapht.graph.DefaultGraphType
+import java.util.AbstractMap.SimpleImmutableEntry
+import java.util.Arrays
+import java.util.function.Supplier
+
+/**
+ * maps the codes of a CodeSystem (including codes that are only referenced by edges) to dense int ids.
+ * The ids follow the lexical order of the codes, so that iterating by id yields the codes in sorted order.
+ */
+class CodeDictionary(codes: Collection<String>) {
+    private val codes: Array<String> = codes.toTypedArray().also { it.sort() }
+
+    val size get() = codes.size
+
+    /**
+     * @return the id of the code, or -1 if the code is not in the dictionary
+     */
+    fun idOf(code: String): Int = Arrays.binarySearch(codes, code).let { if (it < 0) -1 else it }
+
+    fun codeOf(id: Int): String = codes[id]
+
+    operator fun contains(code: String) = idOf(code) >= 0
+}
+
+/**
+ * A directed concept graph in compressed sparse row (CSR) layout. Vertices are the ids of a [CodeDictionary], edges
+ * are stored as int arrays of target ids and interned property code ids, for both the outgoing and the incoming
+ * direction. Identical edges (same origin, target and property) are only stored once, and the adjacency of every
+ * vertex is sorted by target/origin and property.
+ */
+class CompactConceptGraph private constructor(
+    val dictionary: CodeDictionary,
+    private val propertyCodes: Array<String>,
+    private val outOffsets: IntArray,
+    private val outTargets: IntArray,
+    private val outProperties: IntArray,
+    private val inOffsets: IntArray,
+    private val inSources: IntArray,
+    private val inProperties: IntArray,
+) {
+    val vertexCount get() = dictionary.size
+    val edgeCount get() = outTargets.size
+
+    fun propertyCodeOf(propertyId: Int) = propertyCodes[propertyId]
+
+    fun propertyIdOf(propertyCode: String) = propertyCodes.indexOf(propertyCode)
+
+    fun outDegreeOf(id: Int) = outOffsets[id + 1] - outOffsets[id]
+
+    fun inDegreeOf(id: Int) = inOffsets[id + 1] - inOffsets[id]
+
+    inline fun forEachOutgoing(id: Int, action: (target: Int, propertyId: Int) -> Unit) {
+        for (i in outgoingRange(id)) action(outgoingTarget(i), outgoingProperty(i))
+    }
+
+    inline fun forEachIncoming(id: Int, action: (source: Int, propertyId: Int) -> Unit) {
+        for (i in incomingRange(id)) action(incomingSource(i), incomingProperty(i))
+    }
+
+    inline fun forEachEdge(action: (source: Int, target: Int, propertyId: Int) -> Unit) {
+        for (source in 0 until vertexCount) forEachOutgoing(source) { target, propertyId ->
+            action(source, target, propertyId)
+        }
+    }
+
+    fun outgoingRange(id: Int) = outOffsets[id] until outOffsets[id + 1]
+    fun outgoingTarget(index: Int) = outTargets[index]
+    fun outgoingProperty(index: Int) = outProperties[index]
+    fun incomingRange(id: Int) = inOffsets[id] until inOffsets[id + 1]
+    fun incomingSource(index: Int) = inSources[index]
+    fun incomingProperty(index: Int) = inProperties[index]
+
+    fun containsEdge(source: Int, target: Int, propertyId: Int): Boolean {
+        if (source < 0 || target < 0 || propertyId < 0) return false
+        val key = packKey(target, propertyId)
+        var low = outOffsets[source]
+        var high = outOffsets[source + 1] - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            val midKey = packKey(outTargets[mid], outProperties[mid])
+            when {
+                midKey < key -> low = mid + 1
+                midKey > key -> high = mid - 1
+                else -> return true
+            }
+        }
+        return false
+    }
+
+    fun containsEdge(from: String, to: String, propertyCode: String) =
+        containsEdge(dictionary.idOf(from), dictionary.idOf(to), propertyIdOf(propertyCode))
+
+    /**
+     * a read-only JGraphT view of this graph, e.g. for the Swing graph viewers
+     */
+    val graphView: Graph<String, FhirConceptEdge> by lazy { JGraphTView() }
+
+    /**
+     * collects the edges by code, and interns codes and properties when [build] is called
+     */
+    class Builder {
+        private val fromCodes = mutableListOf<String>()
+        private val toCodes = mutableListOf<String>()
+        private val edgePropertyCodes = mutableListOf<String>()
+
+        fun addEdge(from: String, to: String, propertyCode: String) {
+            fromCodes.add(from)
+            toCodes.add(to)
+            edgePropertyCodes.add(propertyCode)
+        }
+
+        /**
+         * @param vertexCodes the codes that are vertices, even if they are not connected to any edge
+         */
+        fun build(vertexCodes: Collection<String>): CompactConceptGraph {
+            val allCodes = HashSet<String>(vertexCodes.size + fromCodes.size)
+            allCodes.addAll(vertexCodes)
+            allCodes.addAll(fromCodes)
+            allCodes.addAll(toCodes)
+            val dictionary = CodeDictionary(allCodes)
+            val propertyCodes = edgePropertyCodes.distinct().sorted().toTypedArray()
+            val sources = IntArray(fromCodes.size) { dictionary.idOf(fromCodes[it]) }
+            val targets = IntArray(toCodes.size) { dictionary.idOf(toCodes[it]) }
+            val properties = IntArray(edgePropertyCodes.size) { Arrays.binarySearch(propertyCodes, edgePropertyCodes[it]) }
+            val (outOffsets, outKeys) = buildAdjacency(dictionary.size, sources, targets, properties)
+            val (inOffsets, inKeys) = buildAdjacency(dictionary.size, targets, sources, properties)
+            return CompactConceptGraph(dictionary = dictionary,
+                propertyCodes = propertyCodes,
+                outOffsets = outOffsets,
+                outTargets = IntArray(outKeys.size) { unpackVertex(outKeys[it]) },
+                outProperties = IntArray(outKeys.size) { unpackProperty(outKeys[it]) },
+                inOffsets = inOffsets,
+                inSources = IntArray(inKeys.size) { unpackVertex(inKeys[it]) },
+                inProperties = IntArray(inKeys.size) { unpackProperty(inKeys[it]) })
+        }
+
+        /**
+         * counting sort by [rows], then sorting and de-duplicating the packed (column, property) keys of every row
+         */
+        private fun buildAdjacency(
+            vertexCount: Int,
+            rows: IntArray,
+            columns: IntArray,
+            properties: IntArray,
+        ): Pair<IntArray, LongArray> {
+            val offsets = IntArray(vertexCount + 1)
+            rows.forEach { offsets[it + 1]++ }
+            for (i in 0 until vertexCount) offsets[i + 1] += offsets[i]
+            val insertAt = offsets.copyOf()
+            val keys = LongArray(rows.size)
+            rows.forEachIndexed { i, row -> keys[insertAt[row]++] = packKey(columns[i], properties[i]) }
+            val compactOffsets = IntArray(vertexCount + 1)
+            var size = 0
+            for (row in 0 until vertexCount) {
+                val start = offsets[row]
+                val end = offsets[row + 1]
+                Arrays.sort(keys, start, end)
+                for (i in start until end) {
+                    if (i > start && keys[i] == keys[i - 1]) continue
+                    keys[size++] = keys[i]
+                }
+                compactOffsets[row + 1] = size
+            }
+            return compactOffsets to keys.copyOf(size)
+        }
+    }
+
+    private inner class JGraphTView : AbstractGraph<String, FhirConceptEdge>() {
+
+        private fun requireId(code: String): Int =
+            dictionary.idOf(code).also { if (it < 0) throw IllegalArgumentException("no such vertex in graph: $code") }
+
+        private fun edgeAt(source: Int, target: Int, propertyId: Int) =
+            FhirConceptEdge(dictionary.codeOf(source), dictionary.codeOf(target), propertyCodes[propertyId])
+
+        private fun outgoingEdges(id: Int): List<FhirConceptEdge> =
+            outgoingRange(id).map { edgeAt(id, outTargets[it], outProperties[it]) }
+
+        private fun incomingEdges(id: Int): List<FhirConceptEdge> =
+            incomingRange(id).map { edgeAt(inSources[it], id, inProperties[it]) }
+
+        private val vertices = object : AbstractSet<String>() {
+            override val size get() = dictionary.size
+            override fun contains(element: String) = element in dictionary
+            override fun iterator() = (0 until dictionary.size).asSequence().map(dictionary::codeOf).iterator()
+        }
+
+        private val edges = object : AbstractSet<FhirConceptEdge>() {
+            override val size get() = edgeCount
+            override fun contains(element: FhirConceptEdge) = containsEdge(element.from, element.to, element.propertyCode)
+            override fun iterator() =
+                (0 until dictionary.size).asSequence().flatMap { outgoingEdges(it).asSequence() }.iterator()
+        }
+
+        override fun getAllEdges(sourceVertex: String?, targetVertex: String?): Set<FhirConceptEdge>? {
+            if (sourceVertex == null || targetVertex == null) return null
+            val source = dictionary.idOf(sourceVertex)
+            val target = dictionary.idOf(targetVertex)
+            if (source < 0 || target < 0) return null
+            return outgoingEdges(source).filterTo(LinkedHashSet()) { it.to == targetVertex }
+        }
+
+        override fun getEdge(sourceVertex: String?, targetVertex: String?): FhirConceptEdge? =
+            getAllEdges(sourceVertex, targetVertex)?.firstOrNull()
+
+        override fun getVertexSupplier(): Supplier<String>? = null
+        override fun getEdgeSupplier(): Supplier<FhirConceptEdge>? = null
+        override fun containsEdge(e: FhirConceptEdge?) = e != null && e in edges
+        override fun containsVertex(v: String?) = v != null && v in dictionary
+        override fun edgeSet(): Set<FhirConceptEdge> = edges
+        override fun vertexSet(): Set<String> = vertices
+        override fun degreeOf(vertex: String) = requireId(vertex).let { outDegreeOf(it) + inDegreeOf(it) }
+        override fun edgesOf(vertex: String): Set<FhirConceptEdge> =
+            requireId(vertex).let { id -> LinkedHashSet(outgoingEdges(id)).apply { addAll(incomingEdges(id)) } }
+
+        override fun inDegreeOf(vertex: String) = this@CompactConceptGraph.inDegreeOf(requireId(vertex))
+        override fun incomingEdgesOf(vertex: String): Set<FhirConceptEdge> =
+            LinkedHashSet(incomingEdges(requireId(vertex)))
+
+        override fun outDegreeOf(vertex: String) = this@CompactConceptGraph.outDegreeOf(requireId(vertex))
+        override fun outgoingEdgesOf(vertex: String): Set<FhirConceptEdge> =
+            LinkedHashSet(outgoingEdges(requireId(vertex)))
+
+        override fun getEdgeSource(e: FhirConceptEdge): String = e.from
+        override fun getEdgeTarget(e: FhirConceptEdge): String = e.to
+        override fun getType(): GraphType =
+            DefaultGraphType.Builder().directed().allowMultipleEdges(true).allowSelfLoops(true).weighted(false)
+                .modifiable(false).build()
+
+        override fun getEdgeWeight(e: FhirConceptEdge?) = Graph.DEFAULT_EDGE_WEIGHT
+
+        override fun setEdgeWeight(e: FhirConceptEdge?, weight: Double) = unmodifiable()
+        override fun addEdge(sourceVertex: String?, targetVertex: String?): FhirConceptEdge = unmodifiable()
+        override fun addEdge(sourceVertex: String?, targetVertex: String?, e: FhirConceptEdge?): Boolean =
+            unmodifiable()
+
+        override fun addVertex(): String = unmodifiable()
+        override fun addVertex(v: String?): Boolean = unmodifiable()
+        override fun removeEdge(sourceVertex: String?, targetVertex: String?): FhirConceptEdge = unmodifiable()
+        override fun removeEdge(e: FhirConceptEdge?): Boolean = unmodifiable()
+        override fun removeVertex(v: String?): Boolean = unmodifiable()
+
+        private fun unmodifiable(): Nothing = throw UnsupportedOperationException("the concept graph is read-only")
+    }
+}
+
+private fun packKey(vertex: Int, propertyId: Int): Long = (vertex.toLong() shl 32) or propertyId.toLong()
+private fun unpackVertex(key: Long): Int = (key ushr 32).toInt()
+private fun unpackProperty(key: Long): Int = key.toInt()
+
+/**
+ * the concept details of a CodeSystem, indexed by the ids of a [CodeDictionary]. Iteration follows the lexical order
+ * of the codes. Codes that are only referenced by edges have no details.
+ */
+class ConceptDetailsMap(
+    private val dictionary: CodeDictionary,
+    detailsByCode: Map<String, FhirConceptDetails>,
+) : AbstractMap<String, FhirConceptDetails>() {
+    private val details = arrayOfNulls<FhirConceptDetails>(dictionary.size).also { array ->
+        detailsByCode.forEach { (code, concept) -> array[dictionary.idOf(code)] = concept }
+    }
+
+    override val size = detailsByCode.size
+
+    fun detailsOf(id: Int): FhirConceptDetails? = details[id]
+
+    override fun get(key: String): FhirConceptDetails? = dictionary.idOf(key).let { if (it < 0) null else details[it] }
+
+    override fun containsKey(key: String) = get(key) != null
+
+    override val entries: Set<Map.Entry<String, FhirConceptDetails>> =
+        object : AbstractSet<Map.Entry<String, FhirConceptDetails>>() {
+            override val size get() = this@ConceptDetailsMap.size
+            override fun iterator() = details.indices.asSequence().mapNotNull { id ->
+                details[id]?.let { SimpleImmutableEntry(dictionary.codeOf(id), it) }
+            }.iterator()
+        }
+}
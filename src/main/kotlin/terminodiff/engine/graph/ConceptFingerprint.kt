@@ -0,0 +1,90 @@
+package terminodiff.engine.graph
+
+import terminodiff.terminodiff.engine.metadata.formatCoding
+
+/**
+ * a stable 64-bit fingerprint of the content of a concept, i.e. the display, definition, properties and designations,
+ * but not the code. Properties and designations are (stably) sorted by the keys that are used by the concept diff, so
+ * that two concepts with the same fingerprint have an identical concept diff, even if their elements are ordered
+ * differently.
+ */
+fun FhirConceptDetails.computeFingerprint(): Long = FingerprintHasher().apply {
+    putString(display)
+    putString(definition)
+    property.sortedBy { it.propertyCode }.let { sortedProperties ->
+        putInt(sortedProperties.size)
+        sortedProperties.forEach { p ->
+            putString(p.propertyCode)
+            putString(p.value)
+        }
+    }
+    designation.map { d -> designationKey(d) to d.value }.sortedWith(compareBy({ it.first.first }, { it.first.second }))
+        .let { sortedDesignations ->
+            putInt(sortedDesignations.size)
+            sortedDesignations.forEach { (key, value) ->
+                putString(key.first)
+                putString(key.second)
+                putString(value)
+            }
+        }
+}.finish()
+
+/**
+ * the key of a designation, as used by the concept diff
+ */
+fun designationKey(designation: FhirConceptDesignation): Pair<String?, String?> =
+    designation.language to designation.use?.let { coding -> formatCoding(coding) }
+
+/**
+ * a fingerprint of all concepts of a code system, combining the codes and fingerprints in the order of the codes
+ */
+fun ConceptDetailsMap.computeFingerprint(): Long = FingerprintHasher().apply {
+    putInt(size)
+    forEach { (code, details) ->
+        putString(code)
+        putLong(details.fingerprint)
+    }
+}.finish()
+
+/**
+ * FNV-1a over the UTF-16 code units, with length prefixes to separate fields (and null from empty strings), and a
+ * final avalanche step (from MurmurHash3)
+ */
+internal class FingerprintHasher {
+    private var hash = FNV_OFFSET_BASIS
+
+    private fun putChar(c: Int) {
+        hash = (hash xor (c and 0xffff).toLong()) * FNV_PRIME
+    }
+
+    fun putInt(value: Int) {
+        putChar(value ushr 16)
+        putChar(value)
+    }
+
+    fun putLong(value: Long) {
+        putInt((value ushr 32).toInt())
+        putInt(value.toInt())
+    }
+
+    fun putString(value: String?) {
+        if (value == null) {
+            putInt(-1)
+            return
+        }
+        putInt(value.length)
+        for (c in value) putChar(c.code)
+    }
+
+    fun finish(): Long {
+        var h = hash
+        h = (h xor (h ushr 33)) * -0xae502812aa7333L
+        h = (h xor (h ushr 33)) * -0x3b314601e57a13adL
+        return h xor (h ushr 33)
+    }
+
+    companion object {
+        private const val FNV_OFFSET_BASIS = -0x340d631b7bdddcdbL
+        private const val FNV_PRIME = 0x100000001b3L
+    }
+}
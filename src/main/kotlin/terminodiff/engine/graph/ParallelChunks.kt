@@ -0,0 +1,31 @@
+package terminodiff.engine.graph
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.joinAll
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+
+private const val CHUNKS_PER_PROCESSOR = 4
+
+/**
+ * runs [action] for every index in 0 until [size], concurrently on [Dispatchers.Default]. The indices are split into
+ * about [CHUNKS_PER_PROCESSOR] chunks per processor, but not smaller than [minChunkSize], so that the overhead of the
+ * coroutines does not matter for cheap actions. Every chunk has its own range of indices, so the action may write to
+ * the slot of its index in an array without synchronization. This returns when all chunks are done, and is cancelled
+ * with the calling coroutine.
+ */
+suspend fun parallelForEachIndex(size: Int, minChunkSize: Int, action: (Int) -> Unit) {
+    val chunkSize = (size / (Runtime.getRuntime().availableProcessors() * CHUNKS_PER_PROCESSOR) + 1)
+        .coerceAtLeast(minChunkSize)
+    withContext(Dispatchers.Default) {
+        (0 until size step chunkSize).map { start ->
+            launch {
+                for (i in start until minOf(start + chunkSize, size)) {
+                    ensureActive()
+                    action(i)
+                }
+            }
+        }.joinAll()
+    }
+}
@@ -0,0 +1,98 @@
+package terminodiff.engine.graph
+
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import java.util.*
+
+private val logger: Logger = LoggerFactory.getLogger(RecodedConceptDetector::class.java)
+
+/**
+ * a concept that is only in the left code system, and a concept that is only in the right code system, that are
+ * likely the same concept with a new code
+ */
+data class RecodedConcept(
+    val leftCode: String,
+    val rightCode: String,
+    val match: Match,
+) {
+    enum class Match {
+        /**
+         * the display, definition, properties and designations are the same
+         */
+        CONTENT,
+
+        /**
+         * only the (normalized) display is the same
+         */
+        DISPLAY
+    }
+}
+
+/**
+ * finds concepts that were recoded, by joining the concepts only in the left side and the concepts only in the right
+ * side on their content fingerprints (c.f. [FhirConceptDetails.fingerprint]), and then the remaining concepts on their
+ * normalized displays. Both are hash joins, so that this runs in linear time in the number of unmatched concepts.
+ *
+ * Keys that are shared by more than [maxCandidates] concepts on one side (e.g. concepts without any content) are
+ * not specific enough, and are ignored.
+ */
+class RecodedConceptDetector(
+    private val diff: CodeSystemDiffBuilder,
+    private val maxCandidates: Int = DEFAULT_MAX_CANDIDATES,
+) {
+
+    fun detect(): List<RecodedConcept> {
+        val leftCodes = diff.onlyInLeftConcepts
+        val rightCodes = diff.onlyInRightConcepts
+        if (leftCodes.isEmpty() || rightCodes.isEmpty()) return emptyList()
+        val leftDetails = leftCodes.mapNotNull { diff.leftBuilder.nodeTree[it] }
+        val rightDetails = rightCodes.mapNotNull { diff.rightBuilder.nodeTree[it] }
+
+        val byContent = hashJoin(leftDetails, rightDetails, RecodedConcept.Match.CONTENT) { it.fingerprint }
+        val matchedLeft = byContent.mapTo(HashSet()) { it.leftCode }
+        val matchedRight = byContent.mapTo(HashSet()) { it.rightCode }
+        val byDisplay = hashJoin(leftDetails.filter { it.code !in matchedLeft },
+            rightDetails.filter { it.code !in matchedRight },
+            RecodedConcept.Match.DISPLAY) { normalizeDisplay(it.display) }
+
+        logger.info("${byContent.size} recoded concept(-s) by content, ${byDisplay.size} by display")
+        return byContent + byDisplay
+    }
+
+    /**
+     * builds a hash table of the right concepts by [key], and probes it with the left concepts, in their order.
+     * Concepts with a null key are never matched.
+     */
+    private fun <K : Any> hashJoin(
+        left: List<FhirConceptDetails>,
+        right: List<FhirConceptDetails>,
+        match: RecodedConcept.Match,
+        key: (FhirConceptDetails) -> K?,
+    ): List<RecodedConcept> {
+        val rightByKey = HashMap<K, MutableList<String>>(right.size * 2)
+        right.forEach { concept ->
+            key(concept)?.let { rightByKey.getOrPut(it) { mutableListOf() }.add(concept.code) }
+        }
+        val leftCounts = HashMap<K, Int>(left.size * 2)
+        left.forEach { concept -> key(concept)?.let { leftCounts.merge(it, 1, Int::plus) } }
+        return left.flatMap { concept ->
+            val conceptKey = key(concept) ?: return@flatMap emptyList()
+            val candidates = rightByKey[conceptKey] ?: return@flatMap emptyList()
+            if (candidates.size > maxCandidates || leftCounts.getValue(conceptKey) > maxCandidates) {
+                return@flatMap emptyList()
+            }
+            candidates.map { rightCode -> RecodedConcept(concept.code, rightCode, match) }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_MAX_CANDIDATES = 3
+        private val whitespace = Regex("\\s+")
+
+        /**
+         * case and whitespace are ignored when comparing displays
+         */
+        fun normalizeDisplay(display: String?): String? =
+            display?.trim()?.replace(whitespace, " ")?.lowercase(Locale.ROOT)?.takeIf { it.isNotEmpty() }
+    }
+}
@@ -0,0 +1,202 @@
+package terminodiff.terminodiff.engine.graph
+
+import org.jgrapht.GraphPath
+import org.jgrapht.graph.GraphWalk
+
+/**
+ * the sides of the edges of a (non-empty) path in the combined graph, as far as they matter for the concept map
+ */
+enum class PathSides {
+    /**
+     * all edges are in both sides
+     */
+    BOTH,
+
+    /**
+     * all edges are only in the left side
+     */
+    LEFT,
+
+    /**
+     * all edges are only in the right side
+     */
+    RIGHT,
+
+    /**
+     * the edges are from different sides, and at least one of them is not in both sides
+     */
+    MIXED;
+
+    /**
+     * whether the path has an edge that is not in both sides
+     */
+    val hasDifference get() = this != BOTH
+
+    fun followedBy(side: GraphSide): PathSides = when (this) {
+        of(side) -> this
+        else -> MIXED
+    }
+
+    companion object {
+        fun of(side: GraphSide) = when (side) {
+            GraphSide.LEFT -> LEFT
+            GraphSide.RIGHT -> RIGHT
+            GraphSide.BOTH -> BOTH
+        }
+    }
+}
+
+/**
+ * finds the paths from [origin] to every other vertex of [graph], distinguished by the sides of their edges, without
+ * enumerating all paths, which is exponential in dense hierarchies.
+ *
+ * First, a BFS over the states (vertex, [PathSides] of the walk so far) visits every state once, in O(V + E). It
+ * finds the shortest paths whose edges are all in one side, which are simple, and the vertices that are reachable on
+ * a walk with an edge that is not in both sides. Only simple paths count for the latter, though. Otherwise, a cycle,
+ * like the one of a hierarchy that is reversed between the versions, would turn a path that is in both sides into one
+ * with a difference (e.g. O->X in both sides, then X->Y->X). A vertex is accepted if one of the walks on which the BFS
+ * reaches it with a difference is a simple path, which holds for almost all of them.
+ *
+ * The rest are decided exactly by [findSimplePathsWithDifference]. This takes O(P * (V + E)) for the number P of
+ * simple paths from the origin over edges in both sides to an edge that is only in one side, which is exponential
+ * in the worst case (the problem contains the two disjoint paths problem, which is NP-complete for directed graphs),
+ * but small in the neighborhoods of the concept map.
+ */
+class SidePathSearch(
+    private val graph: CombinedGraph,
+    private val origin: CombinedVertex,
+) {
+    /**
+     * the sides are null for the empty walk at the origin
+     */
+    private data class State(val vertex: CombinedVertex, val sides: PathSides?)
+
+    // the state and edge from which every state was reached first, i.e. on a shortest walk
+    private val predecessors = HashMap<State, Pair<State, CombinedEdge>?>()
+
+    // the vertices that are reachable on a simple path with an edge that is not in both sides
+    private val reachedWithDifference = HashSet<CombinedVertex>()
+
+    init {
+        val start = State(origin, null)
+        predecessors[start] = null
+        val queue = ArrayDeque<State>()
+        queue.addLast(start)
+        while (queue.isNotEmpty()) {
+            val state = queue.removeFirst()
+            graph.outgoingEdgesOf(state.vertex).forEach { edge ->
+                val sides = state.sides?.followedBy(edge.side) ?: PathSides.of(edge.side)
+                val next = State(graph.getEdgeTarget(edge), sides)
+                if (next in predecessors) return@forEach
+                predecessors[next] = state to edge
+                queue.addLast(next)
+            }
+        }
+        val undecided = HashSet<CombinedVertex>()
+        predecessors.keys.filter { it.sides?.hasDifference == true && it.vertex != origin }.forEach { state ->
+            when (isSimple(state)) {
+                true -> reachedWithDifference.add(state.vertex)
+                else -> undecided.add(state.vertex)
+            }
+        }
+        undecided.removeAll(reachedWithDifference)
+        if (undecided.isNotEmpty()) reachedWithDifference.addAll(findSimplePathsWithDifference(undecided))
+    }
+
+    private fun isSimple(state: State): Boolean {
+        val vertices = HashSet<CombinedVertex>()
+        var current: State? = state
+        while (current != null) {
+            if (!vertices.add(current.vertex)) return false
+            current = predecessors[current]?.first
+        }
+        return true
+    }
+
+    /**
+     * which of the [candidates] are reachable on a simple path with an edge that is not in both sides. Every such path
+     * starts with a simple path over edges in both sides, then follows an edge that is only in one side, and then any
+     * path that avoids the vertices before. The prefixes are enumerated by a DFS, and the rest of the paths is found
+     * by a BFS from the end of every prefix, for all candidates at once.
+     */
+    private fun findSimplePathsWithDifference(candidates: Set<CombinedVertex>): Set<CombinedVertex> {
+        val found = HashSet<CombinedVertex>()
+        val onPath = HashSet<CombinedVertex>()
+        val canReachDifference = verticesReachingDifference()
+
+        fun extend(vertex: CombinedVertex) {
+            onPath.add(vertex)
+            for (edge in graph.outgoingEdgesOf(vertex)) {
+                if (found.size == candidates.size) break
+                val next = graph.getEdgeTarget(edge)
+                if (next in onPath) continue
+                when (edge.side) {
+                    GraphSide.BOTH -> if (next in canReachDifference) extend(next)
+                    else -> reachableAvoiding(next, onPath).filterTo(found) { it in candidates }
+                }
+            }
+            onPath.remove(vertex)
+        }
+
+        extend(origin)
+        return found
+    }
+
+    /**
+     * the vertices from which an edge that is only in one side is reachable over edges in both sides
+     */
+    private fun verticesReachingDifference(): Set<CombinedVertex> {
+        val reaching = HashSet<CombinedVertex>()
+        val queue = ArrayDeque<CombinedVertex>()
+        graph.edgeSet().filter { it.side != GraphSide.BOTH }.map(graph::getEdgeSource).forEach { source ->
+            if (reaching.add(source)) queue.addLast(source)
+        }
+        while (queue.isNotEmpty()) {
+            graph.incomingEdgesOf(queue.removeFirst()).filter { it.side == GraphSide.BOTH }.forEach { edge ->
+                val source = graph.getEdgeSource(edge)
+                if (reaching.add(source)) queue.addLast(source)
+            }
+        }
+        return reaching
+    }
+
+    private fun reachableAvoiding(start: CombinedVertex, avoided: Set<CombinedVertex>): Set<CombinedVertex> {
+        val reached = hashSetOf(start)
+        val queue = ArrayDeque(listOf(start))
+        while (queue.isNotEmpty()) {
+            graph.outgoingEdgesOf(queue.removeFirst()).map(graph::getEdgeTarget).forEach { next ->
+                if (next !in avoided && reached.add(next)) queue.addLast(next)
+            }
+        }
+        return reached
+    }
+
+    /**
+     * whether there is a path with an edge that is not in both sides
+     */
+    fun hasPathWithDifference(vertex: CombinedVertex) = vertex in reachedWithDifference
+
+    /**
+     * the shortest path to [vertex] whose edges are all [GraphSide.LEFT] or all [GraphSide.RIGHT]
+     */
+    fun shortestUniformPath(vertex: CombinedVertex): GraphPath<CombinedVertex, CombinedEdge>? =
+        listOf(PathSides.LEFT, PathSides.RIGHT).mapNotNull { sides -> pathTo(State(vertex, sides)) }
+            .minByOrNull { it.length }
+
+    private fun pathTo(state: State): GraphPath<CombinedVertex, CombinedEdge>? {
+        if (state !in predecessors) return null
+        val vertices = mutableListOf(state.vertex)
+        val edges = mutableListOf<CombinedEdge>()
+        var current = predecessors[state]
+        while (current != null) {
+            val (previous, edge) = current
+            vertices.add(previous.vertex)
+            edges.add(edge)
+            current = predecessors[previous]
+        }
+        // the path was collected from its end
+        vertices.reverse()
+        edges.reverse()
+        return GraphWalk(graph, vertices.first(), vertices.last(), vertices, edges, edges.size.toDouble())
+    }
+}
@@ -0,0 +1,176 @@
+package terminodiff.engine.graph
+
+import kotlinx.coroutines.Dispatchers
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import java.util.*
+
+private val logger: Logger = LoggerFactory.getLogger(SimilarConceptIndex::class.java)
+
+/**
+ * a concept with a similar display, definition or designations, with the estimated Jaccard similarity (between 0 and
+ * 1) of their character trigrams
+ */
+data class SimilarConcept(val code: String, val similarity: Double)
+
+/**
+ * finds concepts with similar texts (display, definition and designations) without comparing every pair of concepts.
+ * The texts of every concept are split into character trigrams, which are summarized by a MinHash signature of
+ * [NUM_HASHES] values. The signatures are split into [BANDS] bands, and concepts that share a band are stored in the
+ * same bucket (locality-sensitive hashing), so that a query only has to look at the concepts in its buckets. Concepts
+ * with a Jaccard similarity of about 0.5 share a band with a probability of about 2/3, and the probability quickly
+ * grows (and shrinks) above (and below) that.
+ *
+ * Buckets with more than [MAX_BUCKET_SIZE] concepts are ignored by queries, like stop words: they come from text that
+ * many concepts share, and would make every query scan a large part of the index.
+ *
+ * The buckets are stored as one sorted array of the (32-bit) keys of the bands, each combined with the index of the
+ * concept, so that the index does not need an object per entry. Different bands with the same key only add a few
+ * candidates, which are discarded when they are scored.
+ */
+class SimilarConceptIndex private constructor(
+    private val codes: List<String>,
+    private val signatures: List<IntArray?>,
+) {
+    private val buckets: LongArray
+
+    init {
+        val entries = LongArray(signatures.count { it != null } * BANDS)
+        var size = 0
+        signatures.forEachIndexed { i, signature ->
+            if (signature == null) return@forEachIndexed
+            for (band in 0 until BANDS) entries[size++] = bucketEntry(bandKey(signature, band), i)
+        }
+        entries.sort()
+        buckets = entries
+        logger.info("indexed ${codes.size} concepts in ${entries.size} bucket entries")
+    }
+
+    /**
+     * @return at most [limit] concepts whose estimated similarity to [concept] is at least [minSimilarity], the most
+     * similar first
+     */
+    fun query(concept: FhirConceptDetails, limit: Int, minSimilarity: Double = DEFAULT_MIN_SIMILARITY) =
+        computeSignature(concept)?.let { query(it, limit, minSimilarity) } ?: emptyList()
+
+    private fun query(signature: IntArray, limit: Int, minSimilarity: Double): List<SimilarConcept> {
+        val candidates = HashSet<Int>()
+        for (band in 0 until BANDS) {
+            val key = bandKey(signature, band)
+            val start = findFirstEntry(key)
+            var end = start
+            while (end < buckets.size && (buckets[end] ushr 32).toInt() == key) end++
+            if (end - start > MAX_BUCKET_SIZE) continue
+            for (entry in start until end) candidates.add(buckets[entry].toInt())
+        }
+        return candidates.map { i -> SimilarConcept(codes[i], estimateSimilarity(signature, signatures[i]!!)) }
+            .filter { it.similarity >= minSimilarity }
+            .sortedWith(compareByDescending<SimilarConcept> { it.similarity }.thenBy { it.code })
+            .take(limit)
+    }
+
+    /**
+     * runs [query] for all [concepts] concurrently on [Dispatchers.Default]
+     */
+    suspend fun queryAll(
+        concepts: List<FhirConceptDetails>,
+        limit: Int,
+        minSimilarity: Double = DEFAULT_MIN_SIMILARITY,
+    ): Map<String, List<SimilarConcept>> {
+        val results = arrayOfNulls<List<SimilarConcept>>(concepts.size)
+        parallelForEachIndex(concepts.size, MIN_CHUNK_SIZE) { i ->
+            results[i] = query(concepts[i], limit, minSimilarity)
+        }
+        return concepts.indices.filter { results[it]!!.isNotEmpty() }.associate { concepts[it].code to results[it]!! }
+    }
+
+    /**
+     * the position of the first entry with [key] in the sorted buckets (or where it would be)
+     */
+    private fun findFirstEntry(key: Int): Int {
+        val position = buckets.binarySearch(bucketEntry(key, 0))
+        return if (position >= 0) position else -(position + 1)
+    }
+
+    companion object {
+        const val BANDS = 16
+        const val ROWS = 4
+        const val NUM_HASHES = BANDS * ROWS
+        const val DEFAULT_MIN_SIMILARITY = 0.3
+        const val MAX_BUCKET_SIZE = 1000
+        private const val SHINGLE_LENGTH = 3
+        private const val MIN_CHUNK_SIZE = 256
+        private val separators = Regex("[^\\p{L}\\p{N}]+")
+
+        // the seeds of the hash functions, fixed so that the signatures are reproducible
+        private val seeds = Random(0x5eed).let { random -> IntArray(NUM_HASHES) { random.nextInt() } }
+
+        /**
+         * computes the signatures of [concepts] concurrently on [Dispatchers.Default], and indexes them
+         */
+        suspend fun build(concepts: Collection<FhirConceptDetails>): SimilarConceptIndex {
+            val conceptList = concepts.toList()
+            val signatures = arrayOfNulls<IntArray>(conceptList.size)
+            parallelForEachIndex(conceptList.size, MIN_CHUNK_SIZE) { i ->
+                signatures[i] = computeSignature(conceptList[i])
+            }
+            return SimilarConceptIndex(conceptList.map { it.code }, signatures.asList())
+        }
+
+        /**
+         * the MinHash signature of the trigrams of the texts of the concept, or null if the concept has no text.
+         * Every text is normalized (lower case, words separated by single spaces) and padded with spaces, so that
+         * the start and end of words are trigrams of their own.
+         */
+        private fun computeSignature(concept: FhirConceptDetails): IntArray? {
+            val texts = (listOfNotNull(concept.display, concept.definition) + concept.designation.map { it.value })
+                .map { text -> " ${text.lowercase(Locale.ROOT).replace(separators, " ").trim()} " }
+                .filter { it.isNotBlank() }
+            if (texts.isEmpty()) return null
+            val shingles = IntArray(texts.sumOf { it.length - SHINGLE_LENGTH + 1 })
+            var count = 0
+            texts.forEach { text ->
+                for (start in 0..text.length - SHINGLE_LENGTH) {
+                    var hash = 0
+                    for (i in start until start + SHINGLE_LENGTH) hash = hash * 31 + text[i].code
+                    shingles[count++] = hash
+                }
+            }
+            // the signature only depends on the distinct shingles, which are adjacent when they are sorted
+            shingles.sort()
+            val signature = IntArray(NUM_HASHES) { Int.MAX_VALUE }
+            shingles.forEachIndexed { i, shingle ->
+                if (i > 0 && shingles[i - 1] == shingle) return@forEachIndexed
+                for (h in 0 until NUM_HASHES) {
+                    val value = mix(shingle xor seeds[h])
+                    if (value < signature[h]) signature[h] = value
+                }
+            }
+            return signature
+        }
+
+        /**
+         * the finalization step of MurmurHash3, so that every seed gives an independent permutation of the shingles
+         */
+        private fun mix(value: Int): Int {
+            var h = value
+            h = (h xor (h ushr 16)) * -0x7a143595
+            h = (h xor (h ushr 13)) * -0x3d4d51cb
+            return h xor (h ushr 16)
+        }
+
+        private fun bandKey(signature: IntArray, band: Int): Int {
+            var key = band
+            for (row in band * ROWS until (band + 1) * ROWS) key = mix(key * 31 + signature[row])
+            return key
+        }
+
+        /**
+         * the key in the upper 32 bits, so that the entries are sorted by key; the index is never negative
+         */
+        private fun bucketEntry(key: Int, index: Int): Long = (key.toLong() shl 32) or index.toLong()
+
+        private fun estimateSimilarity(a: IntArray, b: IntArray): Double =
+            a.indices.count { a[it] == b[it] }.toDouble() / NUM_HASHES
+    }
+}
@@ -1,19 +1,16 @@
 package terminodiff.terminodiff.engine.metadata
 
-
-import androidx.compose.runtime.derivedStateOf
-import androidx.compose.runtime.getValue
 import org.hl7.fhir.r4.model.*
 import terminodiff.engine.concepts.KeyedListDiffResult
 import terminodiff.i18n.LocalizedStrings
 
 typealias ResultPair = Pair<MetadataComparisonResult, (LocalizedStrings.() -> String)?>
 
-class MetadataDiff(left: CodeSystem, right: CodeSystem, localizedStrings: LocalizedStrings) {
+class MetadataDiff(left: CodeSystem, right: CodeSystem) {
 
-    private val comparisonDefinitions by derivedStateOf { generateComparisonDefinitions(localizedStrings) }
+    private val comparisonDefinitions by lazy { generateComparisonDefinitions() }
 
-    val comparisons by derivedStateOf { runComparisons(left, right, comparisonDefinitions) }
+    val comparisons by lazy { runComparisons(left, right, comparisonDefinitions) }
 
     private fun runComparisons(
         left: CodeSystem,
@@ -30,33 +27,33 @@ class MetadataDiff(left: CodeSystem, right: CodeSystem, localizedStrings: Locali
 
     }
 
-    private fun generateComparisonDefinitions(localizedStrings: LocalizedStrings) =
-        listOf(StringComparisonItem({ id }, true, localizedStrings) { it.id },
-            StringComparisonItem({ canonicalUrl }, false, localizedStrings) { it.url },
-            IdentifierListDiffItem(localizedStrings),
-            StringComparisonItem({ version }, true, localizedStrings) { it.version },
-            StringComparisonItem({ name }, false, localizedStrings) { it.name },
-            StringComparisonItem({ title }, false, localizedStrings) { it.title },
+    private fun generateComparisonDefinitions() =
+        listOf(StringComparisonItem("id", { id }, true) { it.id },
+            StringComparisonItem("url", { canonicalUrl }, false) { it.url },
+            IdentifierListDiffItem(),
+            StringComparisonItem("version", { version }, true) { it.version },
+            StringComparisonItem("name", { name }, false) { it.name },
+            StringComparisonItem("title", { title }, false) { it.title },
             // it would be great if Enum items could be refactored to their own class, but HAPI FHIR enums don't have a
             // common supertype, so string comparison it is!
-            StringComparisonItem({ status }, false, localizedStrings) { it.status?.display },
-            BooleanComparisonItem({ experimental }, false, localizedStrings) { it.experimental },
-            StringComparisonItem({ date }, true, localizedStrings) { it.date?.toString() },
-            StringComparisonItem({ publisher }, false, localizedStrings) { it.publisher?.toString() },
-            ContactComparisonItem(localizedStrings),
-            StringComparisonItem({ description }, false, localizedStrings) { it.description },
-            UsageContextComparisonItem(localizedStrings),
-            CodeableConceptComparisonItem({ jurisdiction }, localizedStrings, false) { it.jurisdiction },
-            StringComparisonItem({ purpose }, false, localizedStrings) { it.purpose },
-            StringComparisonItem({ copyright }, false, localizedStrings) { it.copyright },
-            BooleanComparisonItem({ caseSensitive }, false, localizedStrings) { it.caseSensitive },
-            StringComparisonItem({ valueSet }, false, localizedStrings) { it.valueSet },
-            StringComparisonItem({ hierarchyMeaning }, false, localizedStrings) { it.hierarchyMeaning?.display },
-            BooleanComparisonItem({ compositional }, false, localizedStrings) { it.compositional },
-            BooleanComparisonItem({ versionNeeded }, false, localizedStrings) { it.versionNeeded },
-            StringComparisonItem({ content }, false, localizedStrings) { it.content?.display },
-            NumericComparisonItem({ count }, false, localizedStrings) { it.count },
-            StringComparisonItem({ supplements }, false, localizedStrings) { it.supplements })
+            StringComparisonItem("status", { status }, false) { it.status?.display },
+            BooleanComparisonItem("experimental", { experimental }, false) { it.experimental },
+            StringComparisonItem("date", { date }, true) { it.date?.toString() },
+            StringComparisonItem("publisher", { publisher }, false) { it.publisher?.toString() },
+            ContactComparisonItem(),
+            StringComparisonItem("description", { description }, false) { it.description },
+            UsageContextComparisonItem(),
+            CodeableConceptComparisonItem("jurisdiction", { jurisdiction }, false) { it.jurisdiction },
+            StringComparisonItem("purpose", { purpose }, false) { it.purpose },
+            StringComparisonItem("copyright", { copyright }, false) { it.copyright },
+            BooleanComparisonItem("caseSensitive", { caseSensitive }, false) { it.caseSensitive },
+            StringComparisonItem("valueSet", { valueSet }, false) { it.valueSet },
+            StringComparisonItem("hierarchyMeaning", { hierarchyMeaning }, false) { it.hierarchyMeaning?.display },
+            BooleanComparisonItem("compositional", { compositional }, false) { it.compositional },
+            BooleanComparisonItem("versionNeeded", { versionNeeded }, false) { it.versionNeeded },
+            StringComparisonItem("content", { content }, false) { it.content?.display },
+            NumericComparisonItem("count", { count }, false) { it.count },
+            StringComparisonItem("supplements", { supplements }, false) { it.supplements })
 }
 
 open class MetadataComparison(
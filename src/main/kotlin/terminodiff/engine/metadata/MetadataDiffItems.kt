@@ -5,21 +5,28 @@ import terminodiff.engine.concepts.KeyedListDiff
 import terminodiff.engine.concepts.KeyedListDiffResult
 import terminodiff.engine.concepts.KeyedListDiffResultKind
 import terminodiff.i18n.LocalizedStrings
-import terminodiff.ui.theme.DiffColors
-import terminodiff.ui.util.ColumnSpec
-import terminodiff.ui.util.chipForDiffResult
-import terminodiff.ui.util.textForValue
 
 abstract class MetadataDiffItem(
+    /**
+     * the name of the element in the FHIR CodeSystem resource, which identifies the item independently of the locale
+     */
+    val element: String,
     val label: LocalizedStrings.() -> String,
     val expectDifferences: Boolean,
-    protected val localizedStrings: LocalizedStrings,
 ) {
     abstract fun compare(
         left: CodeSystem, right: CodeSystem,
     ): ResultPair
 
-    abstract fun getRenderDisplay(codeSystem: CodeSystem): String?
+    /**
+     * the value of the item in the code system, independent of the locale, e.g. for exports
+     */
+    abstract fun getValue(codeSystem: CodeSystem): String?
+
+    /**
+     * the value of the item in the code system, as shown in the UI
+     */
+    open fun getRenderDisplay(codeSystem: CodeSystem, localizedStrings: LocalizedStrings): String? = getValue(codeSystem)
 }
 
 enum class MetadataComparisonResult {
@@ -27,13 +34,14 @@ enum class MetadataComparisonResult {
 }
 
 open class StringComparisonItem(
+    element: String,
     label: LocalizedStrings.() -> String,
     expectDifferences: Boolean,
-    localizedStrings: LocalizedStrings,
     val drawItalic: Boolean = false,
     private val instanceGetter: (CodeSystem) -> String?,
-) : MetadataDiffItem(label, expectDifferences, localizedStrings) {
-    override fun getRenderDisplay(codeSystem: CodeSystem): String? = instanceGetter.invoke(codeSystem)
+) : MetadataDiffItem(element, label, expectDifferences) {
+    override fun getValue(codeSystem: CodeSystem): String? = instanceGetter.invoke(codeSystem)
+
     override fun compare(
         left: CodeSystem,
         right: CodeSystem,
@@ -50,57 +58,42 @@ open class StringComparisonItem(
 }
 
 class BooleanComparisonItem(
+    element: String,
     label: LocalizedStrings.() -> String,
     expectDifferences: Boolean,
-    localizedStrings: LocalizedStrings,
     private val booleanGetter: (CodeSystem) -> Boolean?,
-) : StringComparisonItem(label,
-    expectDifferences,
-    localizedStrings,
-    drawItalic = true,
-    instanceGetter = { localizedStrings.boolean_(booleanGetter(it)) })
+) : StringComparisonItem(element, label, expectDifferences, drawItalic = true, instanceGetter = { booleanGetter(it)?.toString() }) {
+    // null is a value of its own for booleans, which is rendered as such
+    override fun compare(left: CodeSystem, right: CodeSystem): ResultPair =
+        when (booleanGetter(left) == booleanGetter(right)) {
+            true -> MetadataComparisonResult.IDENTICAL to null
+            else -> MetadataComparisonResult.DIFFERENT to { differentValue }
+        }
+
+    override fun getRenderDisplay(codeSystem: CodeSystem, localizedStrings: LocalizedStrings): String =
+        localizedStrings.boolean_(booleanGetter(codeSystem))
+}
 
 class NumericComparisonItem(
+    element: String,
     label: LocalizedStrings.() -> String,
     expectDifferences: Boolean,
-    localizedStrings: LocalizedStrings,
     private val numericGetter: (CodeSystem) -> Number?,
-) : StringComparisonItem(label, expectDifferences, localizedStrings, drawItalic = true, instanceGetter = {
+) : StringComparisonItem(element, label, expectDifferences, drawItalic = true, instanceGetter = {
     numericGetter(it).toString()
 })
 
 abstract class MetadataKeyedListDiffItem<ItemType, KeyType>(
+    element: String,
     label: LocalizedStrings.() -> String,
     expectDifferences: Boolean,
-    localizedStrings: LocalizedStrings,
     private val instanceGetter: (CodeSystem) -> List<ItemType>,
     private val displayLimit: Int = 3,
-) : MetadataDiffItem(label, expectDifferences, localizedStrings) {
+) : MetadataDiffItem(element, label, expectDifferences) {
 
     abstract fun getKey(instance: ItemType): KeyType
     abstract fun getStringValue(instance: ItemType): String?
 
-    abstract fun getKeyColumns(
-        localizedStrings: LocalizedStrings,
-    ): List<ColumnSpec<KeyedListDiffResult<KeyType, String>>>
-
-    fun getColumns(
-        localizedStrings: LocalizedStrings,
-        diffColors: DiffColors,
-    ): List<ColumnSpec<KeyedListDiffResult<KeyType, String>>> =
-        getKeyColumns(localizedStrings).plus(getCommonColumns(localizedStrings, diffColors))
-
-    private fun getCommonColumns(
-        localizedStrings: LocalizedStrings,
-        diffColors: DiffColors,
-    ): List<ColumnSpec<KeyedListDiffResult<KeyType, String>>> = listOf(ColumnSpec(localizedStrings.comparison, 0.1f) {
-        chipForDiffResult(localizedStrings, diffColors, it.result)
-    }, ColumnSpec(localizedStrings.leftValue, 0.2f) {
-        textForValue(it.leftValue?.joinToString())
-    }, ColumnSpec(localizedStrings.rightValue, 0.2f) {
-        textForValue(it.rightValue?.joinToString())
-    })
-
     private fun detailedCompare(
         left: CodeSystem,
         right: CodeSystem,
@@ -121,7 +114,10 @@ abstract class MetadataKeyedListDiffItem<ItemType, KeyType>(
     }
 
 
-    override fun getRenderDisplay(codeSystem: CodeSystem): String =
+    override fun getValue(codeSystem: CodeSystem): String =
+        instanceGetter.invoke(codeSystem).mapNotNull(::getStringValue).joinToString("; ")
+
+    override fun getRenderDisplay(codeSystem: CodeSystem, localizedStrings: LocalizedStrings): String =
         instanceGetter.invoke(codeSystem).mapNotNull(::getLongDisplayValue).joinToString("; ", limit = displayLimit)
 
     override fun compare(left: CodeSystem, right: CodeSystem): ResultPair {
@@ -137,10 +133,10 @@ abstract class MetadataKeyedListDiffItem<ItemType, KeyType>(
 
 typealias IdentifierKeyType = Pair<Identifier.IdentifierUse, String>
 
-class IdentifierListDiffItem(localizedStrings: LocalizedStrings) :
-    MetadataKeyedListDiffItem<Identifier, IdentifierKeyType>(label = { identifiers },
+class IdentifierListDiffItem :
+    MetadataKeyedListDiffItem<Identifier, IdentifierKeyType>(element = "identifier",
+        label = { identifiers },
         expectDifferences = false,
-        localizedStrings = localizedStrings,
         instanceGetter = { it.identifier }) {
 
     override fun getKey(instance: Identifier): IdentifierKeyType = instance.use to instance.system
@@ -157,18 +153,9 @@ class IdentifierListDiffItem(localizedStrings: LocalizedStrings) :
         result = result,
         explanation = explanation,
         detailedResult = detailedCompare)
-
-    override fun getKeyColumns(
-        localizedStrings: LocalizedStrings,
-    ): List<ColumnSpec<KeyedListDiffResult<IdentifierKeyType, String>>> {
-        return listOf(ColumnSpec(localizedStrings.use, 0.1f) { textForValue(it.key.first) },
-            ColumnSpec(localizedStrings.system, 0.1f) { textForValue(it.key.second) })
-    }
 }
 
-class ContactComparisonItem(
-    localizedStrings: LocalizedStrings,
-) : MetadataKeyedListDiffItem<ContactDetail, String>({ contact }, false, localizedStrings, { it.contact }) {
+class ContactComparisonItem : MetadataKeyedListDiffItem<ContactDetail, String>("contact", { contact }, false, { it.contact }) {
     override fun getKey(instance: ContactDetail): String = instance.name ?: ""
 
     override fun getStringValue(instance: ContactDetail): String = formatDisplay(instance)
@@ -193,12 +180,6 @@ class ContactComparisonItem(
         if (contact.hasRank()) append(" @${contact.rank}")
     }
 
-    override fun getKeyColumns(
-        localizedStrings: LocalizedStrings,
-    ): List<ColumnSpec<KeyedListDiffResult<String, String>>> = listOf(ColumnSpec(localizedStrings.name, 0.15f) {
-        textForValue(it.key)
-    })
-
     override fun mapComparisonResult(
         result: MetadataComparisonResult,
         explanation: (LocalizedStrings.() -> String)?,
@@ -254,11 +235,11 @@ private fun formatReference(reference: Reference): String = formatEntity {
 }
 
 class CodeableConceptComparisonItem(
+    element: String,
     label: LocalizedStrings.() -> String,
-    localizedStrings: LocalizedStrings,
     expectDifferences: Boolean = false,
     instanceGetter: (CodeSystem) -> List<CodeableConcept>,
-) : MetadataKeyedListDiffItem<CodeableConcept, String>(label, expectDifferences, localizedStrings, instanceGetter) {
+) : MetadataKeyedListDiffItem<CodeableConcept, String>(element, label, expectDifferences, instanceGetter) {
 
     override fun getKey(instance: CodeableConcept): String = instance.text ?: "null"
 
@@ -269,12 +250,6 @@ class CodeableConceptComparisonItem(
 
     override fun getLongDisplayValue(instance: CodeableConcept): String = formatCodingList(instance.coding, 2)
 
-    override fun getKeyColumns(
-        localizedStrings: LocalizedStrings,
-    ): List<ColumnSpec<KeyedListDiffResult<String, String>>> = listOf(ColumnSpec(localizedStrings.text, 0.3f) {
-        textForValue(it.key)
-    })
-
     override fun mapComparisonResult(
         result: MetadataComparisonResult,
         explanation: (LocalizedStrings.() -> String)?,
@@ -286,11 +261,9 @@ class CodeableConceptComparisonItem(
 
 }
 
-class UsageContextComparisonItem(
-    localizedStrings: LocalizedStrings,
-) : MetadataKeyedListDiffItem<UsageContext, String>({ useContext },
+class UsageContextComparisonItem : MetadataKeyedListDiffItem<UsageContext, String>("useContext",
+    { useContext },
     expectDifferences = false,
-    localizedStrings,
     { it.useContext }) {
     override fun getKey(instance: UsageContext): String {
         return formatCoding(instance.code)
@@ -310,12 +283,6 @@ class UsageContextComparisonItem(
         else -> null
     }
 
-    override fun getKeyColumns(
-        localizedStrings: LocalizedStrings,
-    ): List<ColumnSpec<KeyedListDiffResult<String, String>>> = listOf(ColumnSpec(localizedStrings.code, 0.3f) {
-        textForValue(it.key)
-    })
-
     override fun mapComparisonResult(
         result: MetadataComparisonResult,
         explanation: (LocalizedStrings.() -> String)?,
@@ -0,0 +1,386 @@
+package terminodiff.engine.resources
+
+import ca.uhn.fhir.context.FhirContext
+import ca.uhn.fhir.parser.DataFormatException
+import com.fasterxml.jackson.core.JsonFactory
+import com.fasterxml.jackson.core.JsonParser
+import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.core.JsonToken
+import org.hl7.fhir.r4.model.*
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import terminodiff.engine.graph.FhirConceptDesignation
+import java.io.File
+import java.io.Reader
+import java.io.StringWriter
+import javax.xml.stream.XMLInputFactory
+import javax.xml.stream.XMLOutputFactory
+import javax.xml.stream.XMLStreamConstants
+import javax.xml.stream.XMLStreamException
+import javax.xml.stream.XMLStreamReader
+import javax.xml.stream.XMLStreamWriter
+
+private val logger: Logger = LoggerFactory.getLogger(CodeSystemExtractor::class.java)
+
+/**
+ * the concepts of a CodeSystem, together with the remainder of the resource (without `CodeSystem.concept`),
+ * which is small enough to be handled by the HAPI object model
+ */
+data class ExtractedCodeSystem(
+    val metadata: CodeSystem,
+    val concepts: List<ExtractedConcept>,
+)
+
+/**
+ * the subset of `CodeSystem.concept` that is used by the graph and diff engine. Nested concepts are only
+ * referenced by their code, since they only contribute hierarchy edges.
+ */
+class ExtractedConcept(
+    val code: String,
+    val display: String?,
+    val definition: String?,
+    val designation: List<FhirConceptDesignation>,
+    val property: List<ExtractedProperty>,
+    val childCodes: List<String>,
+)
+
+data class ExtractedProperty(val code: String, val value: Type?)
+
+fun CodeSystem.ConceptDefinitionComponent.toExtractedConcept() = ExtractedConcept(
+    code = code,
+    display = display,
+    definition = definition,
+    designation = designation.map { FhirConceptDesignation(language = it.language, use = it.use, value = it.value) },
+    property = property.map { ExtractedProperty(it.code, it.value) },
+    childCodes = concept?.mapNotNull { it.code } ?: emptyList())
+
+/**
+ * Reads CodeSystems from JSON and XML files in a single streaming pass. The concepts are extracted straight from the
+ * token/event stream, while everything else is copied into a small document that is parsed using HAPI, so that
+ * the (potentially very large) concept list never has to be materialized in the HAPI object model.
+ */
+class CodeSystemExtractor(private val fhirContext: FhirContext) {
+
+    private val jsonFactory = JsonFactory()
+
+    private val xmlInputFactory: XMLInputFactory = XMLInputFactory.newInstance().apply {
+        setProperty(XMLInputFactory.SUPPORT_DTD, false)
+        setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false)
+        setProperty(XMLInputFactory.IS_COALESCING, true)
+    }
+    private val xmlOutputFactory: XMLOutputFactory = XMLOutputFactory.newInstance()
+
+    /**
+     * @throws DataFormatException if the file is not a well-formed FHIR CodeSystem
+     */
+    fun extract(file: File): ExtractedCodeSystem? = when (file.extension.lowercase()) {
+        "json" -> file.bufferedReader().use { extractJson(it) }
+        "xml" -> file.bufferedReader().use { extractXml(it) }
+        else -> {
+            logger.error("The file at ${file.absolutePath} has an unsupported file type")
+            null
+        }
+    }
+
+    fun extractJson(reader: Reader): ExtractedCodeSystem = try {
+        jsonFactory.createParser(reader).use { parser ->
+            if (parser.nextToken() != JsonToken.START_OBJECT) throw DataFormatException("expected a JSON object")
+            val concepts = mutableListOf<ExtractedConcept>()
+            val metadataJson = StringWriter()
+            jsonFactory.createGenerator(metadataJson).use { generator ->
+                generator.writeStartObject()
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    val fieldName = parser.currentName
+                    parser.nextToken()
+                    if (fieldName == "concept") {
+                        parser.forEachArrayObject { concepts.add(readJsonConcept(parser)) }
+                    } else {
+                        generator.writeFieldName(fieldName)
+                        generator.copyCurrentStructure(parser)
+                    }
+                }
+                generator.writeEndObject()
+            }
+            val metadata = fhirContext.newJsonParser().parseResource(CodeSystem::class.java, metadataJson.toString())
+            ExtractedCodeSystem(metadata, concepts)
+        }
+    } catch (e: JsonProcessingException) {
+        throw DataFormatException("the JSON CodeSystem could not be read: ${e.originalMessage}", e)
+    }
+
+    private fun readJsonConcept(parser: JsonParser): ExtractedConcept {
+        var code: String? = null
+        var display: String? = null
+        var definition: String? = null
+        val designation = mutableListOf<FhirConceptDesignation>()
+        val property = mutableListOf<ExtractedProperty>()
+        val childCodes = mutableListOf<String>()
+        parser.forEachField { fieldName ->
+            when (fieldName) {
+                "code" -> code = parser.valueAsString
+                "display" -> display = parser.valueAsString
+                "definition" -> definition = parser.valueAsString
+                "designation" -> parser.forEachArrayObject { designation.add(readJsonDesignation(parser)) }
+                "property" -> parser.forEachArrayObject { readJsonProperty(parser)?.let(property::add) }
+                "concept" -> parser.forEachArrayObject {
+                    // nested concepts are only relevant for the hierarchy, they are not part of the node tree
+                    var childCode: String? = null
+                    parser.forEachField { if (it == "code") childCode = parser.valueAsString else parser.skipChildren() }
+                    childCode?.let(childCodes::add)
+                }
+                else -> parser.skipChildren()
+            }
+        }
+        return ExtractedConcept(code = code ?: throw DataFormatException("a concept has no code"),
+            display = display,
+            definition = definition,
+            designation = designation,
+            property = property,
+            childCodes = childCodes)
+    }
+
+    private fun readJsonDesignation(parser: JsonParser): FhirConceptDesignation {
+        var language: String? = null
+        var use: Coding? = null
+        var value: String? = null
+        parser.forEachField { fieldName ->
+            when (fieldName) {
+                "language" -> language = parser.valueAsString
+                "use" -> use = readJsonCoding(parser)
+                "value" -> value = parser.valueAsString
+                else -> parser.skipChildren()
+            }
+        }
+        return FhirConceptDesignation(language = language, use = use, value = value ?: "")
+    }
+
+    private fun readJsonProperty(parser: JsonParser): ExtractedProperty? {
+        var code: String? = null
+        var value: Type? = null
+        parser.forEachField { fieldName ->
+            when (fieldName) {
+                "code" -> code = parser.valueAsString
+                "valueCoding" -> value = readJsonCoding(parser)
+                else -> when {
+                    fieldName.startsWith("value") && parser.currentToken.isScalarValue -> value =
+                        primitivePropertyValue(fieldName.removePrefix("value"), parser.valueAsString)
+                    else -> parser.skipChildren()
+                }
+            }
+        }
+        return code?.let { ExtractedProperty(it, value) }
+    }
+
+    private fun readJsonCoding(parser: JsonParser): Coding = Coding().also { coding ->
+        parser.forEachField { fieldName ->
+            when (fieldName) {
+                "system" -> coding.system = parser.valueAsString
+                "version" -> coding.version = parser.valueAsString
+                "code" -> coding.code = parser.valueAsString
+                "display" -> coding.display = parser.valueAsString
+                "userSelected" -> coding.userSelected = parser.valueAsBoolean
+                else -> parser.skipChildren()
+            }
+        }
+    }
+
+    fun extractXml(reader: Reader): ExtractedCodeSystem = try {
+        val xmlReader = xmlInputFactory.createXMLStreamReader(reader)
+        try {
+            val concepts = mutableListOf<ExtractedConcept>()
+            val metadataXml = StringWriter()
+            val writer = xmlOutputFactory.createXMLStreamWriter(metadataXml)
+            var depth = 0
+            while (xmlReader.hasNext()) {
+                when (xmlReader.next()) {
+                    XMLStreamConstants.START_ELEMENT -> {
+                        if (depth == 1 && xmlReader.localName == "concept") {
+                            concepts.add(readXmlConcept(xmlReader))
+                            continue
+                        }
+                        depth++
+                        writer.copyStartElement(xmlReader)
+                    }
+                    XMLStreamConstants.END_ELEMENT -> {
+                        depth--
+                        writer.writeEndElement()
+                    }
+                    // narrative XHTML is the only FHIR content carrying text nodes
+                    XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA, XMLStreamConstants.SPACE -> if (depth > 0) {
+                        writer.writeCharacters(xmlReader.text)
+                    }
+                }
+            }
+            writer.close()
+            val metadata = fhirContext.newXmlParser().parseResource(CodeSystem::class.java, metadataXml.toString())
+            ExtractedCodeSystem(metadata, concepts)
+        } finally {
+            xmlReader.close()
+        }
+    } catch (e: XMLStreamException) {
+        throw DataFormatException("the XML CodeSystem could not be read: ${e.message}", e)
+    }
+
+    /**
+     * reads the concept element the reader is positioned at, and leaves the reader at its end element
+     */
+    private fun readXmlConcept(reader: XMLStreamReader): ExtractedConcept {
+        var code: String? = null
+        var display: String? = null
+        var definition: String? = null
+        val designation = mutableListOf<FhirConceptDesignation>()
+        val property = mutableListOf<ExtractedProperty>()
+        val childCodes = mutableListOf<String>()
+        reader.forEachChildElement { name ->
+            when (name) {
+                "code" -> code = reader.valueAttribute()
+                "display" -> display = reader.valueAttribute()
+                "definition" -> definition = reader.valueAttribute()
+                "designation" -> designation.add(readXmlDesignation(reader))
+                "property" -> readXmlProperty(reader)?.let(property::add)
+                "concept" -> {
+                    var childCode: String? = null
+                    reader.forEachChildElement { if (it == "code") childCode = reader.valueAttribute() }
+                    childCode?.let(childCodes::add)
+                }
+            }
+        }
+        return ExtractedConcept(code = code ?: throw DataFormatException("a concept has no code"),
+            display = display,
+            definition = definition,
+            designation = designation,
+            property = property,
+            childCodes = childCodes)
+    }
+
+    private fun readXmlDesignation(reader: XMLStreamReader): FhirConceptDesignation {
+        var language: String? = null
+        var use: Coding? = null
+        var value: String? = null
+        reader.forEachChildElement { name ->
+            when (name) {
+                "language" -> language = reader.valueAttribute()
+                "use" -> use = readXmlCoding(reader)
+                "value" -> value = reader.valueAttribute()
+            }
+        }
+        return FhirConceptDesignation(language = language, use = use, value = value ?: "")
+    }
+
+    private fun readXmlProperty(reader: XMLStreamReader): ExtractedProperty? {
+        var code: String? = null
+        var value: Type? = null
+        reader.forEachChildElement { name ->
+            when {
+                name == "code" -> code = reader.valueAttribute()
+                name == "valueCoding" -> value = readXmlCoding(reader)
+                name.startsWith("value") -> value =
+                    primitivePropertyValue(name.removePrefix("value"), reader.valueAttribute())
+            }
+        }
+        return code?.let { ExtractedProperty(it, value) }
+    }
+
+    private fun readXmlCoding(reader: XMLStreamReader): Coding = Coding().also { coding ->
+        reader.forEachChildElement { name ->
+            when (name) {
+                "system" -> coding.system = reader.valueAttribute()
+                "version" -> coding.version = reader.valueAttribute()
+                "code" -> coding.code = reader.valueAttribute()
+                "display" -> coding.display = reader.valueAttribute()
+                "userSelected" -> coding.userSelected = reader.valueAttribute()?.toBoolean() ?: false
+            }
+        }
+    }
+}
+
+/**
+ * maps the primitive `value[x]` choices of `CodeSystem.concept.property` to the respective HAPI types
+ */
+internal fun primitivePropertyValue(typeSuffix: String, value: String?): Type? {
+    if (value == null) return null
+    return try {
+        when (typeSuffix) {
+            "Code" -> CodeType(value)
+            "String" -> StringType(value)
+            "Integer" -> IntegerType(value)
+            "Boolean" -> BooleanType(value)
+            "DateTime" -> DateTimeType(value)
+            "Decimal" -> DecimalType(value)
+            else -> {
+                logger.warn("unsupported property value type 'value$typeSuffix' with value '$value'")
+                StringType(value)
+            }
+        }
+    } catch (e: IllegalArgumentException) {
+        throw DataFormatException("the value '$value' is not a valid value$typeSuffix", e)
+    }
+}
+
+/**
+ * calls [onField] for every field of the object the parser is positioned at, with the parser positioned at the
+ * field value. [onField] has to consume the value, e.g. using [JsonParser.skipChildren].
+ */
+private inline fun JsonParser.forEachField(onField: (String) -> Unit) {
+    if (currentToken != JsonToken.START_OBJECT) throw DataFormatException("expected a JSON object at $currentLocation")
+    while (nextToken() == JsonToken.FIELD_NAME) {
+        val fieldName = currentName
+        nextToken()
+        onField(fieldName)
+    }
+}
+
+private inline fun JsonParser.forEachArrayObject(onObject: () -> Unit) {
+    if (currentToken != JsonToken.START_ARRAY) throw DataFormatException("expected a JSON array at $currentLocation")
+    while (nextToken() == JsonToken.START_OBJECT) {
+        onObject()
+    }
+}
+
+/**
+ * calls [onChild] for every child element of the element the reader is positioned at, with the reader positioned at
+ * the start of the child. Children not consumed by [onChild] are skipped. Leaves the reader at the end element.
+ */
+private inline fun XMLStreamReader.forEachChildElement(onChild: (String) -> Unit) {
+    while (hasNext()) {
+        when (next()) {
+            XMLStreamConstants.START_ELEMENT -> {
+                onChild(localName)
+                if (eventType == XMLStreamConstants.START_ELEMENT) skipElement()
+            }
+            XMLStreamConstants.END_ELEMENT -> return
+        }
+    }
+}
+
+private fun XMLStreamReader.skipElement() {
+    var depth = 1
+    while (depth > 0 && hasNext()) {
+        when (next()) {
+            XMLStreamConstants.START_ELEMENT -> depth++
+            XMLStreamConstants.END_ELEMENT -> depth--
+        }
+    }
+}
+
+/**
+ * copies the start element the reader is positioned at, including namespace declarations and attributes
+ */
+private fun XMLStreamWriter.copyStartElement(reader: XMLStreamReader) {
+    writeStartElement(reader.prefix ?: "", reader.localName, reader.namespaceURI ?: "")
+    for (i in 0 until reader.namespaceCount) {
+        val prefix = reader.getNamespacePrefix(i)
+        if (prefix.isNullOrEmpty()) writeDefaultNamespace(reader.getNamespaceURI(i))
+        else writeNamespace(prefix, reader.getNamespaceURI(i))
+    }
+    for (i in 0 until reader.attributeCount) {
+        val namespace = reader.getAttributeNamespace(i)
+        if (namespace.isNullOrEmpty()) writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i))
+        else writeAttribute(reader.getAttributePrefix(i) ?: "",
+            namespace,
+            reader.getAttributeLocalName(i),
+            reader.getAttributeValue(i))
+    }
+}
+
+private fun XMLStreamReader.valueAttribute(): String? = getAttributeValue(null, "value")
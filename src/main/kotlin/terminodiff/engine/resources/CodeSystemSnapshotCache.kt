@@ -0,0 +1,125 @@
+package terminodiff.engine.resources
+
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.security.MessageDigest
+
+private val logger: Logger = LoggerFactory.getLogger(CodeSystemSnapshotCache::class.java)
+
+/**
+ * an on-disk cache of extracted CodeSystems, keyed by the SHA-256 of the input file. The snapshots are memory-mapped
+ * when they are read. The total size of the cache is bounded, the least recently used snapshots are evicted first.
+ *
+ * Errors of the cache itself are logged and never fail a load, the file is extracted again instead.
+ */
+class CodeSystemSnapshotCache(
+    private val codec: CodeSystemSnapshotCodec,
+    private val directory: File = defaultDirectory(),
+    private val maxSizeBytes: Long = DEFAULT_MAX_SIZE_BYTES,
+) {
+
+    fun getOrExtract(file: File, extract: (File) -> ExtractedCodeSystem?): ExtractedCodeSystem? {
+        val key = try {
+            sha256(file)
+        } catch (e: IOException) {
+            logger.warn("could not hash ${file.absolutePath}, the snapshot cache is not used", e)
+            return extract(file)
+        }
+        load(key)?.let {
+            logger.info("Loaded ${file.name} from the snapshot $key")
+            return it
+        }
+        return extract(file)?.also { store(key, it) }
+    }
+
+    private fun snapshotFile(key: String) = File(directory, "$key.snapshot")
+
+    private fun load(key: String): ExtractedCodeSystem? {
+        val snapshot = snapshotFile(key)
+        if (!snapshot.isFile) return null
+        return try {
+            val codeSystem = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ).use { channel ->
+                codec.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+            }
+            snapshot.setLastModified(System.currentTimeMillis())
+            codeSystem
+        } catch (e: Exception) {
+            // besides I/O errors, a corrupt snapshot can fail anywhere in the codec (e.g. a negative length, or metadata
+            // that can't be parsed), and it would fail every later load of the file if it was kept
+            logger.warn("the snapshot ${snapshot.absolutePath} could not be read, it is discarded", e)
+            snapshot.delete()
+            null
+        }
+    }
+
+    private fun store(key: String, codeSystem: ExtractedCodeSystem) {
+        try {
+            directory.mkdirs()
+            val temporary = File.createTempFile(key, ".tmp", directory)
+            try {
+                temporary.outputStream().buffered().use { codec.write(codeSystem, it) }
+                Files.move(temporary.toPath(), snapshotFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING)
+            } finally {
+                temporary.delete()
+            }
+            evict()
+        } catch (e: IOException) {
+            logger.warn("could not write the snapshot $key to ${directory.absolutePath}", e)
+        } catch (e: UnsupportedOperationException) {
+            logger.info("the CodeSystem can't be stored as a snapshot: ${e.message}")
+        }
+    }
+
+    private fun evict() = synchronized(this) {
+        val snapshots = directory.listFiles { f -> f.isFile && f.extension == "snapshot" }?.sortedBy { it.lastModified() }
+            ?: return@synchronized
+        var totalSize = snapshots.sumOf { it.length() }
+        for (snapshot in snapshots) {
+            if (totalSize <= maxSizeBytes) break
+            val size = snapshot.length()
+            if (snapshot.delete()) {
+                logger.info("evicted the snapshot ${snapshot.name} from the cache")
+                totalSize -= size
+            }
+        }
+    }
+
+    companion object {
+        const val DEFAULT_MAX_SIZE_BYTES = 512L * 1024 * 1024
+
+        fun sha256(file: File): String {
+            val digest = MessageDigest.getInstance("SHA-256")
+            FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+                val buffer = ByteBuffer.allocate(1 shl 16)
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip()
+                    digest.update(buffer)
+                    buffer.clear()
+                }
+            }
+            return digest.digest().joinToString("") { "%02x".format(it) }
+        }
+
+        /**
+         * the snapshot directory within the cache directory of the platform
+         */
+        fun defaultDirectory(): File {
+            val home = System.getProperty("user.home")
+            val os = System.getProperty("os.name").lowercase()
+            val cacheDirectory = when {
+                os.startsWith("windows") -> File(System.getenv("LOCALAPPDATA") ?: System.getenv("APPDATA") ?: home,
+                    "TerminoDiff")
+                os.startsWith("mac") -> File(home, "Library/Caches/TerminoDiff")
+                else -> File(System.getenv("XDG_CACHE_HOME") ?: "$home/.cache", "terminodiff")
+            }
+            return File(cacheDirectory, "snapshots")
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package terminodiff.engine.resources
+
+import ca.uhn.fhir.context.FhirContext
+import org.hl7.fhir.r4.model.CodeSystem
+import org.hl7.fhir.r4.model.Coding
+import org.hl7.fhir.r4.model.PrimitiveType
+import org.hl7.fhir.r4.model.Type
+import terminodiff.engine.graph.FhirConceptDesignation
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.io.OutputStream
+import java.nio.ByteBuffer
+
+/**
+ * a compact binary encoding of an [ExtractedCodeSystem]. The metadata is stored as FHIR JSON (it is small), the
+ * concepts are stored field by field, with all strings in a table, so that repeated strings (property codes,
+ * languages, systems, ...) are only stored and decoded once.
+ */
+class CodeSystemSnapshotCodec(private val fhirContext: FhirContext) {
+
+    fun write(codeSystem: ExtractedCodeSystem, outputStream: OutputStream) {
+        val writer = SnapshotWriter()
+        writeCodeSystem(writer, codeSystem)
+        writer.writeTo(outputStream, FORMAT_VERSION)
+    }
+
+    /**
+     * @throws SnapshotFormatException if the buffer does not contain a snapshot of the current format
+     */
+    fun read(buffer: ByteBuffer): ExtractedCodeSystem = readCodeSystem(SnapshotReader(buffer, FORMAT_VERSION))
+
+    fun writeCodeSystem(writer: SnapshotWriter, codeSystem: ExtractedCodeSystem) {
+        writer.writeString(fhirContext.newJsonParser().encodeResourceToString(codeSystem.metadata))
+        writer.writeVarInt(codeSystem.concepts.size)
+        codeSystem.concepts.forEach { concept ->
+            writer.writeString(concept.code)
+            writer.writeString(concept.display)
+            writer.writeString(concept.definition)
+            writer.writeVarInt(concept.designation.size)
+            concept.designation.forEach { designation ->
+                writer.writeString(designation.language)
+                writeCoding(writer, designation.use)
+                writer.writeString(designation.value)
+            }
+            writer.writeVarInt(concept.property.size)
+            concept.property.forEach { property ->
+                writer.writeString(property.code)
+                writePropertyValue(writer, property.value)
+            }
+            writer.writeVarInt(concept.childCodes.size)
+            concept.childCodes.forEach(writer::writeString)
+        }
+    }
+
+    fun readCodeSystem(reader: SnapshotReader): ExtractedCodeSystem {
+        val metadata = fhirContext.newJsonParser().parseResource(CodeSystem::class.java, reader.readString())
+        val concepts = List(reader.readVarInt()) {
+            ExtractedConcept(code = reader.readString()!!,
+                display = reader.readString(),
+                definition = reader.readString(),
+                designation = List(reader.readVarInt()) {
+                    FhirConceptDesignation(language = reader.readString(),
+                        use = readCoding(reader),
+                        value = reader.readString()!!)
+                },
+                property = List(reader.readVarInt()) {
+                    ExtractedProperty(reader.readString()!!, readPropertyValue(reader))
+                },
+                childCodes = List(reader.readVarInt()) { reader.readString()!! })
+        }
+        return ExtractedCodeSystem(metadata, concepts)
+    }
+
+    internal fun writeCoding(writer: SnapshotWriter, coding: Coding?) {
+        if (coding == null) {
+            writer.writeByte(NULL_TAG)
+            return
+        }
+        writer.writeByte(CODING_TAG)
+        writer.writeString(coding.system)
+        writer.writeString(coding.version)
+        writer.writeString(coding.code)
+        writer.writeString(coding.display)
+        writer.writeByte(when {
+            !coding.hasUserSelected() -> 0
+            coding.userSelected -> 1
+            else -> 2
+        })
+    }
+
+    internal fun readCoding(reader: SnapshotReader): Coding? = when (reader.readByte()) {
+        NULL_TAG -> null
+        else -> readCodingFields(reader)
+    }
+
+    private fun readCodingFields(reader: SnapshotReader) = Coding().apply {
+        system = reader.readString()
+        version = reader.readString()
+        code = reader.readString()
+        display = reader.readString()
+        when (reader.readByte()) {
+            1 -> userSelected = true
+            2 -> userSelected = false
+        }
+    }
+
+    private fun writePropertyValue(writer: SnapshotWriter, value: Type?) = when (value) {
+        null -> writer.writeByte(NULL_TAG)
+        is Coding -> writeCoding(writer, value)
+        is PrimitiveType<*> -> {
+            writer.writeByte(PRIMITIVE_TAG)
+            writer.writeString(value.fhirType().replaceFirstChar { it.uppercase() })
+            writer.writeString(value.valueAsString)
+        }
+        else -> throw UnsupportedOperationException("property values of type ${value.fhirType()} can't be stored")
+    }
+
+    private fun readPropertyValue(reader: SnapshotReader): Type? = when (reader.readByte()) {
+        NULL_TAG -> null
+        CODING_TAG -> readCodingFields(reader)
+        PRIMITIVE_TAG -> primitivePropertyValue(reader.readString()!!, reader.readString())
+        else -> throw SnapshotFormatException("unknown property value tag")
+    }
+
+    companion object {
+        const val FORMAT_VERSION = 1
+        private const val NULL_TAG = 0
+        private const val CODING_TAG = 1
+        private const val PRIMITIVE_TAG = 2
+    }
+}
+
+class SnapshotFormatException(message: String) : RuntimeException(message)
+
+/**
+ * writes the body of a snapshot to memory, and collects the strings in a table that is written before the body
+ */
+class SnapshotWriter {
+    private val body = ByteArrayOutputStream()
+    private val data = DataOutputStream(body)
+    private val strings = LinkedHashMap<String, Int>()
+
+    /**
+     * the position in the body, which can be passed to [SnapshotReader.at] to read from there
+     */
+    val position get() = data.size()
+
+    fun writeByte(value: Int) = data.writeByte(value)
+
+    fun writeInt(value: Int) = data.writeInt(value)
+
+    fun writeLong(value: Long) = data.writeLong(value)
+
+    fun writeVarInt(value: Int) {
+        var remaining = value
+        while (remaining and 0x7f.inv() != 0) {
+            data.writeByte((remaining and 0x7f) or 0x80)
+            remaining = remaining ushr 7
+        }
+        data.writeByte(remaining)
+    }
+
+    /**
+     * null is stored as 0, other strings as their index in the string table + 1
+     */
+    fun writeString(value: String?) = when (value) {
+        null -> writeVarInt(0)
+        else -> writeVarInt(strings.getOrPut(value) { strings.size } + 1)
+    }
+
+    fun writeTo(outputStream: OutputStream, formatVersion: Int, magic: Int = MAGIC) {
+        data.flush()
+        val output = DataOutputStream(outputStream)
+        output.writeInt(magic)
+        output.writeInt(formatVersion)
+        output.writeInt(strings.size)
+        strings.keys.forEach { string ->
+            val bytes = string.toByteArray(Charsets.UTF_8)
+            output.writeInt(bytes.size)
+            output.write(bytes)
+        }
+        output.writeInt(body.size())
+        body.writeTo(output)
+        output.flush()
+    }
+
+    companion object {
+        const val MAGIC = 0x54445331 // "TDS1"
+    }
+}
+
+/**
+ * reads a snapshot written by [SnapshotWriter], e.g. from a memory-mapped file
+ */
+class SnapshotReader private constructor(
+    private val buffer: ByteBuffer,
+    private val strings: Array<String>,
+    private val bodyStart: Int,
+) {
+
+    constructor(buffer: ByteBuffer, formatVersion: Int, magic: Int = SnapshotWriter.MAGIC) : this(buffer,
+        readStringTable(buffer, formatVersion, magic),
+        buffer.position())
+
+    /**
+     * the position in the body, as with [SnapshotWriter.position]
+     */
+    val position get() = buffer.position() - bodyStart
+
+    val bodySize get() = buffer.limit() - bodyStart
+
+    /**
+     * an independent reader of the same snapshot that starts at [position], e.g. for reading parts of the snapshot
+     * lazily and concurrently
+     */
+    fun at(position: Int): SnapshotReader {
+        val view = buffer.duplicate()
+        view.position(bodyStart + position)
+        return SnapshotReader(view, strings, bodyStart)
+    }
+
+    fun readByte(): Int = buffer.get().toInt()
+
+    fun readInt(): Int = buffer.int
+
+    fun readLong(): Long = buffer.long
+
+    fun readVarInt(): Int {
+        var value = 0
+        var shift = 0
+        while (true) {
+            val b = buffer.get().toInt()
+            value = value or ((b and 0x7f) shl shift)
+            if (b and 0x80 == 0) return value
+            shift += 7
+            if (shift > 28) throw SnapshotFormatException("malformed variable-length integer")
+        }
+    }
+
+    fun readString(): String? = when (val index = readVarInt()) {
+        0 -> null
+        else -> strings.getOrNull(index - 1) ?: throw SnapshotFormatException("invalid string reference")
+    }
+
+    companion object {
+        private fun readStringTable(buffer: ByteBuffer, formatVersion: Int, magic: Int): Array<String> {
+            if (buffer.remaining() < 12 || buffer.int != magic) throw SnapshotFormatException("not a snapshot")
+            if (buffer.int != formatVersion) throw SnapshotFormatException("the snapshot has a different format version")
+            var scratch = ByteArray(256)
+            val strings = Array(buffer.int) {
+                val length = buffer.int
+                if (length > scratch.size) scratch = ByteArray(length)
+                buffer.get(scratch, 0, length)
+                String(scratch, 0, length, Charsets.UTF_8)
+            }
+            if (buffer.int != buffer.remaining()) throw SnapshotFormatException("the snapshot is truncated")
+            return strings
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package terminodiff.engine.resources
+
+import ca.uhn.fhir.context.FhirContext
+import org.hl7.fhir.r4.model.CodeSystem
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
+import terminodiff.engine.concepts.*
+import terminodiff.engine.graph.*
+import terminodiff.terminodiff.engine.graph.CombinedEdge
+import terminodiff.terminodiff.engine.graph.CombinedVertex
+import terminodiff.terminodiff.engine.graph.GraphSide
+import java.io.File
+import java.io.OutputStream
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+
+private val logger: Logger = LoggerFactory.getLogger(DiffArchiveCodec::class.java)
+
+/**
+ * saves a complete diff (both concept graphs, the concept classification, the detailed diffs of the different
+ * concepts, the diff graph and the combined graph) to a versioned binary file, using the same encoding as the
+ * snapshots of [CodeSystemSnapshotCodec]. When the file is opened, it is memory-mapped, and the detailed concept
+ * diffs are only decoded when they are requested.
+ *
+ * Only the metadata of the code systems (i.e. the resources without their concepts) is parsed using HAPI; the
+ * metadata comparisons are computed from it again, since they are cheap.
+ */
+class DiffArchiveCodec(private val fhirContext: FhirContext) {
+    private val snapshotCodec = CodeSystemSnapshotCodec(fhirContext)
+
+    fun save(diff: CodeSystemDiffBuilder, file: File) {
+        val temporary = File.createTempFile("terminodiff", ".tmp", file.absoluteFile.parentFile)
+        try {
+            temporary.outputStream().buffered().use { write(diff, it) }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        } finally {
+            temporary.delete()
+        }
+        logger.info("Saved the diff to ${file.absolutePath}")
+    }
+
+    /**
+     * @throws SnapshotFormatException if the file is not a diff archive of the current format
+     */
+    fun load(file: File): CodeSystemDiffBuilder = FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+        // the mapping stays valid after the channel is closed
+        read(SnapshotReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), FORMAT_VERSION, MAGIC))
+    }.also {
+        logger.info("Loaded the diff from ${file.absolutePath}")
+    }
+
+    fun write(diff: CodeSystemDiffBuilder, outputStream: OutputStream) {
+        val writer = SnapshotWriter()
+        writeGraph(writer, diff.leftBuilder)
+        writeGraph(writer, diff.rightBuilder)
+        val conceptDiffs = diff.conceptDifferences
+        val differentCodes = conceptDiffs.differentCodes
+        val diffPositions = IntArray(differentCodes.size)
+        differentCodes.forEachIndexed { i, code ->
+            diffPositions[i] = writer.position
+            writeConceptDiff(writer, conceptDiffs.computeConceptDiff(code)!!)
+        }
+
+        val indexPosition = writer.position
+        writeStrings(writer, conceptDiffs.codes)
+        conceptDiffs.codes.forEach { code -> writer.writeByte(conceptDiffs.flagsOf(code)!!) }
+        diffPositions.forEach(writer::writeVarInt)
+        writeStrings(writer, diff.onlyInLeftConcepts)
+        writeStrings(writer, diff.onlyInRightConcepts)
+
+        writer.writeVarInt(diff.differenceGraph.vertexSet().size)
+        diff.differenceGraph.vertexSet().forEach { node ->
+            writer.writeString(node.code)
+            writer.writeString(node.display)
+            writer.writeByte(node.inWhich.ordinal)
+        }
+        writer.writeVarInt(diff.differenceGraph.edgeSet().size)
+        diff.differenceGraph.edgeSet().forEach { edge ->
+            writer.writeString(edge.fromCode)
+            writer.writeString(edge.fromDisplay)
+            writer.writeString(edge.toCode)
+            writer.writeString(edge.toDisplay)
+            writer.writeString(edge.propertyCode)
+            writer.writeByte(edge.inWhich.ordinal)
+        }
+
+        val combinedGraph = diff.combinedGraph?.graph
+        writer.writeByte(if (combinedGraph == null) 0 else 1)
+        if (combinedGraph != null) {
+            writer.writeVarInt(combinedGraph.vertexSet().size)
+            combinedGraph.vertexSet().forEach { vertex ->
+                writer.writeString(vertex.code)
+                writer.writeString(vertex.displayLeft)
+                writer.writeString(vertex.displayRight)
+                writer.writeByte(vertex.side.ordinal)
+            }
+            writer.writeVarInt(combinedGraph.edgeSet().size)
+            combinedGraph.edgeSet().forEach { edge ->
+                writer.writeString(edge.fromCode)
+                writer.writeString(edge.toCode)
+                writer.writeString(edge.property)
+                writer.writeByte(edge.side.ordinal)
+            }
+        }
+        // the index is found from the end of the body, since the concept diffs before it have variable length
+        writer.writeInt(indexPosition)
+        writer.writeTo(outputStream, FORMAT_VERSION, MAGIC)
+    }
+
+    fun read(reader: SnapshotReader): CodeSystemDiffBuilder {
+        val leftBuilder = readGraph(reader)
+        val rightBuilder = readGraph(reader)
+        val diff = CodeSystemDiffBuilder(leftBuilder, rightBuilder)
+
+        val index = reader.at(reader.at(reader.bodySize - Int.SIZE_BYTES).readInt())
+        val inBoth = readStrings(index)
+        val flags = ByteArray(inBoth.size) { index.readByte().toByte() }
+        val diffPositions = HashMap<String, Int>()
+        inBoth.forEachIndexed { i, code ->
+            if (flags[i].toInt() != 0) diffPositions[code] = index.readVarInt()
+        }
+        val onlyInLeft = readStrings(index)
+        val onlyInRight = readStrings(index)
+        diff.restoreConceptDiff(inBoth, flags, onlyInLeft, onlyInRight) { code ->
+            diffPositions[code]?.let { position -> readConceptDiff(reader.at(position)) }
+        }
+
+        val sides = GraphSide.values()
+        val nodes = List(index.readVarInt()) {
+            DiffNode(code = index.readString()!!, display = index.readString(), inWhich = sides[index.readByte()])
+        }
+        val edges = List(index.readVarInt()) {
+            DiffEdge(fromCode = index.readString()!!,
+                fromDisplay = index.readString(),
+                toCode = index.readString()!!,
+                toDisplay = index.readString(),
+                propertyCode = index.readString()!!,
+                inWhich = sides[index.readByte()])
+        }
+        diff.restoreDiffGraph(nodes, edges)
+
+        if (index.readByte() != 0) {
+            val vertices = List(index.readVarInt()) {
+                CombinedVertex(code = index.readString()!!,
+                    displayLeft = index.readString(),
+                    displayRight = index.readString(),
+                    side = sides[index.readByte()])
+            }
+            val combinedEdges = List(index.readVarInt()) {
+                CombinedEdge(fromCode = index.readString()!!,
+                    toCode = index.readString()!!,
+                    property = index.readString()!!,
+                    side = sides[index.readByte()])
+            }
+            diff.restoreCombinedGraph(vertices, combinedEdges)
+        }
+        return diff
+    }
+
+    private fun writeGraph(writer: SnapshotWriter, graphBuilder: CodeSystemGraphBuilder) {
+        // the concepts are stored separately below
+        val metadata = graphBuilder.codeSystem.let { if (it.hasConcept()) it.copy().setConcept(null) else it }
+        writer.writeString(fhirContext.newJsonParser().encodeResourceToString(metadata))
+        writer.writeVarInt(graphBuilder.nodeTree.size)
+        graphBuilder.nodeTree.values.forEach { concept ->
+            writer.writeString(concept.code)
+            writer.writeString(concept.display)
+            writer.writeString(concept.definition)
+            writer.writeVarInt(concept.designation.size)
+            concept.designation.forEach { designation ->
+                writer.writeString(designation.language)
+                snapshotCodec.writeCoding(writer, designation.use)
+                writer.writeString(designation.value)
+            }
+            writer.writeVarInt(concept.property.size)
+            concept.property.forEach { property ->
+                writer.writeString(property.propertyCode)
+                writer.writeString(property.type.toCode())
+                writer.writeString(property.value)
+            }
+        }
+        val graph = graphBuilder.conceptGraph
+        writer.writeVarInt(graph.edgeCount)
+        graph.forEachEdge { source, target, propertyId ->
+            writer.writeString(graph.dictionary.codeOf(source))
+            writer.writeString(graph.dictionary.codeOf(target))
+            writer.writeString(graph.propertyCodeOf(propertyId))
+        }
+    }
+
+    private fun readGraph(reader: SnapshotReader): CodeSystemGraphBuilder {
+        val codeSystem = fhirContext.newJsonParser().parseResource(CodeSystem::class.java, reader.readString())
+        val details = List(reader.readVarInt()) {
+            FhirConceptDetails(code = reader.readString()!!,
+                display = reader.readString(),
+                definition = reader.readString(),
+                designation = List(reader.readVarInt()) {
+                    FhirConceptDesignation(language = reader.readString(),
+                        use = snapshotCodec.readCoding(reader),
+                        value = reader.readString()!!)
+                },
+                property = List(reader.readVarInt()) {
+                    FhirConceptProperty(propertyCode = reader.readString()!!,
+                        type = CodeSystem.PropertyType.fromCode(reader.readString()),
+                        value = reader.readString())
+                })
+        }
+        return CodeSystemGraphBuilder.restore(codeSystem, details) { graphBuilder ->
+            repeat(reader.readVarInt()) {
+                graphBuilder.addEdge(reader.readString()!!, reader.readString()!!, reader.readString()!!)
+            }
+        }
+    }
+
+    private fun writeConceptDiff(writer: SnapshotWriter, conceptDiff: ConceptDiff) {
+        writer.writeVarInt(conceptDiff.conceptComparison.size)
+        conceptDiff.conceptComparison.forEach { comparison ->
+            writer.writeByte(if (comparison.diffItem == ConceptDiff.displayItem) DISPLAY_ITEM else DEFINITION_ITEM)
+            writer.writeByte(comparison.result.ordinal)
+        }
+        writer.writeVarInt(conceptDiff.propertyComparison.size)
+        conceptDiff.propertyComparison.forEach { result ->
+            writer.writeByte(result.result.ordinal)
+            writer.writeString(result.key)
+            writeValues(writer, result.leftValue)
+            writeValues(writer, result.rightValue)
+            writer.writeString(result.propertyType.toCode())
+        }
+        writer.writeVarInt(conceptDiff.designationComparison.size)
+        conceptDiff.designationComparison.forEach { result ->
+            writer.writeByte(result.result.ordinal)
+            writer.writeString(result.key.first)
+            writer.writeString(result.key.second)
+            writeValues(writer, result.leftValue)
+            writeValues(writer, result.rightValue)
+        }
+    }
+
+    private fun readConceptDiff(reader: SnapshotReader): ConceptDiff {
+        val diffResults = ConceptDiffItem.ConceptDiffResultEnum.values()
+        val listResults = KeyedListDiffResultKind.values()
+        val conceptComparison = List(reader.readVarInt()) {
+            val diffItem = if (reader.readByte() == DISPLAY_ITEM) ConceptDiff.displayItem else ConceptDiff.definitionItem
+            ConceptDiffResult(diffItem, diffResults[reader.readByte()])
+        }
+        val propertyComparison = List(reader.readVarInt()) {
+            PropertyDiffResult(result = listResults[reader.readByte()],
+                key = reader.readString()!!,
+                leftValue = readValues(reader),
+                rightValue = readValues(reader),
+                propertyType = CodeSystem.PropertyType.fromCode(reader.readString()))
+        }
+        val designationComparison = List(reader.readVarInt()) {
+            KeyedListDiffResult(result = listResults[reader.readByte()],
+                key = reader.readString() to reader.readString(),
+                leftValue = readValues(reader),
+                rightValue = readValues(reader))
+        }
+        return ConceptDiff(conceptComparison, propertyComparison, designationComparison)
+    }
+
+    /**
+     * null is stored as 0, other lists as their size + 1
+     */
+    private fun writeValues(writer: SnapshotWriter, values: List<String?>?) {
+        if (values == null) {
+            writer.writeVarInt(0)
+            return
+        }
+        writer.writeVarInt(values.size + 1)
+        values.forEach(writer::writeString)
+    }
+
+    private fun readValues(reader: SnapshotReader): List<String?>? = when (val size = reader.readVarInt()) {
+        0 -> null
+        else -> List(size - 1) { reader.readString() }
+    }
+
+    private fun writeStrings(writer: SnapshotWriter, values: List<String>) {
+        writer.writeVarInt(values.size)
+        values.forEach(writer::writeString)
+    }
+
+    private fun readStrings(reader: SnapshotReader) = List(reader.readVarInt()) { reader.readString()!! }
+
+    companion object {
+        const val FORMAT_VERSION = 1
+        const val MAGIC = 0x54444431 // "TDD1"
+        const val FILE_EXTENSION = "tddiff"
+        private const val DISPLAY_ITEM = 0
+        private const val DEFINITION_ITEM = 1
+    }
+}
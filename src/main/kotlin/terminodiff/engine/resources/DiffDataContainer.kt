@@ -3,22 +3,23 @@ package terminodiff.engine.resources
 import androidx.compose.runtime.*
 import ca.uhn.fhir.context.FhirContext
 import ca.uhn.fhir.parser.DataFormatException
+import kotlinx.coroutines.*
 import org.hl7.fhir.r4.model.CodeSystem
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
-import terminodiff.engine.concepts.ConceptDiffItem
 import terminodiff.engine.graph.CodeSystemDiffBuilder
 import terminodiff.engine.graph.CodeSystemGraphBuilder
 import terminodiff.i18n.LocalizedStrings
-import terminodiff.terminodiff.engine.conceptmap.ConceptMapState
-import terminodiff.terminodiff.engine.graph.CombinedGraphBuilder
 import terminodiff.terminodiff.engine.resources.InputResource
+import java.io.File
 import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
 
 private val logger: Logger = LoggerFactory.getILoggerFactory().getLogger("DiffDataContainer")
 
 class DiffDataContainer(private val fhirContext: FhirContext, strings: LocalizedStrings) {
 
+    // only used for logging, the results of the pipeline do not depend on the locale
     var localizedStrings by mutableStateOf(strings)
     var loadState: UUID by mutableStateOf(UUID.randomUUID())
 
@@ -27,28 +28,33 @@ class DiffDataContainer(private val fhirContext: FhirContext, strings: Localized
     var leftResource: InputResource? by mutableStateOf(null)
     var rightResource: InputResource? by mutableStateOf(null)
 
-    //all other properties are dependent and flow down from the filename changes
-    val leftCodeSystem: CodeSystem? by derivedStateOf { loadCodeSystemResource(leftResource, Side.LEFT) }
-    val rightCodeSystem: CodeSystem? by derivedStateOf { loadCodeSystemResource(rightResource, Side.RIGHT) }
-    val leftGraphBuilder: CodeSystemGraphBuilder? by derivedStateOf {
-        buildCsGraph(leftCodeSystem)?.also {
-            logger.info("Left graph: ${it.graph.vertexSet().count()} vertices, ${it.graph.edgeSet().count()} edges")
-        }
-    }
-    val rightGraphBuilder: CodeSystemGraphBuilder? by derivedStateOf {
-        buildCsGraph(rightCodeSystem)?.also {
-            logger.info("Right graph: ${it.graph.vertexSet().count()} vertices, ${it.graph.edgeSet().count()} edges")
-        }
-    }
+    private val codeSystemExtractor = CodeSystemExtractor(fhirContext)
+    private val snapshotCache = CodeSystemSnapshotCache(CodeSystemSnapshotCodec(fhirContext))
+    private val diffArchiveCodec = DiffArchiveCodec(fhirContext)
+
+    // all other properties are the results of the pipeline, which is (re-)run when the inputs change
+    var leftCodeSystem: CodeSystem? by mutableStateOf(null)
+        private set
+    var rightCodeSystem: CodeSystem? by mutableStateOf(null)
+        private set
+    var leftGraphBuilder: CodeSystemGraphBuilder? by mutableStateOf(null)
+        private set
+    var rightGraphBuilder: CodeSystemGraphBuilder? by mutableStateOf(null)
+        private set
 
     val allCodes: Set<String> by derivedStateOf {
         setOf<String>().plus(leftGraphBuilder?.nodeTree?.map { it.key } ?: emptySet())
             .plus(rightGraphBuilder?.nodeTree?.map { it.key } ?: emptySet())
     }
 
-    val codeSystemDiff: CodeSystemDiffBuilder? by derivedStateOf {
-        buildDiff(leftGraphBuilder, rightGraphBuilder, localizedStrings)
-    }
+    var codeSystemDiff: CodeSystemDiffBuilder? by mutableStateOf(null)
+        private set
+
+    var pipelineProgress: DiffPipelineProgress by mutableStateOf(DiffPipelineProgress.idle)
+        private set
+
+    // a cancelled pipeline run may still be busy until its next suspension point, it must not publish anything then
+    private var currentRun: Any? = null
 
     fun reload() {
         loadState = UUID.randomUUID()
@@ -58,58 +64,197 @@ class DiffDataContainer(private val fhirContext: FhirContext, strings: Localized
         LEFT, RIGHT
     }
 
-    private fun loadCodeSystemResource(resource: InputResource?, side: Side): CodeSystem? {
-        if (resource?.localFile == null) return null
-        val file = resource.localFile!!
-        logger.info("Loading $side ${resource.kind} resource from ${file.absolutePath}")
-        return try {
-            when (file.extension.lowercase()) {
-                "xml" -> fhirContext.newXmlParser().parseResource(CodeSystem::class.java, file.reader())
-                "json" -> fhirContext.newJsonParser().parseResource(CodeSystem::class.java, file.reader())
-                else -> {
-                    logger.error("The file at ${file.absolutePath} has an unsupported file type")
-                    null
+    /**
+     * runs the staged pipeline (parse, graph, concept diff, diff graph, combined graph) for the current inputs on
+     * a background dispatcher. Parsing and graph building run concurrently for both sides. This is intended to be
+     * launched from an effect that is keyed on the inputs, so that the pipeline is cancelled when they change.
+     *
+     * If both inputs are the same saved diff ([InputResource.Kind.DIFF_ARCHIVE]), the results are read from it
+     * instead.
+     */
+    suspend fun runPipeline() {
+        val left = leftResource
+        val right = rightResource
+        val run = Any()
+        synchronized(this) {
+            currentRun = run
+            clearResults()
+        }
+        if (left?.localFile == null || right?.localFile == null) return
+        if (left.kind == InputResource.Kind.DIFF_ARCHIVE && left == right) {
+            openDiffArchive(run, left.localFile!!)
+            return
+        }
+        val completedSteps = AtomicInteger(0)
+        val reportProgress: (DiffPipelineStage) -> Unit = { stage ->
+            publish(run) { pipelineProgress = DiffPipelineProgress(stage, completedSteps.get()) }
+        }
+        val completeStep: () -> Unit = { completedSteps.incrementAndGet() }
+        try {
+            withContext(Dispatchers.Default) {
+                val leftBuilder = async { loadSide(run, left, Side.LEFT, reportProgress, completeStep) }
+                val rightBuilder = async { loadSide(run, right, Side.RIGHT, reportProgress, completeStep) }
+                val leftResult = leftBuilder.await()
+                val rightResult = rightBuilder.await()
+                if (leftResult == null || rightResult == null) {
+                    publish(run) { pipelineProgress = DiffPipelineProgress.failed }
+                    return@withContext
                 }
-            }.also {
-                if (it != null) {
-                    logger.info("Loaded $side CodeSystem with URL ${it.url} and version '${it.version}', state = $loadState")
+                val diff = CodeSystemDiffBuilder(leftResult, rightResult)
+                logger.info("building diff")
+                reportProgress(DiffPipelineStage.CONCEPT_DIFF)
+                diff.buildConceptDiff()
+                completeStep()
+                logConceptDiff(diff, localizedStrings)
+                ensureActive()
+                reportProgress(DiffPipelineStage.DIFF_GRAPH)
+                diff.buildDiffGraph()
+                completeStep()
+                ensureActive()
+                reportProgress(DiffPipelineStage.COMBINED_GRAPH)
+                diff.buildCombinedGraph()
+                completeStep()
+                publish(run) {
+                    codeSystemDiff = diff
+                    pipelineProgress = DiffPipelineProgress.done
                 }
             }
+        } catch (e: CancellationException) {
+            logger.info("cancelled the diff pipeline for ${left.localFile} and ${right.localFile}")
+            throw e
+        }
+    }
+
+    private suspend fun openDiffArchive(run: Any, file: File) = withContext(Dispatchers.IO) {
+        publish(run) { pipelineProgress = DiffPipelineProgress(DiffPipelineStage.PARSE, 0) }
+        val diff = try {
+            diffArchiveCodec.load(file)
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            // a truncated or corrupt archive can fail anywhere in the codec, not only with I/O or format errors
+            logger.error("The file at ${file.absolutePath} could not be read as a saved diff", e)
+            publish(run) { pipelineProgress = DiffPipelineProgress.failed }
+            return@withContext
+        }
+        logConceptDiff(diff, localizedStrings)
+        publish(run) {
+            leftCodeSystem = diff.leftBuilder.codeSystem
+            rightCodeSystem = diff.rightBuilder.codeSystem
+            leftGraphBuilder = diff.leftBuilder
+            rightGraphBuilder = diff.rightBuilder
+            codeSystemDiff = diff
+            pipelineProgress = DiffPipelineProgress.done
+        }
+    }
+
+    /**
+     * saves the current diff on a background dispatcher, so that it can be opened again without running the pipeline.
+     * This recomputes the detailed diffs of all different concepts, which takes a while for large CodeSystems.
+     */
+    suspend fun saveDiff(file: File) {
+        val diff = codeSystemDiff ?: return
+        withContext(Dispatchers.IO) {
+            diffArchiveCodec.save(diff, file)
+        }
+    }
+
+    private fun publish(run: Any, action: () -> Unit) = synchronized(this) {
+        if (run !== currentRun) throw CancellationException("the pipeline run was superseded")
+        action()
+    }
+
+    private fun clearResults() {
+        leftCodeSystem = null
+        rightCodeSystem = null
+        leftGraphBuilder = null
+        rightGraphBuilder = null
+        codeSystemDiff = null
+        pipelineProgress = DiffPipelineProgress.idle
+    }
+
+    private fun loadSide(
+        run: Any,
+        resource: InputResource,
+        side: Side,
+        reportProgress: (DiffPipelineStage) -> Unit,
+        completeStep: () -> Unit,
+    ): CodeSystemGraphBuilder? {
+        reportProgress(DiffPipelineStage.PARSE)
+        val extracted = loadCodeSystemResource(resource, side) ?: return null
+        completeStep()
+        publish(run) {
+            when (side) {
+                Side.LEFT -> leftCodeSystem = extracted.metadata
+                Side.RIGHT -> rightCodeSystem = extracted.metadata
+            }
+        }
+        reportProgress(DiffPipelineStage.GRAPH)
+        val graphBuilder = CodeSystemGraphBuilder(extracted.metadata, extracted.concepts)
+        logger.info("$side graph: ${graphBuilder.conceptGraph.vertexCount} vertices, ${graphBuilder.conceptGraph.edgeCount} edges")
+        completeStep()
+        publish(run) {
+            when (side) {
+                Side.LEFT -> leftGraphBuilder = graphBuilder
+                Side.RIGHT -> rightGraphBuilder = graphBuilder
+            }
+        }
+        return graphBuilder
+    }
+
+    private fun loadCodeSystemResource(resource: InputResource, side: Side): ExtractedCodeSystem? {
+        val file = resource.localFile ?: return null
+        logger.info("Loading $side ${resource.kind} resource from ${file.absolutePath}")
+        return try {
+            snapshotCache.getOrExtract(file, codeSystemExtractor::extract)?.also {
+                logger.info("Loaded $side CodeSystem with URL ${it.metadata.url} and version '${it.metadata.version}', " +
+                        "${it.concepts.size} concepts, state = $loadState")
+            }
         } catch (e: DataFormatException) {
             logger.error("The file at ${file.absolutePath} could not be parsed as FHIR", e)
             null
         }
     }
 
-    private fun buildCsGraph(codeSystem: CodeSystem?): CodeSystemGraphBuilder? = when (codeSystem) {
-        null -> null
-        else -> CodeSystemGraphBuilder(codeSystem, localizedStrings)
+    private fun logConceptDiff(diff: CodeSystemDiffBuilder, localizedStrings: LocalizedStrings) {
+        logger.info("${diff.onlyInLeftConcepts.size} code(-s) only in left: ${
+            diff.onlyInLeftConcepts.joinToString(separator = ", ", limit = 50)
+        }")
+        logger.info("${diff.onlyInRightConcepts.size} code(-s) only in right: ${
+            diff.onlyInRightConcepts.joinToString(separator = ", ", limit = 50)
+        }")
+        if (!logger.isDebugEnabled) return
+        val differentCodes = diff.conceptDifferences.differentCodes
+        logger.debug("${differentCodes.size} concept-level difference(-s): ${
+            differentCodes.joinToString(separator = "\n - ") { code ->
+                "$code -> ${
+                    diff.getConceptDiff(code)?.toString(localizedStrings)
+                }"
+            }
+        }")
     }
+}
 
-    private fun buildDiff(
-        leftGraphBuilder: CodeSystemGraphBuilder?,
-        rightGraphBuilder: CodeSystemGraphBuilder?,
-        localizedStrings: LocalizedStrings,
-    ): CodeSystemDiffBuilder? {
-        if (leftGraphBuilder == null || rightGraphBuilder == null) return null
-        logger.info("building diff")
-        return CodeSystemDiffBuilder(leftGraphBuilder, rightGraphBuilder, localizedStrings).build().also {
-            logger.info("${it.onlyInLeftConcepts.size} code(-s) only in left: ${
-                it.onlyInLeftConcepts.joinToString(separator = ", ", limit = 50)
-            }")
-            logger.info("${it.onlyInRightConcepts.size} code(-s) only in right: ${
-                it.onlyInRightConcepts.joinToString(separator = ", ", limit = 50)
-            }")
-            val differentConcepts =
-                it.conceptDifferences.filterValues { d -> d.conceptComparison.any { c -> c.result != ConceptDiffItem.ConceptDiffResultEnum.IDENTICAL } || d.propertyComparison.size != 0 }
-            logger.debug("${differentConcepts.size} concept-level difference(-s): ${
-                differentConcepts.entries.joinToString(separator = "\n - ") { (key, diff) ->
-                    "$key -> ${
-                        diff.toString(localizedStrings)
-                    }"
-                }
-            }")
-        }
-    }
+enum class DiffPipelineStage {
+    PARSE, GRAPH, CONCEPT_DIFF, DIFF_GRAPH, COMBINED_GRAPH
 }
 
+/**
+ * the progress of the diff pipeline. The parse and graph stages are counted once per side, since they run
+ * concurrently for both sides.
+ */
+data class DiffPipelineProgress(
+    val stage: DiffPipelineStage?,
+    val completedSteps: Int,
+    val isFailed: Boolean = false,
+) {
+    val isRunning get() = stage != null && completedSteps < TOTAL_STEPS && !isFailed
+    val fraction get() = completedSteps.toFloat() / TOTAL_STEPS
+
+    companion object {
+        const val TOTAL_STEPS = 7
+        val idle = DiffPipelineProgress(null, 0)
+        val done = DiffPipelineProgress(null, TOTAL_STEPS)
+        val failed = DiffPipelineProgress(null, 0, isFailed = true)
+    }
+}
@@ -23,11 +23,12 @@ data class InputResource(
     enum class Kind {
         FILE,
         FHIR_SERVER,
-        VREAD
+        VREAD,
+        DIFF_ARCHIVE
     }
 
     suspend fun downloadRemoteFile(ktorClient: HttpClient): InputResource = when {
-        kind == Kind.FILE -> this
+        kind == Kind.FILE || kind == Kind.DIFF_ARCHIVE -> this
         (kind == Kind.FHIR_SERVER || kind == Kind.VREAD) && resourceUrl != null -> {
             val tempFilePath = kotlin.io.path.createTempFile(prefix = "terminodiff", suffix = ".json")
             val rx = ktorClient.get(resourceUrl) {
@@ -7,12 +7,17 @@ import androidx.compose.ui.text.font.FontStyle
 import androidx.compose.ui.text.font.FontWeight
 import androidx.compose.ui.text.withStyle
 import terminodiff.engine.concepts.ConceptDiffItem
+import terminodiff.engine.concepts.ConceptQuerySyntaxException
 import terminodiff.engine.concepts.KeyedListDiffResult
 import terminodiff.engine.concepts.KeyedListDiffResultKind
+import terminodiff.engine.graph.SimilarConcept
 import terminodiff.engine.resources.DiffDataContainer.*
+import terminodiff.engine.resources.DiffPipelineStage
+import terminodiff.terminodiff.engine.conceptmap.ConceptMapProgress
 import terminodiff.terminodiff.engine.graph.GraphSide
 import terminodiff.terminodiff.engine.metadata.MetadataComparisonResult
 import terminodiff.terminodiff.engine.resources.InputResource
+import kotlin.math.roundToInt
 
 /**
  * we pass around an instance of LocalizedStrings, since we want every composable
@@ -43,19 +48,24 @@ abstract class LocalizedStrings(
     val comments: String,
     val comparison: String,
     val compositional: String,
+    val computingConceptMap_: (ConceptMapProgress) -> String,
     val conceptDiff: String,
     val conceptDiffResults_: (ConceptDiffItem.ConceptDiffResultEnum) -> String,
     val conceptMap: String = "ConceptMap",
+    val conceptQuery: String,
+    val conceptQueryHint: String,
     val concepts_: (Int) -> String,
     val contact: String,
     val content: String = "Content",
     val copyright: String = "Copyright",
+    val couldNotSaveDiff_: (String) -> String,
     val count: String,
     val date: String,
     val definition: String = "Definition",
     val description: String,
     val designation: String = "Designation",
     val designations: String,
+    val diffArchiveFromPath_: (String) -> AnnotatedString,
     val diffGraph: String,
     val differentValue: String,
     val display: String = "Display",
@@ -63,6 +73,7 @@ abstract class LocalizedStrings(
     val elements_: (Int) -> String,
     val equivalence: String,
     val experimental: String,
+    val exportConceptMap: String,
     val fhirTerminologyServer: String,
     val fileFromPath_: (String) -> AnnotatedString,
     val fileFromUrl_: (String) -> AnnotatedString,
@@ -76,6 +87,7 @@ abstract class LocalizedStrings(
     val identical: String,
     val identifiers: String,
     val invalid: String,
+    val invalidConceptQuery_: (ConceptQuerySyntaxException) -> String,
     val jurisdiction: String,
     val keyedListResult_: (List<KeyedListDiffResult<*, *>>) -> String,
     val language: String,
@@ -86,6 +98,7 @@ abstract class LocalizedStrings(
     val loadLeft: String,
     val loadRight: String,
     val loadedResources: String,
+    val loadingFailed: String,
     val mappableCount_: (Int) -> String,
     val metaVersion: String,
     val metadata: String,
@@ -108,8 +121,10 @@ abstract class LocalizedStrings(
     val onlyInRight: String,
     val open: String,
     val openResources: String,
+    val openSavedDiff: String,
     val overallComparison: String,
     val pending: String,
+    val pipelineStage_: (DiffPipelineStage) -> String,
     val properties: String,
     val propertiesDesignations: String,
     val propertiesDesignationsCount: (Int, Int) -> String,
@@ -125,6 +140,8 @@ abstract class LocalizedStrings(
     val resourcesIdentical: String,
     val resourcesIdenticalMessage: String,
     val rightValue: String,
+    val saveDiff: String,
+    val savingDiff: String,
     val search: String,
     val select: String,
     val showAll: String,
@@ -133,6 +150,9 @@ abstract class LocalizedStrings(
     val showLeftGraphButton: String,
     val showRightGraphButton: String,
     val side_: (Side) -> String,
+    val similarConcept_: (SimilarConcept, String?) -> String,
+    val similarConcepts: String,
+    val sort: String,
     val sourceUri: String,
     val sourceValueSet: String,
     val sourceVersion: String,
@@ -198,6 +218,7 @@ class GermanStrings : LocalizedStrings(acceptAll = "Alle akzeptieren",
     comments = "Kommentare",
     comparison = "Vergleich",
     compositional = "Kompositionell?",
+    computingConceptMap_ = { "Zuordnungen werden berechnet: ${it.completed} von ${it.total} Konzepten" },
     conceptDiff = "Konzept-Diff",
     conceptDiffResults_ = {
         when (it) {
@@ -205,6 +226,8 @@ class GermanStrings : LocalizedStrings(acceptAll = "Alle akzeptieren",
             ConceptDiffItem.ConceptDiffResultEnum.IDENTICAL -> "Identisch"
         }
     },
+    conceptQuery = "Abfrage",
+    conceptQueryHint = "Abfrage, z.B. display contains 'tumor' and property inactive changed to true",
     concepts_ = {
         when (it) {
             1 -> "Konzept"
@@ -212,10 +235,19 @@ class GermanStrings : LocalizedStrings(acceptAll = "Alle akzeptieren",
         }
     },
     contact = "Kontakt",
+    couldNotSaveDiff_ = { "Der Vergleich konnte nicht gespeichert werden: $it" },
     count = "Anzahl",
     date = "Datum",
     description = "Beschreibung",
     designations = "Designationen",
+    diffArchiveFromPath_ = {
+        buildAnnotatedString {
+            append("Gespeicherter Vergleich von: ")
+            withStyle(SpanStyle(fontWeight = FontWeight.Bold)) {
+                append(it)
+            }
+        }
+    },
     diffGraph = "Differenz-Graph",
     differentValue = "Unterschiedliche Werte",
     displayAndInWhich_ = { display, inWhich ->
@@ -234,6 +266,7 @@ class GermanStrings : LocalizedStrings(acceptAll = "Alle akzeptieren",
     },
     equivalence = "Äquivalenz",
     experimental = "Experimentell?",
+    exportConceptMap = "ConceptMap exportieren",
     fhirTerminologyServer = "FHIR-Terminologieserver",
     fileFromPath_ = {
         buildAnnotatedString {
@@ -258,6 +291,7 @@ class GermanStrings : LocalizedStrings(acceptAll = "Alle akzeptieren",
     identical = "Identisch",
     identifiers = "IDs",
     invalid = "Ungültig",
+    invalidConceptQuery_ = { "Ungültige Abfrage an Position ${it.position + 1}: ${it.message}" },
     jurisdiction = "Jurisdiktion",
     keyedListResult_ = { results ->
         results.map { it.result }.groupingBy { it }.eachCount().let { eachCount ->
@@ -277,6 +311,7 @@ class GermanStrings : LocalizedStrings(acceptAll = "Alle akzeptieren",
     loadLeft = "Links laden",
     loadRight = "Rechts laden",
     loadedResources = "Geladene Ressourcen",
+    loadingFailed = "Die Ressourcen konnten nicht geladen werden. Bitte prüfe die Dateien.",
     metadata = "Metadaten",
     metadataDiff = "Metadaten-Diff",
     rightValue = "Rechter Wert",
@@ -297,8 +332,18 @@ class GermanStrings : LocalizedStrings(acceptAll = "Alle akzeptieren",
     onlyInRight = "Nur rechts",
     open = "Öffnen",
     openResources = "Ressourcen öffnen",
+    openSavedDiff = "Gespeicherten Vergleich öffnen",
     overallComparison = "Gesamt",
     pending = "Ausstehend...",
+    pipelineStage_ = {
+        when (it) {
+            DiffPipelineStage.PARSE -> "Ressourcen werden gelesen..."
+            DiffPipelineStage.GRAPH -> "Graphen werden erstellt..."
+            DiffPipelineStage.CONCEPT_DIFF -> "Konzepte werden verglichen..."
+            DiffPipelineStage.DIFF_GRAPH -> "Differenzgraph wird erstellt..."
+            DiffPipelineStage.COMBINED_GRAPH -> "Kombinierter Graph wird erstellt..."
+        }
+    },
     properties = "Eigenschaften",
     propertiesDesignations = "Eigenschaften / Designationen",
     propertiesDesignationsCount = { p, d -> "$p E / $d D" },
@@ -319,6 +364,8 @@ class GermanStrings : LocalizedStrings(acceptAll = "Alle akzeptieren",
     removeLayer = "Ebene entfernen",
     resourcesIdentical = "Identische Ressourcen",
     resourcesIdenticalMessage = "Die Ressourcen sind identisch.",
+    saveDiff = "Vergleich speichern",
+    savingDiff = "Vergleich wird gespeichert...",
     search = "Suchen",
     select = "Auswahl",
     sourceUri = "Quell-URI",
@@ -335,6 +382,11 @@ class GermanStrings : LocalizedStrings(acceptAll = "Alle akzeptieren",
     showIdentical = "Nur identische",
     showLeftGraphButton = "Linker Graph",
     showRightGraphButton = "Rechter Graph",
+    similarConcept_ = { similar, display ->
+        "${similar.code}: ${display ?: "(kein Display)"} (${(similar.similarity * 100).roundToInt()} % ähnlich)"
+    },
+    similarConcepts = "Ähnliche Konzepte",
+    sort = "Sortieren",
     supplements = "Ergänzt",
     target = "Ziel",
     targetUri = "Ziel-URI",
@@ -396,6 +448,7 @@ class EnglishStrings : LocalizedStrings(acceptAll = "Accept all",
     comments = "Comments",
     comparison = "Comparison",
     compositional = "Compositional?",
+    computingConceptMap_ = { "Computing mappings: ${it.completed} of ${it.total} concepts" },
     conceptDiff = "Concept Diff",
     conceptDiffResults_ = {
         when (it) {
@@ -403,6 +456,8 @@ class EnglishStrings : LocalizedStrings(acceptAll = "Accept all",
             ConceptDiffItem.ConceptDiffResultEnum.IDENTICAL -> "Identical"
         }
     },
+    conceptQuery = "Query",
+    conceptQueryHint = "Query, e.g. display contains 'tumor' and property inactive changed to true",
     concepts_ = {
         when (it) {
             1 -> "concept"
@@ -410,10 +465,19 @@ class EnglishStrings : LocalizedStrings(acceptAll = "Accept all",
         }
     },
     contact = "Contact",
+    couldNotSaveDiff_ = { "The diff could not be saved: $it" },
     count = "Count",
     date = "Date",
     description = "Description",
     designations = "Designations",
+    diffArchiveFromPath_ = {
+        buildAnnotatedString {
+            append("Saved diff from ")
+            withStyle(SpanStyle(fontWeight = FontWeight.Bold)) {
+                append(it)
+            }
+        }
+    },
     diffGraph = "Difference Graph",
     differentValue = "Different value",
     displayAndInWhich_ = { display, inWhich ->
@@ -432,6 +496,7 @@ class EnglishStrings : LocalizedStrings(acceptAll = "Accept all",
     },
     equivalence = "Equivalence",
     experimental = "Experimental?",
+    exportConceptMap = "Export ConceptMap",
     fhirTerminologyServer = "FHIR Terminology Server",
     fileFromPath_ = {
         buildAnnotatedString {
@@ -456,6 +521,7 @@ class EnglishStrings : LocalizedStrings(acceptAll = "Accept all",
     identical = "Identical",
     identifiers = "Identifiers",
     invalid = "Invalid",
+    invalidConceptQuery_ = { "Invalid query at position ${it.position + 1}: ${it.message}" },
     jurisdiction = "Jurisdiction",
     keyedListResult_ = { results ->
         results.map { it.result }.groupingBy { it }.eachCount().let { eachCount ->
@@ -475,6 +541,7 @@ class EnglishStrings : LocalizedStrings(acceptAll = "Accept all",
     loadLeft = "Load left",
     loadRight = "Load right",
     loadedResources = "Loaded resources",
+    loadingFailed = "The resources could not be loaded. Please check the files.",
     mappableCount_ = { "$it mappable" },
     metadata = "Metadata",
     metadataDiff = "Metadata Diff",
@@ -494,8 +561,18 @@ class EnglishStrings : LocalizedStrings(acceptAll = "Accept all",
     onlyInRight = "Only right",
     open = "Open",
     openResources = "Open Resources",
+    openSavedDiff = "Open saved diff",
     overallComparison = "Overall",
     pending = "Pending...",
+    pipelineStage_ = {
+        when (it) {
+            DiffPipelineStage.PARSE -> "Reading resources..."
+            DiffPipelineStage.GRAPH -> "Building graphs..."
+            DiffPipelineStage.CONCEPT_DIFF -> "Comparing concepts..."
+            DiffPipelineStage.DIFF_GRAPH -> "Building difference graph..."
+            DiffPipelineStage.COMBINED_GRAPH -> "Building combined graph..."
+        }
+    },
     properties = "Properties",
     propertiesDesignations = "Properties / Designations",
     propertiesDesignationsCount = { p, d -> "$p P / $d D" },
@@ -517,6 +594,8 @@ class EnglishStrings : LocalizedStrings(acceptAll = "Accept all",
     resourcesIdentical = "Identical resources",
     resourcesIdenticalMessage = "The resources provided are identical.",
     rightValue = "Right value",
+    saveDiff = "Save diff",
+    savingDiff = "Saving diff...",
     search = "Search",
     select = "Select",
     sourceUri = "Source URI",
@@ -533,6 +612,11 @@ class EnglishStrings : LocalizedStrings(acceptAll = "Accept all",
     showIdentical = "Only identical",
     showLeftGraphButton = "Left graph",
     showRightGraphButton = "Right graph",
+    similarConcept_ = { similar, display ->
+        "${similar.code}: ${display ?: "(no display)"} (${(similar.similarity * 100).roundToInt()} % similar)"
+    },
+    similarConcepts = "Similar concepts",
+    sort = "Sort",
     supplements = "Supplements",
     target = "Target",
     targetUri = "Target URI",
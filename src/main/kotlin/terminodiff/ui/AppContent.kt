@@ -17,6 +17,7 @@ import terminodiff.engine.resources.DiffDataContainer
 import terminodiff.i18n.LocalizedStrings
 import terminodiff.terminodiff.engine.conceptmap.ConceptMapState
 import terminodiff.terminodiff.engine.resources.InputResource
+import terminodiff.terminodiff.engine.resources.InputResource.Kind
 import terminodiff.terminodiff.ui.panes.diff.DiffPaneContent
 import terminodiff.terminodiff.ui.panes.loaddata.LoadDataPaneContent
 import terminodiff.ui.TerminoDiffTopAppBar
@@ -33,11 +34,25 @@ fun TerminodiffAppContent(
     onChangeDarkTheme: () -> Unit
 ) {
     var showDiff by remember { mutableStateOf(false) }
+    // a saved diff is loaded on both sides, it can't be compared with another resource
     val onLoadLeftFile: (InputResource) -> Unit = {
         diffDataContainer.leftResource = it
+        if (it.kind != Kind.DIFF_ARCHIVE && diffDataContainer.rightResource?.kind == Kind.DIFF_ARCHIVE) {
+            diffDataContainer.rightResource = null
+        }
     }
     val onLoadRightFile: (InputResource) -> Unit = {
         diffDataContainer.rightResource = it
+        if (it.kind != Kind.DIFF_ARCHIVE && diffDataContainer.leftResource?.kind == Kind.DIFF_ARCHIVE) {
+            diffDataContainer.leftResource = null
+        }
+    }
+
+    LaunchedEffect(diffDataContainer.leftResource,
+        diffDataContainer.rightResource,
+        diffDataContainer.loadState) {
+        // restarting the effect cancels a pipeline run that is still in progress
+        diffDataContainer.runPipeline()
     }
 
     val splitPaneState = rememberSplitPaneState(initialPositionPercentage = 0.7f)
@@ -82,7 +97,7 @@ fun TerminodiffContentWindow(
         }
     }
     val isReady by derivedStateOf {
-        diffDataContainer.leftCodeSystem != null && diffDataContainer.rightCodeSystem != null && showDiff
+        diffDataContainer.leftResource != null && diffDataContainer.rightResource != null && showDiff
     }
     Crossfade(useDarkTheme) { darkTheme ->
         TerminoDiffTheme(useDarkTheme = darkTheme) {
@@ -8,13 +8,16 @@ import androidx.compose.foundation.layout.Arrangement
 import androidx.compose.foundation.layout.Row
 import androidx.compose.foundation.layout.fillMaxHeight
 import androidx.compose.foundation.layout.padding
+import androidx.compose.foundation.layout.size
 import androidx.compose.foundation.shape.RoundedCornerShape
+import androidx.compose.material.CircularProgressIndicator
 import androidx.compose.material.TopAppBar
 import androidx.compose.material.icons.Icons
 import androidx.compose.material.icons.filled.DarkMode
 import androidx.compose.material.icons.filled.FolderOpen
 import androidx.compose.material.icons.filled.LightMode
 import androidx.compose.material.icons.filled.Mediation
+import androidx.compose.material.icons.filled.Save
 import androidx.compose.material3.*
 import androidx.compose.material3.MaterialTheme.colorScheme
 import androidx.compose.runtime.*
@@ -31,15 +34,24 @@ import androidx.compose.ui.res.loadXmlImageVector
 import androidx.compose.ui.unit.DpOffset
 import androidx.compose.ui.unit.dp
 import ca.uhn.fhir.context.FhirContext
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.launch
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
 import org.xml.sax.InputSource
 import terminodiff.engine.resources.DiffDataContainer
 import terminodiff.i18n.LocalizedStrings
 import terminodiff.terminodiff.engine.conceptmap.ConceptMapState
 import terminodiff.terminodiff.ui.panes.conceptmap.ConceptMapDialog
+import terminodiff.terminodiff.ui.panes.loaddata.panes.showSaveDiffDialog
 import terminodiff.ui.panes.graph.showDiffGraphSwingWindow
 import terminodiff.ui.panes.graph.showGraphSwingWindow
 import java.awt.Cursor
+import java.io.File
 import java.io.InputStream
+import javax.swing.JOptionPane
+
+private val logger: Logger = LoggerFactory.getLogger("ScaffoldComponents")
 
 typealias ImageRelativePath = String
 
@@ -81,6 +93,8 @@ fun TerminoDiffTopAppBar(
 ) {
 
     var showConceptMapDialog by remember { mutableStateOf(false) }
+    var isSavingDiff by remember { mutableStateOf(false) }
+    val coroutineScope = rememberCoroutineScope()
     if (showConceptMapDialog && conceptMapState != null && diffDataContainer != null) {
         ConceptMapDialog(diffDataContainer = diffDataContainer,
             conceptMapState = conceptMapState,
@@ -110,7 +124,7 @@ fun TerminoDiffTopAppBar(
         if (diffDataContainer?.codeSystemDiff != null && showGraphButtons) {
             Row(modifier = Modifier.padding(end = 8.dp), horizontalArrangement = Arrangement.spacedBy(4.dp)) {
                 OutlinedButton(colors = outlinedColors, border = border, onClick = {
-                    showGraphSwingWindow(codeSystem = diffDataContainer.leftCodeSystem!!,
+                    showGraphSwingWindow(graphBuilder = diffDataContainer.leftGraphBuilder!!,
                         frameTitle = localizedStrings.showLeftGraphButton,
                         useDarkTheme = useDarkTheme,
                         localizedStrings = localizedStrings)
@@ -135,7 +149,7 @@ fun TerminoDiffTopAppBar(
                 }
 
                 OutlinedButton(colors = outlinedColors, border = border, onClick = {
-                    showGraphSwingWindow(codeSystem = diffDataContainer.rightCodeSystem!!,
+                    showGraphSwingWindow(graphBuilder = diffDataContainer.rightGraphBuilder!!,
                         frameTitle = localizedStrings.showRightGraphButton,
                         useDarkTheme = useDarkTheme,
                         localizedStrings = localizedStrings)
@@ -145,6 +159,31 @@ fun TerminoDiffTopAppBar(
             }
         }
 
+        if (diffDataContainer?.codeSystemDiff != null && showGraphButtons) {
+            if (isSavingDiff) {
+                MouseOverPopup(localizedStrings.savingDiff) {
+                    IconButton(onClick = {}, enabled = false) {
+                        CircularProgressIndicator(Modifier.size(24.dp), colorScheme.onPrimaryContainer)
+                    }
+                }
+            } else {
+                MouseOverPopup(localizedStrings.saveDiff) {
+                    IconActionButton(onClick = {
+                        showSaveDiffDialog(localizedStrings.saveDiff)?.let { file ->
+                            coroutineScope.launch {
+                                isSavingDiff = true
+                                try {
+                                    saveDiff(diffDataContainer, file, localizedStrings)
+                                } finally {
+                                    isSavingDiff = false
+                                }
+                            }
+                        }
+                    }, imageVector = Icons.Default.Save, label = localizedStrings.saveDiff)
+                }
+            }
+        }
+
         MouseOverPopup(localizedStrings.toggleDarkTheme) {
             IconActionButton(onClick = onChangeDarkTheme,
                 imageVector = if (useDarkTheme) Icons.Default.LightMode else Icons.Default.DarkMode,
@@ -171,6 +210,20 @@ fun TerminoDiffTopAppBar(
     })
 }
 
+private suspend fun saveDiff(diffDataContainer: DiffDataContainer, file: File, localizedStrings: LocalizedStrings) {
+    try {
+        diffDataContainer.saveDiff(file)
+    } catch (e: CancellationException) {
+        throw e
+    } catch (e: Exception) {
+        logger.error("could not save the diff to ${file.absolutePath}", e)
+        JOptionPane.showMessageDialog(/* parentComponent = */ null,
+            /* message = */ localizedStrings.couldNotSaveDiff_(e.message ?: e.javaClass.simpleName),
+            /* title = */ localizedStrings.saveDiff,
+            /* messageType = */ JOptionPane.ERROR_MESSAGE)
+    }
+}
+
 @Composable
 private fun IconActionButton(
     onClick: () -> Unit,
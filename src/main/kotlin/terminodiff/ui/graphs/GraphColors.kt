@@ -0,0 +1,22 @@
+@file:JvmName("GraphColors")
+
+package terminodiff.ui.graphs
+
+import terminodiff.engine.graph.DiffEdge
+import terminodiff.engine.graph.DiffNode
+import terminodiff.engine.graph.FhirConceptEdge
+import terminodiff.terminodiff.engine.graph.CombinedEdge
+import terminodiff.terminodiff.engine.graph.CombinedVertex
+import java.awt.Color
+
+// the colors of the graph elements are looked up when they are drawn, so that the engine does not depend on the UI
+
+fun FhirConceptEdge.getColor(): Color = ColorRegistry.getColor(Registry.EDGES, propertyCode)
+
+fun DiffNode.getColor(): Color = ColorRegistry.getDiffGraphColor(inWhich)
+
+fun DiffEdge.getColor(): Color = ColorRegistry.getDiffGraphColor(inWhich)
+
+fun CombinedVertex.getColor(): Color = ColorRegistry.getDiffGraphColor(side)
+
+fun CombinedEdge.getColor(): Color = ColorRegistry.getDiffGraphColor(side)
@@ -1,6 +1,5 @@
 package terminodiff.ui.graphs
 
-import org.hl7.fhir.r4.model.CodeSystem
 import org.jgrapht.Graph
 import terminodiff.engine.graph.CodeSystemGraphBuilder
 import terminodiff.engine.graph.DiffEdge
@@ -14,12 +13,11 @@ import terminodiff.java.ui.DiffGraphJFrame
  * Hence, the meat of this functionality is written in pure Java and resides within the directory src/main/java/terminodiff/java/ui
  */
 fun codeSystemGraphLayoutFrame(
-    codeSystem: CodeSystem,
+    graphBuilder: CodeSystemGraphBuilder,
     useDarkTheme: Boolean,
     localizedStrings: LocalizedStrings,
     frameTitle: String
 ) {
-    val graphBuilder = CodeSystemGraphBuilder(codeSystem = codeSystem, localizedStrings)
     CodeSystemGraphJFrame(graphBuilder.graph, useDarkTheme, localizedStrings, frameTitle) { c: String ->
         graphBuilder.nodeTree[c]?.display ?: "no display"
     }
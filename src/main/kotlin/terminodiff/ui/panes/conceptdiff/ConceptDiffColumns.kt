@@ -19,11 +19,13 @@ import androidx.compose.ui.text.style.TextOverflow
 import androidx.compose.ui.unit.dp
 import terminodiff.engine.concepts.ConceptDiffItem
 import terminodiff.engine.concepts.KeyedListDiffResultKind
+import terminodiff.engine.concepts.OverallComparison
 import terminodiff.engine.graph.FhirConceptDetails
 import terminodiff.i18n.LocalizedStrings
 import terminodiff.ui.AppIconResource
 import terminodiff.ui.theme.DiffColors
 import terminodiff.ui.util.*
+import java.util.*
 
 fun conceptDiffColumnSpecs(
     localizedStrings: LocalizedStrings,
@@ -39,6 +41,27 @@ fun conceptDiffColumnSpecs(
     propertyDesignationColumnSpec(localizedStrings, diffColors, onShowPropertyDialog),
     overallComparisonColumnSpec(localizedStrings, diffColors))
 
+/**
+ * the values of the searchable and sortable columns of [conceptDiffColumnSpecs] for the rows of all concepts, by their
+ * position in the classification. They are read from the diff, so that searching and sorting all rows does not
+ * create them.
+ */
+fun conceptDiffColumnValues(localizedStrings: LocalizedStrings, tableData: TableData): ColumnValues {
+    val codeOf = { position: Int -> tableData.classification.codes[position] }
+    val tooltipOf = { position: Int, property: (FhirConceptDetails) -> String? ->
+        val code = codeOf(position)
+        tooltipForConceptProperty(tableData.leftGraphBuilder.nodeTree[code],
+            tableData.rightGraphBuilder.nodeTree[code],
+            property)
+    }
+    return ColumnValues(strings = mapOf(localizedStrings.code to codeOf,
+        localizedStrings.display to { position -> tooltipOf(position, FhirConceptDetails::display) },
+        localizedStrings.definition to { position -> tooltipOf(position, FhirConceptDetails::definition) }),
+        sortKeys = mapOf(localizedStrings.propertiesDesignations to { position ->
+            tableData.conceptDiff.countPropertyDesignationDifferences(codeOf(position))
+        }, localizedStrings.overallComparison to { position -> tableData.classification.comparisonAt(position) }))
+}
+
 private fun codeColumnSpec(localizedStrings: LocalizedStrings) =
     ColumnSpec.StringSearchableColumnSpec<ConceptTableData>(title = localizedStrings.code,
         weight = 0.1f,
@@ -64,6 +87,7 @@ private fun displayColumnSpec(
     labelToFind = localizedStrings.display,
     weight = 0.25f,
     stringValueResolver = FhirConceptDetails::display,
+    sortable = true,
     onDetailClick = showDisplayDetailsDialog)
 
 private fun definitionColumnSpec(
@@ -84,6 +108,7 @@ private fun propertyDesignationColumnSpec(
 ) = ColumnSpec<ConceptTableData>(title = localizedStrings.propertiesDesignations,
     weight = 0.25f,
     tooltipText = { localizedStrings.clickForDetails },
+    sortKey = { it.countPropertyDesignationDifferences() },
     content = { data ->
         when {
             data.isInBoth() -> {
@@ -139,10 +164,11 @@ private fun overallComparisonColumnSpec(
     title = localizedStrings.overallComparison,
     weight = 0.25f,
     tooltipText = null,
+    sortKey = { it.overallComparison },
 ) { data ->
-    when (val result = data.overallComparison()) {
-        ConceptTableData.OverallComparison.IDENTICAL, ConceptTableData.OverallComparison.DIFFERENT -> {
-            val anyDifferent = result == ConceptTableData.OverallComparison.DIFFERENT
+    when (val result = data.overallComparison) {
+        OverallComparison.IDENTICAL, OverallComparison.DIFFERENT -> {
+            val anyDifferent = result == OverallComparison.DIFFERENT
             val colors: Pair<Color, Color> = if (anyDifferent) diffColors.yellowPair else diffColors.greenPair
             val chipLabel: String =
                 if (anyDifferent) localizedStrings.conceptDiffResults_.invoke(ConceptDiffItem.ConceptDiffResultEnum.DIFFERENT)
@@ -171,6 +197,7 @@ private fun columnSpecForProperty(
     labelToFind: String,
     @Suppress("SameParameterValue") weight: Float,
     stringValueResolver: (FhirConceptDetails) -> String?,
+    sortable: Boolean = false,
     onDetailClick: ((ConceptTableData) -> Unit)? = null,
 ): ColumnSpec.StringSearchableColumnSpec<ConceptTableData> {
     val tooltipTextFun: (ConceptTableData) -> String? =
@@ -180,6 +207,9 @@ private fun columnSpecForProperty(
         weight = weight,
         instanceGetter = tooltipTextFun,
         tooltipText = tooltipTextFun,
+        sortKey = { data: ConceptTableData ->
+            tooltipTextFun(data)?.lowercase(Locale.getDefault())
+        }.takeIf { sortable },
     ) { data ->
         val singleConcept = when {
             data.isOnlyInLeft() -> data.leftDetails!!
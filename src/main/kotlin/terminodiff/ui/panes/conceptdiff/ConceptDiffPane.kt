@@ -4,35 +4,48 @@ import androidx.compose.foundation.layout.*
 import androidx.compose.foundation.lazy.LazyListState
 import androidx.compose.foundation.lazy.rememberLazyListState
 import androidx.compose.material.Card
+import androidx.compose.material.icons.Icons
+import androidx.compose.material.icons.filled.Backspace
 import androidx.compose.material3.MaterialTheme
 import androidx.compose.material3.MaterialTheme.colorScheme
+import androidx.compose.material3.MaterialTheme.typography
 import androidx.compose.material3.Text
 import androidx.compose.runtime.*
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.unit.dp
+import kotlinx.coroutines.FlowPreview
+import kotlinx.coroutines.flow.collectLatest
+import kotlinx.coroutines.flow.debounce
 import kotlinx.coroutines.launch
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
+import terminodiff.engine.concepts.ConceptClassificationIndex
 import terminodiff.engine.concepts.ConceptDiff
-import terminodiff.engine.concepts.ConceptDiffItem
-import terminodiff.engine.concepts.KeyedListDiffResultKind
+import terminodiff.engine.concepts.ConceptDiffIndex
+import terminodiff.engine.concepts.ConceptQuery
+import terminodiff.engine.concepts.ConceptQuerySyntaxException
+import terminodiff.engine.concepts.OverallComparison
+import terminodiff.engine.graph.CodeSystemDiffBuilder
 import terminodiff.engine.graph.CodeSystemGraphBuilder
 import terminodiff.engine.graph.FhirConceptDetails
 import terminodiff.engine.resources.DiffDataContainer
 import terminodiff.i18n.LocalizedStrings
 import terminodiff.terminodiff.ui.panes.conceptdiff.display.DisplayDetailsDialog
 import terminodiff.terminodiff.ui.panes.conceptdiff.propertydesignation.PropertyDesignationDialog
+import terminodiff.terminodiff.ui.util.LabeledTextField
 import terminodiff.ui.theme.DiffColors
 import terminodiff.ui.theme.getDiffColors
 import terminodiff.ui.util.ColumnSpec
 import terminodiff.ui.util.LazyTable
+import terminodiff.ui.util.TableRows
 import terminodiff.ui.util.ToggleableChipGroup
 import terminodiff.ui.util.ToggleableChipSpec
-import java.util.*
 
 private val logger: Logger = LoggerFactory.getLogger("conceptdiffpanel")
 
+private const val QUERY_DEBOUNCE_MILLIS = 250L
+
 private enum class DetailsDialogKind {
     PROPERTY_DESIGNATION, DISPLAY, DEFINITION
 }
@@ -46,7 +59,15 @@ fun ConceptDiffPanel(
 ) {
     val diffColors by remember { mutableStateOf(getDiffColors(useDarkTheme = useDarkTheme)) }
     var activeFilter by remember { mutableStateOf(ToggleableChipSpec.showDifferent) }
-    val chipFilteredTableData by derivedStateOf { filterDiffItems(diffDataContainer, activeFilter) }
+    var queryText by remember { mutableStateOf("") }
+    var queryResult by remember { mutableStateOf(ConceptQueryResult()) }
+    LaunchedEffect(diffDataContainer.codeSystemDiff) {
+        val codeSystemDiff = diffDataContainer.codeSystemDiff ?: return@LaunchedEffect
+        evaluateQueryOnChanges(codeSystemDiff, { queryText }) { queryResult = it }
+    }
+    val chipFilteredTableData by derivedStateOf {
+        filterDiffItems(diffDataContainer, activeFilter, queryResult.positions)
+    }
     val lazyListState = rememberLazyListState(initialFirstVisibleItemIndex = 0)
     val coroutineScope = rememberCoroutineScope()
     val filterSpecs by derivedStateOf {
@@ -55,10 +76,17 @@ fun ConceptDiffPanel(
             ToggleableChipSpec(ToggleableChipSpec.showDifferent, localizedStrings.showDifferent),
             ToggleableChipSpec(ToggleableChipSpec.onlyConceptDifferences, localizedStrings.onlyConceptDifferences),
             ToggleableChipSpec(ToggleableChipSpec.onlyInLeft, localizedStrings.onlyInLeft),
-            ToggleableChipSpec(ToggleableChipSpec.onlyInRight, localizedStrings.onlyInRight))
+            ToggleableChipSpec(ToggleableChipSpec.onlyInRight, localizedStrings.onlyInRight),
+            ToggleableChipSpec(ToggleableChipSpec.conceptQuery, localizedStrings.conceptQuery))
     }
     val counts by derivedStateOf {
-        filterSpecs.associate { it.name to filterDiffItems(diffDataContainer, it.name).shownCodes.size }
+        val classification = diffDataContainer.codeSystemDiff?.conceptClassification ?: throw NullPointerException()
+        filterSpecs.associate {
+            it.name to when (it.name) {
+                ToggleableChipSpec.conceptQuery -> queryResult.positions.size
+                else -> classification.count(filterComparisons(it.name))
+            }
+        }
     }
 
     var dialogData: Pair<ConceptTableData, DetailsDialogKind>? by remember { mutableStateOf(null) }
@@ -101,6 +129,11 @@ fun ConceptDiffPanel(
                     }
                 }
             }
+            ConceptQueryField(query = queryText, result = queryResult, localizedStrings = localizedStrings) {
+                queryText = it
+                // the results of the query are shown while it is typed
+                activeFilter = ToggleableChipSpec.conceptQuery
+            }
 
             DiffDataTable(diffDataContainer = diffDataContainer,
                 tableData = chipFilteredTableData,
@@ -121,45 +154,98 @@ fun ConceptDiffPanel(
     }
 }
 
-fun filterDiffItems(diffDataContainer: DiffDataContainer, activeFilter: String): TableData {
+@Composable
+private fun ConceptQueryField(
+    query: String,
+    result: ConceptQueryResult,
+    localizedStrings: LocalizedStrings,
+    onQueryChange: (String) -> Unit,
+) = Column(Modifier.fillMaxWidth(0.8f).padding(top = 4.dp, bottom = 4.dp),
+    horizontalAlignment = Alignment.CenterHorizontally) {
+    LabeledTextField(modifier = Modifier.fillMaxWidth(),
+        value = query,
+        onValueChange = onQueryChange,
+        labelText = localizedStrings.conceptQueryHint,
+        isError = result.error != null,
+        trailingIconVector = Icons.Default.Backspace,
+        trailingIconDescription = localizedStrings.clearSearch,
+        onTrailingIconClick = { onQueryChange("") })
+    result.error?.let { error ->
+        Text(text = localizedStrings.invalidConceptQuery_.invoke(error),
+            color = colorScheme.error,
+            style = typography.bodySmall)
+    }
+}
+
+/**
+ * the concepts that match the query of the query chip, as their positions in the concept classification (i.e. in the
+ * order of the table), or the syntax error of the query
+ */
+class ConceptQueryResult(val positions: IntArray = IntArray(0), val error: ConceptQuerySyntaxException? = null)
+
+/**
+ * compiles and evaluates the query whenever it changes, until this is cancelled. The changes are debounced, and an
+ * evaluation that is still running is cancelled by the next change.
+ */
+@OptIn(FlowPreview::class)
+private suspend fun evaluateQueryOnChanges(
+    codeSystemDiff: CodeSystemDiffBuilder,
+    queryText: () -> String,
+    onResult: (ConceptQueryResult) -> Unit,
+) = snapshotFlow(queryText).debounce(QUERY_DEBOUNCE_MILLIS).collectLatest { text ->
+    onResult(evaluateConceptQuery(codeSystemDiff, text))
+}
+
+private suspend fun evaluateConceptQuery(codeSystemDiff: CodeSystemDiffBuilder, text: String): ConceptQueryResult {
+    if (text.isBlank()) return ConceptQueryResult()
+    val query = try {
+        ConceptQuery.compile(text)
+    } catch (e: ConceptQuerySyntaxException) {
+        return ConceptQueryResult(error = e)
+    }
+    return ConceptQueryResult(positions = query.evaluate(codeSystemDiff)).also {
+        logger.info("${it.positions.size} concept(-s) match the query '$text'")
+    }
+}
+
+/**
+ * the classifications of the concepts that are shown by the filter chips
+ */
+private fun filterComparisons(activeFilter: String): Set<OverallComparison> = when (activeFilter) {
+    ToggleableChipSpec.showDifferent -> setOf(OverallComparison.ONLY_LEFT,
+        OverallComparison.ONLY_RIGHT,
+        OverallComparison.DIFFERENT)
+    ToggleableChipSpec.onlyInLeft -> setOf(OverallComparison.ONLY_LEFT)
+    ToggleableChipSpec.onlyInRight -> setOf(OverallComparison.ONLY_RIGHT)
+    ToggleableChipSpec.showIdentical -> setOf(OverallComparison.IDENTICAL)
+    ToggleableChipSpec.onlyConceptDifferences -> setOf(OverallComparison.DIFFERENT)
+    else -> OverallComparison.values().toSet() // show all
+}
+
+fun filterDiffItems(diffDataContainer: DiffDataContainer, activeFilter: String, queryPositions: IntArray): TableData {
     val leftGraphBuilder = diffDataContainer.leftGraphBuilder ?: throw NullPointerException()
     val rightGraphBuilder = diffDataContainer.rightGraphBuilder ?: throw NullPointerException()
-    val onlyInLeftConcepts = diffDataContainer.codeSystemDiff?.onlyInLeftConcepts ?: throw NullPointerException()
-    val onlyInRightConcepts = diffDataContainer.codeSystemDiff?.onlyInRightConcepts ?: throw NullPointerException()
     val conceptDiff = diffDataContainer.codeSystemDiff?.conceptDifferences ?: throw NullPointerException()
-    val differentCodesInDiff = conceptDiff.filterValues { diff ->
-        when {
-            diff.conceptComparison.any { c -> c.result == ConceptDiffItem.ConceptDiffResultEnum.DIFFERENT } -> true
-            diff.propertyComparison.any { p -> p.result != KeyedListDiffResultKind.IDENTICAL } -> true
-            diff.designationComparison.any { d -> d.result != KeyedListDiffResultKind.IDENTICAL } -> true
-            else -> false
-        }
-    }.keys
-    val sameCodesInDiff = conceptDiff.keys.minus(differentCodesInDiff)
-
-    val shownCodes = when (activeFilter) {
-        ToggleableChipSpec.showDifferent -> onlyInLeftConcepts.plus(onlyInRightConcepts).plus(differentCodesInDiff)
-        ToggleableChipSpec.onlyInLeft -> onlyInLeftConcepts
-        ToggleableChipSpec.onlyInRight -> onlyInRightConcepts
-        ToggleableChipSpec.showIdentical -> sameCodesInDiff
-        ToggleableChipSpec.onlyConceptDifferences -> differentCodesInDiff
-        else -> onlyInLeftConcepts.plus(onlyInRightConcepts).plus(conceptDiff.keys) // show all
-    }.toSortedSet().toList()
+    val classification = diffDataContainer.codeSystemDiff?.conceptClassification ?: throw NullPointerException()
 
-    return TableData(onlyInLeftConcepts,
-        onlyInRightConcepts,
-        shownCodes,
+    return TableData(classification,
+        when (activeFilter) {
+            ToggleableChipSpec.conceptQuery -> queryPositions
+            else -> classification.positionsOf(filterComparisons(activeFilter))
+        },
         conceptDiff,
         leftGraphBuilder,
         rightGraphBuilder)
-
 }
 
+/**
+ * the concepts shown by a filter, as their positions in the [classification], which are in the order of the table.
+ * The positions are cached by the classification, so the table data of the same filter is equal.
+ */
 data class TableData(
-    val onlyInLeftConcepts: MutableList<String>,
-    val onlyInRightConcepts: MutableList<String>,
-    val shownCodes: List<String>,
-    val conceptDiff: TreeMap<String, ConceptDiff>,
+    val classification: ConceptClassificationIndex,
+    val shownPositions: IntArray,
+    val conceptDiff: ConceptDiffIndex,
     val leftGraphBuilder: CodeSystemGraphBuilder,
     val rightGraphBuilder: CodeSystemGraphBuilder,
 )
@@ -210,35 +296,17 @@ data class ConceptTableData(
     val code: String,
     val leftDetails: FhirConceptDetails?,
     val rightDetails: FhirConceptDetails?,
-    val diff: ConceptDiff?,
+    val overallComparison: OverallComparison,
+    private val conceptDiffs: ConceptDiffIndex?,
 ) {
+    // the detailed diff is only computed when a row or dialog needs it
+    val diff: ConceptDiff? by lazy { conceptDiffs?.getConceptDiff(code) }
+
     fun isOnlyInLeft() = leftDetails != null && rightDetails == null
     fun isOnlyInRight() = leftDetails == null && rightDetails != null
-    fun isInBoth() = diff != null
+    fun isInBoth() = conceptDiffs?.contains(code) == true
 
-    fun overallComparison(): OverallComparison {
-        return when (isInBoth()) {
-            true -> when {
-                diff!!.conceptComparison.any {
-                    it.result == ConceptDiffItem.ConceptDiffResultEnum.DIFFERENT
-                } -> OverallComparison.DIFFERENT
-                diff.propertyComparison.any { it.result != KeyedListDiffResultKind.IDENTICAL } -> OverallComparison.DIFFERENT
-                diff.designationComparison.any { it.result != KeyedListDiffResultKind.IDENTICAL } -> OverallComparison.DIFFERENT
-                else -> OverallComparison.IDENTICAL
-            }
-            else -> when (isOnlyInLeft()) {
-                true -> OverallComparison.ONLY_LEFT
-                else -> OverallComparison.ONLY_RIGHT
-            }
-        }
-    }
-
-    enum class OverallComparison {
-        ONLY_LEFT,
-        ONLY_RIGHT,
-        DIFFERENT,
-        IDENTICAL
-    }
+    fun countPropertyDesignationDifferences() = conceptDiffs?.countPropertyDesignationDifferences(code) ?: 0
 }
 
 @Composable
@@ -248,19 +316,34 @@ fun TableScreen(
     columnSpecs: List<ColumnSpec<ConceptTableData>>,
     localizedStrings: LocalizedStrings,
 ) {
-    val containedData: List<ConceptTableData> by derivedStateOf {
-        tableData.shownCodes.map { code ->
+    // there is a row for every position in the classification, for all filters, so that the search and the sorting
+    // of the table are computed once per diff, and the filters only pick the shown positions. The rows are only
+    // created when they are read, and both of these only read the diff of the table data, not its shown positions.
+    val diffKeys = arrayOf(tableData.classification,
+        tableData.conceptDiff,
+        tableData.leftGraphBuilder,
+        tableData.rightGraphBuilder)
+    val containedData: List<ConceptTableData> = remember(*diffKeys) {
+        TableRows(size = tableData.classification.size) { position ->
+            val code = tableData.classification.codes[position]
             ConceptTableData(code = code,
                 leftDetails = tableData.leftGraphBuilder.nodeTree[code],
                 rightDetails = tableData.rightGraphBuilder.nodeTree[code],
-                diff = tableData.conceptDiff[code])
-        }.toSortedSet(compareBy<ConceptTableData> { it.overallComparison().ordinal }.thenBy { it.code }).toList()
+                overallComparison = tableData.classification.comparisonAt(position),
+                conceptDiffs = tableData.conceptDiff)
+        }
+    }
+    // the search and the sorting read the values of all rows, directly from the diff
+    val columnValues = remember(*diffKeys, localizedStrings) {
+        conceptDiffColumnValues(localizedStrings, tableData)
     }
     LazyTable(columnSpecs = columnSpecs,
         backgroundColor = colorScheme.surfaceVariant,
         lazyListState = lazyListState,
         zebraStripingColor = colorScheme.secondaryContainer,
         tableData = containedData,
+        columnValues = columnValues,
+        shownRows = tableData.shownPositions,
         dataAlreadySorted = true,
         localizedStrings = localizedStrings,
         countLabel = localizedStrings.concepts_) { it.code }
@@ -10,4 +10,5 @@ val ToggleableChipSpec.Companion.showDifferent get() = "show-different"
 val ToggleableChipSpec.Companion.showIdentical get() = "show-identical"
 val ToggleableChipSpec.Companion.onlyInLeft get() = "show-only-in-left"
 val ToggleableChipSpec.Companion.onlyInRight get() = "show-only-in-right"
-val ToggleableChipSpec.Companion.onlyConceptDifferences get() = "show-only-concept-differences"
\ No newline at end of file
+val ToggleableChipSpec.Companion.onlyConceptDifferences get() = "show-only-concept-differences"
+val ToggleableChipSpec.Companion.conceptQuery get() = "show-concept-query"
\ No newline at end of file
@@ -96,7 +96,7 @@ private fun <T> propertyTypeColumnSpec(localizedStrings: LocalizedStrings, typeG
 
 private fun propertyValueColumnSpec(localizedStrings: LocalizedStrings) =
     ColumnSpec<FhirConceptProperty>(localizedStrings.value, weight = 0.6f) {
-        textForValue(it.value)
+        textForValue(renderPropertyValue(localizedStrings, it.type, it.value))
     }
 
 private fun propertyComparisonColumnSpec(localizedStrings: LocalizedStrings, diffColors: DiffColors) =
@@ -109,11 +109,22 @@ private fun leftPropertyValueColumnSpec(localizedStrings: LocalizedStrings) =
         weight = 0.4f,
         mergeIf = { it.result == KeyedListDiffResultKind.IDENTICAL }) {
         if (it.result != KeyedListDiffResultKind.KEY_ONLY_IN_LEFT) {
-            textForValue(it.leftValue, limit = 10)
+            textForValue(it.leftValue?.map { v -> renderPropertyValue(localizedStrings, it.propertyType, v) }, limit = 10)
         }
     }
 
 private fun rightPropertyValueColumnSpec(localizedStrings: LocalizedStrings) =
     ColumnSpec<PropertyDiffResult>(title = localizedStrings.rightValue, weight = 0.4f) {
-        if (it.result != KeyedListDiffResultKind.KEY_ONLY_IN_RIGHT) textForValue(it.rightValue?.joinToString())
+        if (it.result != KeyedListDiffResultKind.KEY_ONLY_IN_RIGHT) textForValue(it.rightValue?.joinToString { v ->
+            renderPropertyValue(localizedStrings, it.propertyType, v) ?: "null"
+        })
+    }
+
+/**
+ * property values are stored independent of the locale, booleans are localized here
+ */
+private fun renderPropertyValue(localizedStrings: LocalizedStrings, type: CodeSystem.PropertyType, value: String?) =
+    when (type) {
+        CodeSystem.PropertyType.BOOLEAN -> value?.toBooleanStrictOrNull()?.let(localizedStrings.boolean_) ?: value
+        else -> value
     }
\ No newline at end of file
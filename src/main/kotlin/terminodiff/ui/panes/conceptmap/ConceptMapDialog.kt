@@ -5,12 +5,14 @@ package terminodiff.terminodiff.ui.panes.conceptmap
 import androidx.compose.foundation.background
 import androidx.compose.foundation.layout.*
 import androidx.compose.foundation.shape.RoundedCornerShape
-import androidx.compose.material.CircularProgressIndicator
 import androidx.compose.material.ExperimentalMaterialApi
+import androidx.compose.material.LinearProgressIndicator
 import androidx.compose.material.icons.Icons
 import androidx.compose.material.icons.filled.AccountTree
 import androidx.compose.material.icons.filled.Description
 import androidx.compose.material3.MaterialTheme.colorScheme
+import androidx.compose.material3.MaterialTheme.typography
+import androidx.compose.material3.Text
 import androidx.compose.runtime.Composable
 import androidx.compose.runtime.derivedStateOf
 import androidx.compose.runtime.getValue
@@ -35,6 +37,7 @@ import libraries.accompanist.pager.PagerState
 import libraries.accompanist.pager.rememberPagerState
 import terminodiff.engine.resources.DiffDataContainer
 import terminodiff.i18n.LocalizedStrings
+import terminodiff.terminodiff.engine.conceptmap.ConceptMapProgress
 import terminodiff.terminodiff.engine.conceptmap.ConceptMapState
 import terminodiff.terminodiff.engine.conceptmap.TerminodiffConceptMap
 import terminodiff.terminodiff.engine.graph.GraphSide
@@ -57,6 +60,7 @@ fun ConceptMapDialog(
 ) {
     val pagerState = rememberPagerState()
 
+    // the concept map is computed in the background, closing the dialog leaves the composition and cancels it
     val conceptMap: TerminodiffConceptMap? by produceState<TerminodiffConceptMap?>(null,
         conceptMapState.hasConceptMap) {
         value = conceptMapState.createConceptMap(diffDataContainer)
@@ -67,9 +71,7 @@ fun ConceptMapDialog(
         state = rememberWindowState(position = WindowPosition(Alignment.TopCenter), size = DpSize(1280.dp, 960.dp))) {
         Column(Modifier.fillMaxSize().background(colorScheme.surfaceVariant)) {
             when (conceptMap) {
-                null -> Box(Modifier.fillMaxHeight(), contentAlignment = Alignment.Center) {
-                    CircularProgressIndicator(Modifier.fillMaxSize(0.5f), colorScheme.primary)
-                }
+                null -> ConceptMapProgressIndicator(conceptMapState.progress, localizedStrings)
                 else -> Content(diffDataContainer,
                     conceptMapState,
                     pagerState,
@@ -81,6 +83,23 @@ fun ConceptMapDialog(
     }
 }
 
+@Composable
+private fun ConceptMapProgressIndicator(
+    progress: ConceptMapProgress,
+    localizedStrings: LocalizedStrings,
+) = Box(Modifier.fillMaxSize(), contentAlignment = Alignment.Center) {
+    Column(Modifier.fillMaxWidth(0.5f),
+        horizontalAlignment = Alignment.CenterHorizontally,
+        verticalArrangement = Arrangement.spacedBy(8.dp)) {
+        Text(localizedStrings.computingConceptMap_(progress),
+            style = typography.titleMedium,
+            color = colorScheme.onSurfaceVariant)
+        LinearProgressIndicator(progress = progress.fraction,
+            modifier = Modifier.fillMaxWidth(),
+            color = colorScheme.primary)
+    }
+}
+
 @Composable
 private fun Content(
     diffDataContainer: DiffDataContainer,
@@ -124,11 +143,10 @@ class ConceptMapTabItem(
     companion object {
         fun metadata() = ConceptMapTabItem(icon = Icons.Default.Description,
             title = { metadata },
-            screen = { strings, fhirContext, data ->
+            screen = { strings, _, data ->
                 ConceptMapMetaEditorContent(conceptMapState = data.conceptMapState,
                     localizedStrings = strings,
-                    isDarkTheme = data.isDarkTheme,
-                    fhirContext = fhirContext)
+                    isDarkTheme = data.isDarkTheme)
             })
 
         fun conceptMapping(allConceptCodes: SortedMap<String, AnnotatedString>, diffDataContainer: DiffDataContainer) =
@@ -5,10 +5,17 @@ import org.fife.ui.rsyntaxtextarea.SyntaxConstants
 import org.fife.ui.rsyntaxtextarea.Theme
 import org.fife.ui.rtextarea.RTextScrollPane
 import java.awt.BorderLayout
+import java.io.StringWriter
+import java.io.Writer
 import javax.swing.JFrame
 import javax.swing.JPanel
 
-fun showJsonViewer(jsonText: String, isDarkTheme: Boolean) {
+/**
+ * shows the JSON written by [writeJson]. The text area holds the whole text anyway, so the JSON is written to a string,
+ * and set as the text at once, so that it is only tokenized once.
+ */
+fun showJsonViewer(isDarkTheme: Boolean, writeJson: (Writer) -> Unit) {
+    val jsonText = StringWriter().also(writeJson).toString()
     JsonROTextEditor(jsonText = jsonText, isDarkTheme = isDarkTheme).isVisible = true
 }
 
@@ -24,6 +31,7 @@ class JsonROTextEditor(val jsonText: String, val isDarkTheme: Boolean) : JFrame(
             applyTheme(isDarkTheme, textArea)
             val sp = RTextScrollPane(textArea).apply {
                 textArea.text = jsonText
+                textArea.caretPosition = 0
             }
             add(sp)
         }
@@ -2,20 +2,21 @@
 
 package terminodiff.terminodiff.ui.panes.conceptmap.mapping
 
+import androidx.compose.foundation.background
 import androidx.compose.foundation.layout.*
 import androidx.compose.foundation.lazy.rememberLazyListState
+import androidx.compose.material.DropdownMenu
+import androidx.compose.material.DropdownMenuItem
 import androidx.compose.material.icons.Icons
 import androidx.compose.material.icons.filled.AddCircle
 import androidx.compose.material.icons.filled.DoneAll
 import androidx.compose.material.icons.filled.Hub
+import androidx.compose.material.icons.filled.Lightbulb
 import androidx.compose.material.icons.filled.RemoveCircle
 import androidx.compose.material3.*
 import androidx.compose.material3.MaterialTheme.colorScheme
 import androidx.compose.material3.MaterialTheme.typography
-import androidx.compose.runtime.Composable
-import androidx.compose.runtime.CompositionLocalProvider
-import androidx.compose.runtime.derivedStateOf
-import androidx.compose.runtime.getValue
+import androidx.compose.runtime.*
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.graphics.Color
@@ -189,6 +190,41 @@ private fun actionsColumnSpec(
             }, modifier = Modifier.size(24.dp)) {
                 Icon(Icons.Default.AddCircle, localizedStrings.addTarget)
             }
+            SimilarConceptsButton(element, diffDataContainer, localizedStrings)
+        }
+    }
+}
+
+/**
+ * offers the right concepts with the most similar texts as targets, if there are any
+ */
+@Composable
+private fun SimilarConceptsButton(
+    element: ConceptMapElement,
+    diffDataContainer: DiffDataContainer,
+    localizedStrings: LocalizedStrings,
+) = Box {
+    var expanded by remember { mutableStateOf(false) }
+    IconButton(onClick = { expanded = true },
+        enabled = element.similarConcepts.isNotEmpty(),
+        modifier = Modifier.size(24.dp)) {
+        Icon(Icons.Default.Lightbulb, localizedStrings.similarConcepts)
+    }
+    DropdownMenu(expanded = expanded,
+        modifier = Modifier.background(colorScheme.secondaryContainer),
+        onDismissRequest = { expanded = false }) {
+        element.similarConcepts.forEach { similar ->
+            DropdownMenuItem(onClick = {
+                element.targets.add(ConceptMapTarget(diffDataContainer).apply {
+                    code.value = similar.code
+                    isAutomaticallySet = false
+                })
+                expanded = false
+                logger.debug("Added similar concept ${similar.code} as target for $element")
+            }) {
+                val display = diffDataContainer.rightGraphBuilder?.nodeTree?.get(similar.code)?.display
+                Text(localizedStrings.similarConcept_(similar, display), color = colorScheme.onSecondaryContainer)
+            }
         }
     }
 }
@@ -313,6 +349,7 @@ enum class ConceptMapEquivalenceDisplay(
     RELATEDTO(0, "Related To", ConceptMapEquivalence.RELATEDTO), EQUIVALENT(1,
         "Equivalent",
         ConceptMapEquivalence.EQUIVALENT),
+    EQUAL(2, "Equal", ConceptMapEquivalence.EQUAL),
     WIDER(1, "Wider", ConceptMapEquivalence.WIDER), NARROWER(1, "Narrower", ConceptMapEquivalence.NARROWER), DISJOINT(0,
         "Disjoint",
         ConceptMapEquivalence.DISJOINT);
@@ -3,49 +3,65 @@ package terminodiff.terminodiff.ui.panes.conceptmap.meta
 import androidx.compose.foundation.layout.*
 import androidx.compose.material.icons.Icons
 import androidx.compose.material.icons.filled.LocalFireDepartment
+import androidx.compose.material.icons.filled.Save
 import androidx.compose.material3.Button
 import androidx.compose.material3.ButtonDefaults
 import androidx.compose.material3.Icon
 import androidx.compose.material3.MaterialTheme.colorScheme
 import androidx.compose.material3.Text
 import androidx.compose.runtime.Composable
-import androidx.compose.runtime.derivedStateOf
-import androidx.compose.runtime.getValue
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.unit.dp
-import ca.uhn.fhir.context.FhirContext
 import libraries.sahruday.carousel.*
+import org.slf4j.Logger
+import org.slf4j.LoggerFactory
 import terminodiff.i18n.LocalizedStrings
+import terminodiff.terminodiff.engine.conceptmap.ConceptMapJsonWriter
 import terminodiff.terminodiff.engine.conceptmap.ConceptMapState
 import terminodiff.terminodiff.engine.conceptmap.TerminodiffConceptMap
+import terminodiff.terminodiff.ui.panes.loaddata.panes.showSaveJsonDialog
 import terminodiff.terminodiff.ui.util.EditTextGroup
 import terminodiff.terminodiff.ui.util.EditTextGroupSpec
 import terminodiff.terminodiff.ui.util.EditTextSpec
 import terminodiff.terminodiff.ui.util.isUrl
 import terminodiff.ui.panes.conceptmap.showJsonViewer
+import java.io.File
+import java.io.IOException
+
+private val logger: Logger = LoggerFactory.getLogger("ConceptMapMetaEditor")
 
 @Composable
 fun ConceptMapMetaEditorContent(
     conceptMapState: ConceptMapState,
     localizedStrings: LocalizedStrings,
     isDarkTheme: Boolean,
-    fhirContext: FhirContext,
 ) {
-    val fhirJson by derivedStateOf {
-        fhirContext.newJsonParser().setPrettyPrint(true).encodeResourceToString(conceptMapState.conceptMap!!.toFhir)
-    }
     val scrollState = rememberCarouselScrollState()
     Row(modifier = Modifier.fillMaxWidth(),
         horizontalArrangement = Arrangement.spacedBy(4.dp, Alignment.CenterHorizontally)) {
         Column(Modifier.weight(0.98f), horizontalAlignment = Alignment.CenterHorizontally) {
-            Button(onClick = {
-                showJsonViewer(fhirJson, isDarkTheme)
-            },
-                colors = ButtonDefaults.buttonColors(containerColor = colorScheme.primary,
-                    contentColor = colorScheme.onPrimary)) {
-                Icon(Icons.Default.LocalFireDepartment, "JSON", tint = colorScheme.onPrimary)
-                Text("JSON")
+            Row(horizontalArrangement = Arrangement.spacedBy(8.dp)) {
+                Button(onClick = {
+                    showJsonViewer(isDarkTheme) { writer ->
+                        ConceptMapJsonWriter.write(conceptMapState.conceptMap!!.toFhir(), writer)
+                    }
+                },
+                    colors = ButtonDefaults.buttonColors(containerColor = colorScheme.primary,
+                        contentColor = colorScheme.onPrimary)) {
+                    Icon(Icons.Default.LocalFireDepartment, "JSON", tint = colorScheme.onPrimary)
+                    Text("JSON")
+                }
+                Button(onClick = {
+                    showSaveJsonDialog(localizedStrings.exportConceptMap)?.let { file ->
+                        exportConceptMap(conceptMapState, file)
+                    }
+                },
+                    colors = ButtonDefaults.buttonColors(containerColor = colorScheme.primary,
+                        contentColor = colorScheme.onPrimary)) {
+                    Icon(Icons.Default.Save, localizedStrings.exportConceptMap, tint = colorScheme.onPrimary)
+                    Text(localizedStrings.exportConceptMap)
+                }
             }
             ConceptMapMetaEditorForm(conceptMapState, localizedStrings, scrollState)
         }
@@ -61,6 +77,14 @@ fun ConceptMapMetaEditorContent(
     }
 }
 
+private fun exportConceptMap(conceptMapState: ConceptMapState, file: File) = try {
+    file.bufferedWriter().use { writer ->
+        ConceptMapJsonWriter.write(conceptMapState.conceptMap!!.toFhir(), writer)
+    }
+} catch (e: IOException) {
+    logger.error("could not export the concept map to ${file.absolutePath}", e)
+}
+
 @Composable
 private fun ConceptMapMetaEditorForm(
     conceptMapState: ConceptMapState,
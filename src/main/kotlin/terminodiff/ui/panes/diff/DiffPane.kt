@@ -2,21 +2,22 @@ package terminodiff.terminodiff.ui.panes.diff
 
 import androidx.compose.foundation.background
 import androidx.compose.foundation.layout.*
+import androidx.compose.material.LinearProgressIndicator
 import androidx.compose.material3.MaterialTheme
+import androidx.compose.material3.Text
 import androidx.compose.runtime.*
+import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
 import androidx.compose.ui.unit.dp
 import org.jetbrains.compose.splitpane.ExperimentalSplitPaneApi
 import org.jetbrains.compose.splitpane.SplitPaneState
 import org.jetbrains.compose.splitpane.VerticalSplitPane
 import org.slf4j.LoggerFactory
-import terminodiff.engine.concepts.ConceptDiffItem
-import terminodiff.engine.concepts.KeyedListDiffResultKind
 import terminodiff.engine.graph.CodeSystemDiffBuilder
 import terminodiff.engine.resources.DiffDataContainer
+import terminodiff.engine.resources.DiffPipelineProgress
 import terminodiff.i18n.LocalizedStrings
 import terminodiff.java.ui.NeighborhoodJFrame
-import terminodiff.terminodiff.engine.metadata.MetadataComparisonResult
 import terminodiff.ui.cursorForHorizontalResize
 import terminodiff.ui.panes.conceptdiff.ConceptDiffPanel
 import terminodiff.ui.panes.metadatadiff.MetadataDiffPanel
@@ -36,23 +37,13 @@ fun DiffPaneContent(
 ) {
     var neighborhoodDisplay: NeighborhoodDisplay? by remember { mutableStateOf(null) }
 
-    var showIdenticalDialog: Boolean? by remember {
-        mutableStateOf(diffDataContainer.codeSystemDiff?.let { diff ->
-            when {
-                diff.metadataDifferences.comparisons.filter { comparison ->
-                    comparison.diffItem.label.invoke(localizedStrings) != localizedStrings.id // id differences are ok
-                }.all { comparison -> comparison.result == MetadataComparisonResult.IDENTICAL } -> {
-                    val listsEmpty = diff.onlyInRightConcepts.isEmpty() && diff.onlyInLeftConcepts.isEmpty()
-                    val comparisonsEmpty = diff.conceptDifferences.values.all { cdiff ->
-                        cdiff.propertyComparison.all { pdiff -> pdiff.result == KeyedListDiffResultKind.IDENTICAL } &&
-                                cdiff.conceptComparison.all { cc -> cc.result == ConceptDiffItem.ConceptDiffResultEnum.IDENTICAL } &&
-                                cdiff.designationComparison.all { dc -> dc.result == KeyedListDiffResultKind.IDENTICAL }
-                    }
-                    listsEmpty && comparisonsEmpty
-                }
-                else -> false
-            }
-        })
+    var showIdenticalDialog: Boolean? by remember(diffDataContainer.codeSystemDiff) {
+        mutableStateOf(diffDataContainer.codeSystemDiff?.isIdentical)
+    }
+
+    if (diffDataContainer.codeSystemDiff == null) {
+        PipelineProgress(modifier, diffDataContainer.pipelineProgress, localizedStrings)
+        return
     }
 
     if (showIdenticalDialog == true) {
@@ -108,6 +99,31 @@ fun DiffPaneContent(
     }
 }
 
+@Composable
+private fun PipelineProgress(
+    modifier: Modifier,
+    progress: DiffPipelineProgress,
+    localizedStrings: LocalizedStrings,
+) = Box(modifier.fillMaxSize(), contentAlignment = Alignment.Center) {
+    Column(Modifier.fillMaxWidth(0.5f),
+        horizontalAlignment = Alignment.CenterHorizontally,
+        verticalArrangement = Arrangement.spacedBy(8.dp)) {
+        when {
+            progress.isFailed -> Text(localizedStrings.loadingFailed,
+                style = MaterialTheme.typography.titleMedium,
+                color = MaterialTheme.colorScheme.error)
+            else -> {
+                Text(progress.stage?.let { localizedStrings.pipelineStage_(it) } ?: localizedStrings.pending,
+                    style = MaterialTheme.typography.titleMedium,
+                    color = MaterialTheme.colorScheme.onBackground)
+                LinearProgressIndicator(progress = progress.fraction,
+                    modifier = Modifier.fillMaxWidth(),
+                    color = MaterialTheme.colorScheme.primary)
+            }
+        }
+    }
+}
+
 fun showNeighborhoodJFrame(
     neighborhoodDisplay: NeighborhoodDisplay,
     useDarkTheme: Boolean,
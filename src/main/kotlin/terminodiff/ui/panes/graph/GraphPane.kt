@@ -1,7 +1,7 @@
 package terminodiff.ui.panes.graph
 
-import org.hl7.fhir.r4.model.CodeSystem
 import org.jgrapht.Graph
+import terminodiff.engine.graph.CodeSystemGraphBuilder
 import terminodiff.engine.graph.DiffEdge
 import terminodiff.engine.graph.DiffNode
 import terminodiff.i18n.LocalizedStrings
@@ -16,8 +16,8 @@ fun showDiffGraphSwingWindow(
 ) = diffGraphLayoutFrame(diffGraph, useDarkTheme, localizedStrings, frameTitle)
 
 fun showGraphSwingWindow(
-    codeSystem: CodeSystem,
+    graphBuilder: CodeSystemGraphBuilder,
     frameTitle: String,
     useDarkTheme: Boolean,
     localizedStrings: LocalizedStrings,
-) = codeSystemGraphLayoutFrame(codeSystem, useDarkTheme, localizedStrings, frameTitle)
\ No newline at end of file
+) = codeSystemGraphLayoutFrame(graphBuilder, useDarkTheme, localizedStrings, frameTitle)
\ No newline at end of file
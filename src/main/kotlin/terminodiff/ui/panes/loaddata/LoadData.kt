@@ -131,6 +131,10 @@ private fun formatText(resource: InputResource?, localizedStrings: LocalizedStri
                 val metaVersion = resource.downloadableCodeSystem!!.metaVersion
                 localizedStrings.vreadFromUrlAndMetaVersion_.invoke(url, metaVersion!!)
             }
+            resource.kind == Kind.DIFF_ARCHIVE -> {
+                val path = resource.localFile!!.canonicalFile.invariantSeparatorsPath
+                localizedStrings.diffArchiveFromPath_.invoke(path)
+            }
             else -> AnnotatedString("")
         })
     }
@@ -12,6 +12,7 @@ import androidx.compose.ui.Modifier
 import androidx.compose.ui.unit.dp
 import li.flor.nativejfilechooser.NativeJFileChooser
 import org.apache.commons.lang3.SystemUtils
+import terminodiff.engine.resources.DiffArchiveCodec
 import terminodiff.i18n.LocalizedStrings
 import terminodiff.preferences.AppPreferences
 import terminodiff.terminodiff.engine.resources.InputResource
@@ -67,6 +68,9 @@ private fun FromFileScreen(
             else -> false
         }
     }
+    val isDiffArchive by derivedStateOf { selectedFile?.extension == DiffArchiveCodec.FILE_EXTENSION }
+    val canLoadResource = isValidPath && !isDiffArchive
+    val canOpenSavedDiff = isValidPath && isDiffArchive
     Row(Modifier.fillMaxWidth(),
         verticalAlignment = Alignment.CenterVertically,
         horizontalArrangement = Arrangement.spacedBy(8.dp, Alignment.CenterHorizontally)) {
@@ -90,26 +94,43 @@ private fun FromFileScreen(
     Row(Modifier.fillMaxWidth(), horizontalArrangement = Arrangement.SpaceEvenly) {
         Button(modifier = Modifier.padding(4.dp),
             colors = buttonColors,
-            enabled = isValidPath,
+            enabled = canLoadResource,
             onClick = { onLoadLeftFile(InputResource(InputResource.Kind.FILE, selectedFile)) }) {
             AppImageIcon(relativePath = AppIconResource.icLoadLeftFile,
                 label = localizedStrings.loadLeft,
-                tint = buttonColors.contentColor(enabled = isValidPath).value)
-            Text(localizedStrings.loadLeft, color = buttonColors.contentColor(enabled = isValidPath).value)
+                tint = buttonColors.contentColor(enabled = canLoadResource).value)
+            Text(localizedStrings.loadLeft, color = buttonColors.contentColor(enabled = canLoadResource).value)
         }
         Button(modifier = Modifier.padding(4.dp),
             colors = buttonColors,
-            enabled = isValidPath,
+            enabled = canOpenSavedDiff,
+            onClick = {
+                // a saved diff contains both sides
+                val resource = InputResource(InputResource.Kind.DIFF_ARCHIVE, selectedFile)
+                onLoadLeftFile(resource)
+                onLoadRightFile(resource)
+            }) {
+            Icon(Icons.Default.Plagiarism, localizedStrings.openSavedDiff)
+            Text(localizedStrings.openSavedDiff, color = buttonColors.contentColor(enabled = canOpenSavedDiff).value)
+        }
+        Button(modifier = Modifier.padding(4.dp),
+            colors = buttonColors,
+            enabled = canLoadResource,
             onClick = { onLoadRightFile(InputResource(InputResource.Kind.FILE, selectedFile)) }) {
             AppImageIcon(relativePath = AppIconResource.icLoadRightFile,
                 label = localizedStrings.loadRight,
-                tint = buttonColors.contentColor(enabled = isValidPath).value)
-            Text(localizedStrings.loadRight, color = buttonColors.contentColor(enabled = isValidPath).value)
+                tint = buttonColors.contentColor(enabled = canLoadResource).value)
+            Text(localizedStrings.loadRight, color = buttonColors.contentColor(enabled = canLoadResource).value)
         }
     }
 }
 
-private fun getFileChooser(title: String): JFileChooser {
+private val jsonFilter = FileNameExtensionFilter("FHIR+JSON (*.json)", "json", "JSON")
+
+private val diffArchiveFilter =
+    FileNameExtensionFilter("TerminoDiff (*.${DiffArchiveCodec.FILE_EXTENSION})", DiffArchiveCodec.FILE_EXTENSION)
+
+private fun getFileChooser(title: String, fileFilters: List<FileNameExtensionFilter>): JFileChooser {
     return when (SystemUtils.IS_OS_MAC) {
         // NativeJFileChooser hangs on Azul Zulu 17 + JavaFX on macOS 12.1 aarch64.
         // With Azul Zulu w/o JFX, currently the file browser does not work at all on a M1 MBA.
@@ -121,12 +142,14 @@ private fun getFileChooser(title: String): JFileChooser {
     }.apply {
         dialogTitle = title
         isAcceptAllFileFilterUsed = false
-        addChoosableFileFilter(FileNameExtensionFilter("FHIR+JSON (*.json)", "json", "JSON"))
-        addChoosableFileFilter(FileNameExtensionFilter("FHIR+XML (*.xml)", "xml", "XML"))
+        fileFilters.forEach(::addChoosableFileFilter)
     }
 }
 
-fun showLoadFileDialog(title: String): File? = getFileChooser(title).let { chooser ->
+fun showLoadFileDialog(title: String): File? = getFileChooser(title,
+    listOf(jsonFilter,
+        FileNameExtensionFilter("FHIR+XML (*.xml)", "xml", "XML"),
+        diffArchiveFilter)).let { chooser ->
     when (chooser.showOpenDialog(null)) {
         JFileChooser.CANCEL_OPTION -> null
         JFileChooser.APPROVE_OPTION -> {
@@ -134,4 +157,29 @@ fun showLoadFileDialog(title: String): File? = getFileChooser(title).let { choos
         }
         else -> null
     }
-}
\ No newline at end of file
+}
+
+/**
+ * @return the selected file, with the extension of saved diffs appended if it was not given
+ */
+fun showSaveDiffDialog(title: String): File? = getFileChooser(title, listOf(diffArchiveFilter)).let { chooser ->
+    when (chooser.showSaveDialog(null)) {
+        JFileChooser.APPROVE_OPTION -> chooser.selectedFile?.absoluteFile?.let { file ->
+            if (file.extension == DiffArchiveCodec.FILE_EXTENSION) file
+            else File("${file.path}.${DiffArchiveCodec.FILE_EXTENSION}")
+        }
+        else -> null
+    }
+}
+
+/**
+ * @return the selected file, with the extension .json appended if it was not given
+ */
+fun showSaveJsonDialog(title: String): File? = getFileChooser(title, listOf(jsonFilter)).let { chooser ->
+    when (chooser.showSaveDialog(null)) {
+        JFileChooser.APPROVE_OPTION -> chooser.selectedFile?.absoluteFile?.let { file ->
+            if (file.extension.equals("json", ignoreCase = true)) file else File("${file.path}.json")
+        }
+        else -> null
+    }
+}
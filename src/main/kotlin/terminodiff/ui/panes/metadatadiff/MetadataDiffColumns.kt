@@ -6,6 +6,7 @@ import androidx.compose.ui.text.font.FontStyle
 import androidx.compose.ui.text.font.FontWeight
 import androidx.compose.ui.text.style.TextAlign
 import org.hl7.fhir.r4.model.CodeSystem
+import terminodiff.engine.concepts.KeyedListDiffResult
 import terminodiff.engine.concepts.KeyedListDiffResultKind
 import terminodiff.engine.resources.DiffDataContainer
 import terminodiff.i18n.LocalizedStrings
@@ -17,7 +18,9 @@ import terminodiff.ui.theme.DiffColors
 import terminodiff.ui.util.ColumnSpec
 import terminodiff.ui.util.DiffChip
 import terminodiff.ui.util.SelectableText
+import terminodiff.ui.util.chipForDiffResult
 import terminodiff.ui.util.colorPairForDiffResult
+import terminodiff.ui.util.textForValue
 
 fun metadataColumnSpecs(
     localizedStrings: LocalizedStrings,
@@ -112,7 +115,7 @@ private fun TextForLeftRightValue(
     localizedStrings: LocalizedStrings,
     countItems: Int?,
 ) {
-    val text: String? = result.diffItem.getRenderDisplay(codeSystem)
+    val text: String? = result.diffItem.getRenderDisplay(codeSystem, localizedStrings)
     val textWithCount = when (countItems) {
         null -> text
         0 -> localizedStrings.numberItems_.invoke(countItems)
@@ -137,7 +140,7 @@ private fun leftValueColumnSpec(
     localizedStrings: LocalizedStrings,
     leftCodeSystem: CodeSystem,
 ) = ColumnSpec.StringSearchableColumnSpec<MetadataComparison>(title = localizedStrings.leftValue, weight = 0.25f,
-    instanceGetter = { this.diffItem.getRenderDisplay(leftCodeSystem) },
+    instanceGetter = { this.diffItem.getRenderDisplay(leftCodeSystem, localizedStrings) },
     mergeIf = { comparison ->
         comparison.result == MetadataComparisonResult.IDENTICAL
     }) { comparison ->
@@ -154,10 +157,36 @@ private fun rightValueColumnSpec(
     title = localizedStrings.rightValue,
     weight = 0.25f,
     mergeIf = null,
-    instanceGetter = { this.diffItem.getRenderDisplay(rightCodeSystem) }
+    instanceGetter = { this.diffItem.getRenderDisplay(rightCodeSystem, localizedStrings) }
 ) { comparison ->
     TextForLeftRightValue(comparison,
         rightCodeSystem,
         localizedStrings,
         countText(comparison, doNotCount = KeyedListDiffResultKind.KEY_ONLY_IN_LEFT))
-}
\ No newline at end of file
+}
+
+/**
+ * the columns of the detailed result of a [MetadataKeyedListDiffItem]: the columns of its key, then the comparison and
+ * the values in both code systems
+ */
+fun <KeyType> keyedListDiffColumnSpecs(
+    localizedStrings: LocalizedStrings,
+    diffColors: DiffColors,
+    keyColumnSpecs: List<ColumnSpec<KeyedListDiffResult<KeyType, String>>>,
+): List<ColumnSpec<KeyedListDiffResult<KeyType, String>>> = keyColumnSpecs.plus(listOf(
+    ColumnSpec(localizedStrings.comparison, 0.1f) {
+        chipForDiffResult(localizedStrings, diffColors, it.result)
+    }, ColumnSpec(localizedStrings.leftValue, 0.2f) {
+        textForValue(it.leftValue?.joinToString())
+    }, ColumnSpec(localizedStrings.rightValue, 0.2f) {
+        textForValue(it.rightValue?.joinToString())
+    }))
+
+fun identifierKeyColumnSpecs(
+    localizedStrings: LocalizedStrings,
+): List<ColumnSpec<KeyedListDiffResult<IdentifierKeyType, String>>> =
+    listOf(ColumnSpec(localizedStrings.use, 0.1f) { textForValue(it.key.first) },
+        ColumnSpec(localizedStrings.system, 0.1f) { textForValue(it.key.second) })
+
+fun stringKeyColumnSpecs(title: String, weight: Float): List<ColumnSpec<KeyedListDiffResult<String, String>>> =
+    listOf(ColumnSpec(title, weight) { textForValue(it.key) })
\ No newline at end of file
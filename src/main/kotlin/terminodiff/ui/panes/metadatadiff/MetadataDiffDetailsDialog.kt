@@ -75,16 +75,24 @@ private fun DrawTable(
     when (comparison) {
         is IdentifierListComparison -> internalDrawTable(
             comparisonResult = comparison.detailedResult,
-            columnSpecs = comparison.listDiffItem.getColumns(localizedStrings, diffColors))
+            columnSpecs = keyedListDiffColumnSpecs(localizedStrings,
+                diffColors,
+                identifierKeyColumnSpecs(localizedStrings)))
         is ContactListComparison -> internalDrawTable(
             comparisonResult = comparison.detailedResult,
-            columnSpecs = comparison.listDiffItem.getColumns(localizedStrings, diffColors))
+            columnSpecs = keyedListDiffColumnSpecs(localizedStrings,
+                diffColors,
+                stringKeyColumnSpecs(localizedStrings.name, 0.15f)))
         is CodeableConceptComparison -> internalDrawTable(
             comparisonResult = comparison.detailedResult,
-            columnSpecs = comparison.listDiffItem.getColumns(localizedStrings, diffColors))
+            columnSpecs = keyedListDiffColumnSpecs(localizedStrings,
+                diffColors,
+                stringKeyColumnSpecs(localizedStrings.text, 0.3f)))
         is UsageContextComparison -> internalDrawTable(
             comparisonResult = comparison.detailedResult,
-            columnSpecs = comparison.listDiffItem.getColumns(localizedStrings, diffColors))
+            columnSpecs = keyedListDiffColumnSpecs(localizedStrings,
+                diffColors,
+                stringKeyColumnSpecs(localizedStrings.code, 0.3f)))
         else -> Text("Not yet implemented", style = typography.headlineMedium, color = colorScheme.error)
     }
 }
@@ -5,11 +5,13 @@ import androidx.compose.foundation.border
 import androidx.compose.foundation.layout.*
 import androidx.compose.foundation.lazy.LazyColumn
 import androidx.compose.foundation.lazy.LazyListState
-import androidx.compose.foundation.lazy.itemsIndexed
 import androidx.compose.material.Divider
 import androidx.compose.material.icons.Icons
+import androidx.compose.material.icons.filled.ArrowDownward
+import androidx.compose.material.icons.filled.ArrowUpward
 import androidx.compose.material.icons.filled.Backspace
 import androidx.compose.material.icons.filled.Search
+import androidx.compose.material.icons.filled.UnfoldMore
 import androidx.compose.material3.*
 import androidx.compose.material3.MaterialTheme.colorScheme
 import androidx.compose.runtime.*
@@ -25,9 +27,17 @@ import androidx.compose.ui.text.withStyle
 import androidx.compose.ui.unit.Dp
 import androidx.compose.ui.unit.DpSize
 import androidx.compose.ui.unit.dp
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.FlowPreview
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.flow.collectLatest
+import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.debounce
+import kotlinx.coroutines.withContext
 import libraries.sahruday.carousel.Carousel
 import libraries.sahruday.carousel.CarouselDefaults
 import me.xdrop.fuzzywuzzy.FuzzySearch
+import terminodiff.engine.graph.parallelForEachIndex
 import terminodiff.i18n.LocalizedStrings
 import terminodiff.terminodiff.ui.util.LabeledTextField
 import terminodiff.terminodiff.ui.util.TerminodiffDialog
@@ -45,21 +55,34 @@ fun <T> LazyTable(
     lazyListState: LazyListState,
     zebraStripingColor: Color? = backgroundColor.copy(0.5f),
     tableData: List<T>,
+    columnValues: ColumnValues? = null,
+    shownRows: IntArray? = null,
     dataAlreadySorted: Boolean = false,
     localizedStrings: LocalizedStrings,
     countLabel: (Int) -> String = localizedStrings.elements_,
     keyFun: (T) -> String?,
 ) = Column(modifier = modifier.fillMaxWidth().padding(4.dp)) {
+    // the column values and shown rows are indexed by the position in the table data, which sorting by keyFun changes
+    require(dataAlreadySorted || (columnValues == null && shownRows == null)) {
+        "columnValues and shownRows require dataAlreadySorted"
+    }
     val sortedData by derivedStateOf {
         when (dataAlreadySorted) {
             true -> tableData
             else -> tableData.sortedBy(keyFun)
         }
     }
-    val searchState by produceState<SearchState<T>?>(null, tableData, localizedStrings) {
+    val searchState by produceState<SearchState<T>?>(null, tableData, columnValues, localizedStrings) {
         // using produceState enforces that the state resets if any of the parameters above ^ change. This is important for
         // table data (e.g. in the concept diff pane) and LocalizedStrings.
-        value = SearchState(columnSpecs, sortedData)
+        value = SearchState(columnSpecs, sortedData, columnValues, shownRows)
+    }
+    // the shown rows only filter the table, so that the search state and its sorting are kept when they change
+    SideEffect {
+        searchState?.shownRows = shownRows
+    }
+    LaunchedEffect(searchState) {
+        searchState?.filterOnQueryChanges()
     }
     var showFilterDialogFor: String? by remember { mutableStateOf(null) }
 
@@ -90,8 +113,7 @@ fun <T> LazyTable(
                     cellBorderColor = cellBorderColor,
                     zebraStripingColor = zebraStripingColor,
                     lazyListState = lazyListState,
-                    searchState = searchState!!,
-                    keyFun = keyFun)
+                    searchState = searchState!!)
             }
             Column(modifier = Modifier.weight(0.01f).fillMaxHeight(),
                 horizontalAlignment = Alignment.End,
@@ -134,15 +156,15 @@ private fun <T> CountIndicator(
 ) {
     Text(text = buildAnnotatedString {
         if (searchState.isSearching) {
-            append(searchState.filteredData.size.toString())
+            append(searchState.filteredRows.size.toString())
             append(" ")
             append(localizedStrings.filtered)
             append(" / ")
         }
         withStyle(SpanStyle(fontWeight = FontWeight.Bold)) {
-            append(searchState.tableData.size.toString())
+            append(searchState.shownCount.toString())
             append(" ")
-            append(countLabel.invoke(searchState.tableData.size))
+            append(countLabel.invoke(searchState.shownCount))
         }
     }, color = foregroundColor)
 }
@@ -181,11 +203,11 @@ private fun <T> ContentRows(
     zebraStripingColor: Color?,
     lazyListState: LazyListState,
     searchState: SearchState<T>,
-    keyFun: (T) -> String?,
 ) = LazyColumn(state = lazyListState) {
-    itemsIndexed(items = searchState.filteredData, key = { index, _ ->
-        "$keyFun-$index"
-    }) { index, data ->
+    val filteredRows = searchState.filteredRows
+    // the keys of the rows don't change when the rows are filtered, so that their items can be reused
+    items(count = filteredRows.size, key = { index -> searchState.keyOf(filteredRows[index]) }) { index ->
+        val data = searchState.tableData[filteredRows[index]]
         val rowBackground = when (zebraStripingColor) {
             null -> backgroundColor
             else -> if (index % 2 == 0) zebraStripingColor else backgroundColor
@@ -269,6 +291,36 @@ fun <T> RowScope.HeaderCell(
                     }
                 }
             }
+            if (columnSpec.sortKey != null) {
+                SortIconButton(columnName = columnName,
+                    contentColor = contentColor,
+                    localizedStrings = localizedStrings,
+                    searchState = searchState)
+            }
+        }
+    }
+}
+
+@OptIn(ExperimentalMaterial3Api::class)
+@Composable
+private fun <T> SortIconButton(
+    columnName: String,
+    contentColor: Color,
+    localizedStrings: LocalizedStrings,
+    searchState: SearchState<T>,
+) = CompositionLocalProvider(LocalMinimumTouchTargetEnforcement provides false) {
+    val sortOrder = searchState.sortOrder?.takeIf { it.columnTitle == columnName }
+    MouseOverPopup(text = localizedStrings.sort) {
+        IconButton(modifier = Modifier.size(32.dp).padding(4.dp),
+            onClick = { searchState.toggleSortFor(columnName) }) {
+            Icon(imageVector = when (sortOrder?.descending) {
+                null -> Icons.Default.UnfoldMore
+                false -> Icons.Default.ArrowUpward
+                true -> Icons.Default.ArrowDownward
+            }, contentDescription = localizedStrings.sort, tint = when (sortOrder) {
+                null -> contentColor.copy(alpha = 0.5f)
+                else -> contentColor
+            })
         }
     }
 }
@@ -322,6 +374,11 @@ open class ColumnSpec<T>(
     val searchPredicate: ((T, String) -> Boolean)? = null,
     val tooltipText: ((T) -> String?)? = null,
     val mergeIf: ((T) -> Boolean)? = null,
+    /**
+     * if this is set, the table can be sorted by this column. The keys of all rows are computed once, in the
+     * background.
+     */
+    val sortKey: ((T) -> Comparable<*>?)? = null,
     val content: @Composable (T) -> Unit,
 ) {
     companion object
@@ -329,19 +386,20 @@ open class ColumnSpec<T>(
     class StringSearchableColumnSpec<T>(
         title: String,
         weight: Float,
-        instanceGetter: T.() -> String?,
+        val instanceGetter: T.() -> String?,
         mergeIf: ((T) -> Boolean)? = null,
         tooltipText: ((T) -> String?)? = null,
+        sortKey: ((T) -> Comparable<*>?)? = null,
         content: @Composable (T) -> Unit,
     ) : ColumnSpec<T>(title = title, weight = weight, searchPredicate = { value, search ->
         when (val instanceValue = instanceGetter.invoke(value)?.lowercase(Locale.getDefault())) {
             null -> false
             else -> {
                 val fuzzyScore = FuzzySearch.partialRatio(instanceValue, search.lowercase(Locale.getDefault()))
-                fuzzyScore >= 75
+                fuzzyScore >= SearchIndex.FUZZY_THRESHOLD
             }
         }
-    }, mergeIf = mergeIf, tooltipText = tooltipText, content = content) {
+    }, mergeIf = mergeIf, tooltipText = tooltipText, sortKey = sortKey, content = content) {
         /**
          * constructor overload that takes care of drawing the content by providing a tooltip and content as selectable text, with default styling
          */
@@ -366,9 +424,29 @@ open class ColumnSpec<T>(
     }
 }
 
+/**
+ * the values of columns by the index of the row in the table data, for tables whose rows are expensive to create (c.f.
+ * [TableRows]). The search and the sorting read the values of all rows, and use these instead of the [ColumnSpec]s for
+ * the columns that they are given for. Sorting by the key function would change the indices, so the table data has to
+ * be sorted already.
+ */
+class ColumnValues(
+    /**
+     * the values of [ColumnSpec.StringSearchableColumnSpec]s by column title, which are also their sort keys if the
+     * column has one
+     */
+    val strings: Map<String, (Int) -> String?> = emptyMap(),
+    /**
+     * the sort keys of other columns by column title
+     */
+    val sortKeys: Map<String, (Int) -> Comparable<*>?> = emptyMap(),
+)
+
 class SearchState<T>(
     private val columnSpecs: List<ColumnSpec<T>>,
     val tableData: List<T>,
+    private val columnValues: ColumnValues? = null,
+    shownRows: IntArray? = null,
 ) {
     private val searchableColumns: List<ColumnSpec<T>> by derivedStateOf {
         columnSpecs.filter { it.searchPredicate != null }
@@ -385,6 +463,10 @@ class SearchState<T>(
         searchableColumns.associate { it.title to it.searchPredicate!! }
     }
 
+    private val sortKeys: Map<String, (Int) -> Comparable<*>?> by derivedStateOf {
+        columnSpecs.filter { it.sortKey != null }.associate { spec -> spec.title to sortKeyOf(spec) }
+    }
+
     val isSearching by derivedStateOf {
         searchQueries.any { it.value != null }
     }
@@ -404,19 +486,160 @@ class SearchState<T>(
         it.value != null
     } ?: false
 
-    private fun filterData(tableData: List<T>) = when (searchQueries.any { it.value != null }) {
-        false -> tableData
-        else -> tableData.filter { data ->
-            val presentFilters = searchQueries.filterValues { it != null }
-            val presentPredicates = presentFilters.entries.associate { entry ->
-                val predicate = predicates[entry.key] ?: return@associate null to null
-                entry.key to { predicate.invoke(data, entry.value!!) }
-            }.filterKeys { it != null }.filterValues { it != null }
-            presentPredicates.all { it.value!!() }
+    // built on the first search, on the dispatcher of the filtering
+    private val searchIndex by lazy {
+        SearchIndex(searchableColumns.filterIsInstance<ColumnSpec.StringSearchableColumnSpec<T>>()
+            .associate { spec -> spec.title to stringValueOf(spec) }, tableData.size)
+    }
+
+    private fun stringValueOf(spec: ColumnSpec.StringSearchableColumnSpec<T>): (Int) -> String? =
+        columnValues?.strings?.get(spec.title) ?: { row -> spec.instanceGetter.invoke(tableData[row]) }
+
+    private fun sortKeyOf(spec: ColumnSpec<T>): (Int) -> Comparable<*>? {
+        columnValues?.sortKeys?.get(spec.title)?.let { return it }
+        val stringValue = columnValues?.strings?.get(spec.title)
+        if (spec is ColumnSpec.StringSearchableColumnSpec<T> && stringValue != null) {
+            return { row -> stringValue(row)?.lowercase(Locale.getDefault()) }
+        }
+        return { row -> spec.sortKey!!.invoke(tableData[row]) }
+    }
+
+    private val allRows: IntArray by lazy { IntArray(tableData.size) { it } }
+
+    /**
+     * the indices of the rows of the table data that are shown at all, in the order of the table data, e.g. for a
+     * filter outside of the table, or null for all rows. The search and the sorting are computed for all rows once,
+     * and only filtered by these.
+     */
+    var shownRows: IntArray? by mutableStateOf(shownRows)
+
+    val shownCount by derivedStateOf {
+        this.shownRows?.size ?: tableData.size
+    }
+
+    /**
+     * the indices of the shown rows of the table data that match the search, in the order of the [sortOrder]
+     */
+    var filteredRows: IntArray by mutableStateOf(shownRows ?: allRows)
+        private set
+
+    /**
+     * the column by which the table is sorted, or null if it is shown in the order of the table data
+     */
+    var sortOrder: SortOrder? by mutableStateOf(null)
+        private set
+
+    // the matches of the last search, and the sort permutations of the columns, so that changing the search or the
+    // sorting does not repeat the other
+    private var lastQueries: Map<String, String> = emptyMap()
+    private var lastMatches: BooleanArray? = null
+    private val sortPermutations = mutableMapOf<String, SortPermutation>()
+
+    /**
+     * the key of the row of the table data at [row], which is stable for [TableRows]
+     */
+    fun keyOf(row: Int): Any = when (tableData) {
+        is TableRows<*> -> tableData.keyOf(row)
+        else -> row
+    }
+
+    /**
+     * filters and sorts the table data whenever the search queries, the sort order or the shown rows change, until
+     * this is cancelled. The changes of the queries are debounced, and a filtering or sorting that is still running is
+     * cancelled by the next change. This is intended to be launched from an effect of the table.
+     */
+    @OptIn(FlowPreview::class)
+    suspend fun filterOnQueryChanges() {
+        val queryChanges = snapshotFlow { searchQueries.filterValues { it != null }.mapValues { it.value!! } }
+            .debounce { queries -> if (queries.isEmpty()) 0L else DEBOUNCE_MILLIS }
+        combine(queryChanges, snapshotFlow { sortOrder }, snapshotFlow { shownRows }) { queries, order, shown ->
+            Triple(queries, order, shown)
+        }.collectLatest { (queries, order, shown) -> filteredRows = arrangeRows(queries, order, shown) }
+    }
+
+    private suspend fun arrangeRows(queries: Map<String, String>, order: SortOrder?, shown: IntArray?): IntArray {
+        if (queries != lastQueries) {
+            lastMatches = filterData(queries)
+            lastQueries = queries
+        }
+        val matches = lastMatches
+        val sortedRows = when (order) {
+            null -> shown ?: allRows
+            else -> sortPermutations.getOrPut(order.columnTitle) {
+                computeSortPermutation(sortKeys.getValue(order.columnTitle))
+            }.let { if (order.descending) it.descending else it.ascending }
+        }
+        // the shown rows are already in the order of the table data, so only the sort permutation is filtered by them
+        val isShown = when {
+            order == null || shown == null -> null
+            else -> BooleanArray(tableData.size).also { isShown -> shown.forEach { row -> isShown[row] = true } }
+        }
+        return when {
+            matches == null && isShown == null -> sortedRows
+            else -> withContext(Dispatchers.Default) {
+                sortedRows.filter { row -> matches?.get(row) != false && isShown?.get(row) != false }.toIntArray()
+            }
         }
     }
 
-    val filteredData by derivedStateOf { filterData(tableData) }
+    /**
+     * sorts the rows by their keys, on [Dispatchers.Default]. The rows with the same key stay in the order of the table
+     * data, in both directions, and rows without a key come last.
+     */
+    private suspend fun computeSortPermutation(sortKey: (Int) -> Comparable<*>?) = withContext(Dispatchers.Default) {
+        val keys = arrayOfNulls<Comparable<*>>(tableData.size)
+        parallelForEachIndex(tableData.size, MIN_CHUNK_SIZE) { row ->
+            keys[row] = sortKey.invoke(row)
+        }
+        val ascending = tableData.indices.sortedWith { a, b -> compareSortKeys(keys[a], keys[b]) }.toIntArray()
+        // the runs of equal keys are reversed as a whole, the rows without a key stay at the end
+        val descending = IntArray(ascending.size)
+        var count = 0
+        var end = ascending.indexOfFirst { keys[it] == null }.let { if (it < 0) ascending.size else it }
+        ascending.copyInto(descending, end, end)
+        while (end > 0) {
+            ensureActive()
+            var start = end - 1
+            while (start > 0 && compareSortKeys(keys[ascending[start - 1]], keys[ascending[end - 1]]) == 0) start--
+            ascending.copyInto(descending, count, start, end)
+            count += end - start
+            end = start
+        }
+        SortPermutation(ascending, descending)
+    }
+
+    /**
+     * filters on [Dispatchers.Default], using the [SearchIndex] for string-searchable columns, and the search predicate
+     * for all other columns
+     *
+     * @return whether the rows match, or null if there are no queries
+     */
+    private suspend fun filterData(queries: Map<String, String>): BooleanArray? = when (queries.isEmpty()) {
+        true -> null
+        else -> withContext(Dispatchers.Default) {
+            val matchers = queries.mapNotNull { (columnTitle, query) ->
+                searchIndex.matcher(columnTitle, query) ?: predicates[columnTitle]?.let { predicate ->
+                    { row: Int -> predicate.invoke(tableData[row], query) }
+                }
+            }
+            val matches = BooleanArray(tableData.size)
+            parallelForEachIndex(tableData.size, MIN_CHUNK_SIZE) { row ->
+                matches[row] = matchers.all { it.invoke(row) }
+            }
+            matches
+        }
+    }
+
+    /**
+     * sorts by [columnTitle] in ascending, then descending order, then in the order of the table data again
+     */
+    fun toggleSortFor(columnTitle: String) {
+        sortOrder = when (sortOrder) {
+            SortOrder(columnTitle, descending = false) -> SortOrder(columnTitle, descending = true)
+            SortOrder(columnTitle, descending = true) -> null
+            else -> SortOrder(columnTitle, descending = false)
+        }
+    }
 
     fun clearSearchFor(columnName: String) {
         searchQueries[columnName] = null
@@ -432,6 +655,20 @@ class SearchState<T>(
         searchQueries[it] = null
     }
 
+    data class SortOrder(val columnTitle: String, val descending: Boolean)
+
+    private class SortPermutation(val ascending: IntArray, val descending: IntArray)
+
+    companion object {
+        private const val DEBOUNCE_MILLIS = 250L
+        private const val MIN_CHUNK_SIZE = 1024
+
+        private fun compareSortKeys(a: Comparable<*>?, b: Comparable<*>?): Int = when {
+            a == null -> if (b == null) 0 else 1
+            b == null -> -1
+            else -> compareValues(a, b)
+        }
+    }
 }
 
 @Composable
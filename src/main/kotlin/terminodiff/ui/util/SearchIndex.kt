@@ -0,0 +1,111 @@
+package terminodiff.ui.util
+
+import me.xdrop.fuzzywuzzy.FuzzySearch
+import java.util.*
+
+/**
+ * the values of the string-searchable columns of a table by row index, lower-cased once, with a signature of the
+ * characters of every value, so that most rows can be ruled out for a query without fuzzy scoring.
+ *
+ * A row matches a query if the [FuzzySearch.partialRatio] of its value and the query is at least [FUZZY_THRESHOLD].
+ * The partial ratio compares the shorter string (of length s) with windows of the longer string, as 2 * LCS / (s + w)
+ * for windows of length w <= s, so a match needs a window with enough characters in common with the shorter string
+ * (see [IndexedColumn.mayMatch]). The characters are hashed into 64 buckets, and the characters in common are bounded
+ * by the counts per bucket, first from the signature of the value, then from a window sliding over it. The bound
+ * never rules out a row that would match, unlike n-gram pruning, which misses typos such as "cacner" for "cancer".
+ */
+class SearchIndex(columnValues: Map<String, (Int) -> String?>, size: Int) {
+
+    private val columns: Map<String, IndexedColumn> = columnValues.mapValues { (_, getter) ->
+        val values = Array(size) { getter(it)?.lowercase(Locale.getDefault()) }
+        IndexedColumn(values, LongArray(values.size) { row -> values[row]?.let(::signatureOf) ?: 0L })
+    }
+
+    /**
+     * @return whether the row at an index matches [query] in the column [columnTitle], or null if the column is not
+     * indexed
+     */
+    fun matcher(columnTitle: String, query: String): ((Int) -> Boolean)? = columns[columnTitle]?.matcher(query)
+
+    private class IndexedColumn(val values: Array<String?>, val signatures: LongArray) {
+
+        fun matcher(query: String): (Int) -> Boolean {
+            val lowerQuery = query.lowercase(Locale.getDefault())
+            val queryCounts = IntArray(BUCKETS)
+            lowerQuery.forEach { queryCounts[bucketOf(it)]++ }
+            val querySignature = signatureOf(lowerQuery)
+            return { row ->
+                when (val value = values[row]) {
+                    null -> false
+                    else -> mayMatch(value, row, lowerQuery.length, querySignature, queryCounts) &&
+                            FuzzySearch.partialRatio(value, lowerQuery) >= FUZZY_THRESHOLD
+                }
+            }
+        }
+
+        private fun mayMatch(
+            value: String,
+            row: Int,
+            queryLength: Int,
+            querySignature: Long,
+            queryCounts: IntArray,
+        ): Boolean {
+            val shorterLength = minOf(value.length, queryLength)
+            // the characters of the query in buckets that the value has at all
+            var sharedBuckets = signatures[row] and querySignature
+            var bound = 0
+            while (sharedBuckets != 0L) {
+                bound += queryCounts[sharedBuckets.countTrailingZeroBits()]
+                sharedBuckets = sharedBuckets and (sharedBuckets - 1)
+            }
+            if (bound * ANY_WINDOW_DENOMINATOR < shorterLength * MIN_RATIO) return false
+            if (value.length <= queryLength) {
+                return countInCommon(value, queryCounts) * ANY_WINDOW_DENOMINATOR >= shorterLength * MIN_RATIO
+            }
+            // the characters in common with the windows of the value with the length of the query, sliding over it
+            val window = IntArray(BUCKETS)
+            var common = 0
+            var best = 0
+            value.forEachIndexed { i, c ->
+                val entering = bucketOf(c)
+                if (window[entering]++ < queryCounts[entering]) common++
+                if (i >= queryLength) {
+                    val leaving = bucketOf(value[i - queryLength])
+                    if (--window[leaving] < queryCounts[leaving]) common--
+                }
+                if (i >= queryLength - 1) best = maxOf(best, common)
+            }
+            // the windows at the end of the value may be shorter than the query, they are part of the last full window
+            return best * FULL_WINDOW_DENOMINATOR >= queryLength * MIN_RATIO ||
+                    common * ANY_WINDOW_DENOMINATOR >= queryLength * MIN_RATIO
+        }
+
+        private fun countInCommon(value: String, queryCounts: IntArray): Int {
+            val remaining = queryCounts.copyOf()
+            var common = 0
+            value.forEach { c ->
+                val bucket = bucketOf(c)
+                if (remaining[bucket] > 0) {
+                    remaining[bucket]--
+                    common++
+                }
+            }
+            return common
+        }
+    }
+
+    companion object {
+        const val FUZZY_THRESHOLD = 75
+        private const val BUCKETS = 64
+
+        // the score is rounded, so a ratio of 0.745 is enough. A window of the length of the shorter string needs
+        // 0.745 * s characters in common, a shorter window needs at least 0.745 * s / 1.255
+        private const val MIN_RATIO = 745
+        private const val FULL_WINDOW_DENOMINATOR = 1000
+        private const val ANY_WINDOW_DENOMINATOR = 1255
+
+        private fun bucketOf(c: Char) = (c.code * -0x61c88647) ushr 26
+
+        private fun signatureOf(text: String): Long = text.fold(0L) { signature, c -> signature or (1L shl bucketOf(c)) }
+    }
+}
@@ -0,0 +1,43 @@
+package terminodiff.ui.util
+
+/**
+ * the rows of a [LazyTable] that are only created when they are read, e.g. for the rows that are visible. The most
+ * recently used rows are kept in a small cache, so that scrolling back and forth does not create them again.
+ *
+ * Every row has a key that is stable across different [TableRows] of the same data, so that the table can keep the
+ * state of a row that is shown by more than one of them. The rows are compared by identity, so that passing them as
+ * the data of a table never creates all of them.
+ */
+class TableRows<T>(
+    override val size: Int,
+    private val rowKey: (Int) -> Any = { it },
+    private val createRow: (Int) -> T,
+) : AbstractList<T>(), RandomAccess {
+
+    private val cache = object : LinkedHashMap<Int, T>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Int, T>?) = size > CACHE_SIZE
+    }
+
+    override fun get(index: Int): T {
+        if (index !in 0 until size) throw IndexOutOfBoundsException("row $index of $size")
+        // the rows are also read by the search, on another thread
+        synchronized(cache) {
+            cache[index]?.let { return it }
+        }
+        val row = createRow(index)
+        synchronized(cache) {
+            cache[index] = row
+        }
+        return row
+    }
+
+    fun keyOf(index: Int): Any = rowKey(index)
+
+    override fun equals(other: Any?) = this === other
+
+    override fun hashCode() = System.identityHashCode(this)
+
+    companion object {
+        private const val CACHE_SIZE = 256
+    }
+}
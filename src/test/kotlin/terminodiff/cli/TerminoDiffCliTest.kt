@@ -0,0 +1,55 @@
+package terminodiff.cli
+
+import java.io.File
+import kotlin.io.path.createTempDirectory
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class TerminoDiffCliTest {
+
+    private val testResources = File("src/main/resources/testresources")
+
+    /**
+     * runs the CLI in a JVM of its own, since the JVM of the tests may have loaded any classes already, and lists the
+     * classes that it loads
+     */
+    @Test
+    fun `the cli does not load ui classes`() {
+        val directory = createTempDirectory("terminodiff-cli").toFile()
+        try {
+            val classes = File(directory, "classes.txt")
+            val javaExecutable = File(System.getProperty("java.home"), "bin/java").path
+            val process = ProcessBuilder(javaExecutable,
+                "-verbose:class",
+                "-cp",
+                System.getProperty("java.class.path"),
+                "terminodiff.cli.TerminoDiffCliKt",
+                "--output",
+                File(directory, "report.json").path,
+                "--export",
+                File(directory, "exports").path,
+                File(testResources, "simple-left.json").path,
+                File(testResources, "simple-right.json").path,
+                File(testResources, "oncotree_2017_06_21.json").path,
+                File(testResources, "oncotree_2020_10_01.json").path)
+                .redirectOutput(classes)
+                .redirectError(File(directory, "errors.txt"))
+                .start()
+            assertEquals(0, process.waitFor(), "the CLI failed: ${File(directory, "errors.txt").readText()}")
+            val loadedClasses = classes.readLines().mapNotNull { line ->
+                LOADED_CLASS.find(line)?.groupValues?.get(1)
+            }
+            assertTrue(loadedClasses.any { it.startsWith("terminodiff.engine.graph.") }, "no classes were listed")
+            val uiClasses = loadedClasses.filter { name -> UI_PACKAGES.any { name.startsWith(it) } }
+            assertTrue(uiClasses.isEmpty(), "the CLI loaded UI classes: ${uiClasses.joinToString(limit = 10)}")
+        } finally {
+            directory.deleteRecursively()
+        }
+    }
+
+    companion object {
+        private val LOADED_CLASS = Regex("""\[class,load] (\S+) """)
+        private val UI_PACKAGES = listOf("androidx.compose.", "terminodiff.ui.", "terminodiff.terminodiff.ui.")
+    }
+}
@@ -0,0 +1,104 @@
+package terminodiff.terminodiff.engine.graph
+
+import ca.uhn.fhir.context.FhirContext
+import kotlinx.coroutines.runBlocking
+import org.jgrapht.GraphPath
+import org.jgrapht.alg.shortestpath.AllDirectedPaths
+import terminodiff.engine.graph.CodeSystemDiffBuilder
+import terminodiff.engine.graph.CodeSystemGraphBuilder
+import terminodiff.engine.resources.CodeSystemExtractor
+import java.io.File
+import kotlin.random.Random
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+import kotlin.test.fail
+
+/**
+ * compares the [SidePathSearch] with the enumeration of all simple paths by [AllDirectedPaths], which it replaces
+ */
+class SidePathSearchTest {
+
+    @Test
+    fun `a reversed hierarchy does not turn a path in both sides into one with a difference`() {
+        val graph = graphOf(3, listOf(Triple(0, 1, GraphSide.BOTH),
+            Triple(1, 2, GraphSide.LEFT),
+            Triple(2, 1, GraphSide.RIGHT)))
+        val search = SidePathSearch(graph, graph.vertex(0))
+        assertFalse(search.hasPathWithDifference(graph.vertex(1)))
+        assertTrue(search.hasPathWithDifference(graph.vertex(2)))
+        assertEquals(null, search.shortestUniformPath(graph.vertex(1)))
+    }
+
+    @Test
+    fun `random graphs have the same paths as the enumeration of all simple paths`() {
+        val random = Random(RANDOM_SEED)
+        repeat(RANDOM_GRAPHS) {
+            val size = random.nextInt(3, 10)
+            val edges = (0 until random.nextInt(2, size * 3)).map {
+                Triple(random.nextInt(size), random.nextInt(size), GraphSide.values()[random.nextInt(3)])
+            }.filter { it.first != it.second }.distinctBy { it.first to it.second }
+            val graph = graphOf(size, edges)
+            assertSamePaths(graph, graph.vertex(0), checkUniformPaths = true)
+        }
+    }
+
+    @Test
+    fun `the neighborhoods of the oncotree diffs have the same paths as the enumeration of all simple paths`() {
+        val extractor = CodeSystemExtractor(FhirContext.forR4())
+        val testResources = File("src/main/resources/testresources")
+        fun graphBuilderOf(name: String) = extractor.extract(File(testResources, "$name.json"))!!.let { extracted ->
+            CodeSystemGraphBuilder(extracted.metadata, extracted.concepts)
+        }
+        listOf("oncotree_2017_06_21" to "oncotree_2020_10_01",
+            "oncotree_2020_10_01" to "oncotree_2021_11_02",
+            "oncotree_2021_11_02" to "oncotree_2017_06_21").forEach { (left, right) ->
+            val diff = runBlocking { CodeSystemDiffBuilder(graphBuilderOf(left), graphBuilderOf(right)).build() }
+            val combinedGraph = diff.combinedGraph!!
+            combinedGraph.affectedVertices.forEach { vertex ->
+                val neighborhood = combinedGraph.computeSubgraph(vertex.code, 1)
+                assertSamePaths(neighborhood, neighborhood.nodeByCode(vertex.code)!!, checkUniformPaths = false)
+            }
+        }
+    }
+
+    private fun assertSamePaths(graph: CombinedGraph, origin: CombinedVertex, checkUniformPaths: Boolean) {
+        val search = SidePathSearch(graph, origin)
+        val targets = graph.vertexSet().filter { it != origin }
+        val pathsByTarget = AllDirectedPaths(graph)
+            .getAllPaths(setOf(origin), targets.toSet(), true, graph.edgeSet().size)
+            .groupBy { it.endVertex }
+        targets.forEach { target ->
+            val paths = pathsByTarget[target] ?: emptyList()
+            // the message is only built on a mismatch, since printing the neighborhoods of the oncotree diffs is slow
+            fun assertSame(expected: Any?, actual: Any?, what: String) {
+                if (expected != actual) fail("$what from ${origin.code} to ${target.code} in $graph: " +
+                        "expected <$expected>, actual <$actual>")
+            }
+            assertSame(paths.any { path -> path.edgeList.any { it.side != GraphSide.BOTH } },
+                search.hasPathWithDifference(target),
+                "path with a difference")
+            if (checkUniformPaths) {
+                assertSame(paths.filter(::isUniform).minOfOrNull { it.length },
+                    search.shortestUniformPath(target)?.length,
+                    "shortest uniform path")
+            }
+        }
+    }
+
+    private fun isUniform(path: GraphPath<CombinedVertex, CombinedEdge>) =
+        path.edgeList.all { it.side == GraphSide.LEFT } || path.edgeList.all { it.side == GraphSide.RIGHT }
+
+    private fun graphOf(size: Int, edges: List<Triple<Int, Int, GraphSide>>) = CombinedGraph().apply {
+        (0 until size).forEach { addVertex(CombinedVertex("c$it", side = GraphSide.BOTH)) }
+        edges.forEach { (from, to, side) -> addCombinedEdge(CombinedEdge("c$from", "c$to", "parent", side)) }
+    }
+
+    private fun CombinedGraph.vertex(index: Int) = nodeByCode("c$index")!!
+
+    companion object {
+        private const val RANDOM_SEED = 1
+        private const val RANDOM_GRAPHS = 5000
+    }
+}